@@ -1,310 +1,6399 @@
+import java.io.*;
+import java.lang.ref.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.*;
+import java.util.stream.*;
+import java.util.zip.CRC32;
 
 // Custom exception for domain-specific errors
 class ShoppingException extends Exception {
+    private static final long serialVersionUID = 1L;
+
     public ShoppingException(String message) { super(message); }
 }
 
-// Payment record to track payment method and amount
-class PaymentRecord {
-    private PaymentMethod method;
-    private double amount;
-    public PaymentRecord(PaymentMethod method, double amount) {
-        this.method = method; this.amount = amount;
+// Exact currency amount held as whole cents; arithmetic is overflow-checked and rounds half-even
+final class Money implements Comparable<Money> {
+    public static final Money ZERO = new Money(0);
+    private static final long[] POW10 = { 1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L,
+        100_000_000L, 1_000_000_000L, 10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L };
+    private final long cents;
+
+    private Money(long cents) { this.cents = cents; }
+    public static Money ofCents(long cents) { return cents == 0 ? ZERO : new Money(cents); }
+
+    // Accepts "12", "12.5", "$12.50" or "-3.999"; digits past the cent are rounded half-even
+    public static Money parse(String text) {
+        String t = text.trim();
+        int i = 0, n = t.length();
+        boolean negative = i < n && t.charAt(i) == '-';
+        if (negative) i++;
+        if (i < n && t.charAt(i) == '$') i++;
+        long unscaled = 0;
+        int scale = -1, digits = 0;
+        try {
+            for (; i < n; i++) {
+                char c = t.charAt(i);
+                if (c == '.' && scale < 0) { scale = 0; continue; }
+                if (c < '0' || c > '9') throw new NumberFormatException("Invalid amount: " + text);
+                unscaled = Math.addExact(Math.multiplyExact(unscaled, 10), c - '0');
+                digits++;
+                if (scale >= 0) scale++;
+            }
+            if (digits == 0 || scale >= POW10.length) throw new NumberFormatException("Invalid amount: " + text);
+            if (scale < 0) scale = 0;
+            long result = scale <= 2 ? Math.multiplyExact(unscaled, POW10[2 - scale]) : divideHalfEven(unscaled, POW10[scale - 2]);
+            return ofCents(negative ? -result : result);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + text);
+        }
+    }
+
+    static long divideHalfEven(long numerator, long divisor) {
+        long q = numerator / divisor, r = numerator % divisor;
+        if (r == 0) return q;
+        long twice = Math.abs(r) * 2;
+        boolean awayFromZero = twice > divisor || (twice == divisor && (q & 1) != 0);
+        if (!awayFromZero) return q;
+        return (numerator < 0) ? q - 1 : q + 1;
+    }
+
+    public long cents() { return cents; }
+    public Money plus(Money other) { return ofCents(Math.addExact(cents, other.cents)); }
+    public Money minus(Money other) { return ofCents(Math.subtractExact(cents, other.cents)); }
+    public Money times(long quantity) { return ofCents(Math.multiplyExact(cents, quantity)); }
+    public Money percent(long pct) { return ofCents(divideHalfEven(Math.multiplyExact(cents, pct), 100)); }
+    public boolean isPositive() { return cents > 0; }
+    public boolean isNegative() { return cents < 0; }
+    public boolean isZero() { return cents == 0; }
+    public boolean greaterThan(Money other) { return cents > other.cents; }
+    public Money min(Money other) { return cents <= other.cents ? this : other; }
+
+    @Override public int compareTo(Money other) { return Long.compare(cents, other.cents); }
+    @Override public boolean equals(Object o) { return o instanceof Money && ((Money) o).cents == cents; }
+    @Override public int hashCode() { return Long.hashCode(cents); }
+    // Formats as "$1234.50" without going through String.format
+    @Override public String toString() { return appendTo(new StringBuilder(16)).toString(); }
+    public StringBuilder appendTo(StringBuilder sb) { return appendCents(sb, cents, true); }
+    // Same digits without a Money instance; renderers pass symbol=false for machine-readable output
+    static StringBuilder appendCents(StringBuilder sb, long cents, boolean symbol) {
+        long abs = Math.abs(cents);
+        if (cents < 0) sb.append('-');
+        if (symbol) sb.append('$');
+        sb.append(abs / 100).append('.');
+        long frac = abs % 100;
+        if (frac < 10) sb.append('0');
+        return sb.append(frac);
+    }
+}
+
+// Payment record to track payment method and amount
+class PaymentRecord {
+    private PaymentMethod method;
+    private String methodName;
+    private Money amount;
+    public PaymentRecord(PaymentMethod method, Money amount) {
+        this.method = method; this.methodName = method.getClass().getSimpleName(); this.amount = amount;
+    }
+    // Rebuilt from storage; the original payment method object is not kept
+    PaymentRecord(String methodName, Money amount) { this.methodName = methodName; this.amount = amount; }
+    public PaymentMethod getMethod() { return method; }
+    public String getMethodName() { return methodName; }
+    public Money getAmount() { return amount; }
+}
+
+// =================== Product and Subclasses ===================
+
+// Observes catalog mutations; callbacks run on the thread that made the change
+interface InventoryListener {
+    default void productAdded(Product product) {}
+    // Bulk loads hand over whole batches so listeners can amortize per-product work
+    default void productsAdded(List<Product> products) { for (Product p : products) productAdded(p); }
+    default void stockChanged(Product product, int oldStock, int newStock) {}
+}
+
+abstract class Product {
+    private String id, name;
+    private Money price;
+    // Stock is updated with CAS so concurrent checkouts never drive it negative
+    private final AtomicInteger stock;
+    private volatile InventoryListener listener;
+    // Stock when the product joined a store, read before anything else could reach it
+    private int addedStock;
+
+    public Product(String id, String name, Money price, int stock) throws ShoppingException {
+        if (price.isNegative() || stock < 0) throw new ShoppingException("Price and stock must be non-negative.");
+        this.id = id; this.name = name; this.price = price; this.stock = new AtomicInteger(stock);
+    }
+    public String getId() { return id; }
+    public String getName() { return name; }
+    public Money getPrice() { return price; }
+    public int getStock() { return stock.get(); }
+    void setListener(InventoryListener listener) { this.listener = listener; }
+    InventoryListener getListener() { return listener; }
+    // For a product no other thread can reach yet: every later change is reported, so the stock read here plus
+    // the reported deltas is always the stock
+    void attach(InventoryListener listener) { this.listener = listener; this.addedStock = stock.get(); }
+    // What listeners that log stock deltas should record as the starting stock, rather than getStock()
+    int getAddedStock() { return addedStock; }
+    private void stockChanged(int oldStock, int newStock) {
+        InventoryListener l = listener;
+        if (l != null) l.stockChanged(this, oldStock, newStock);
+    }
+    public void setStock(int stock) throws ShoppingException {
+        if (stock < 0) throw new ShoppingException("Stock cannot be negative.");
+        stockChanged(this.stock.getAndSet(stock), stock);
+    }
+    public boolean isAvailable() { return stock.get() > 0; }
+    // Atomically takes qty units if enough are left; returns false instead of throwing on the hot path
+    public boolean tryDecreaseStock(int qty) {
+        if (qty <= 0) return false;
+        while (true) {
+            int current = stock.get();
+            if (qty > current) {
+                ShopMetrics.STOCK_INSUFFICIENT.increment();
+                return false;
+            }
+            if (stock.compareAndSet(current, current - qty)) {
+                stockChanged(current, current - qty);
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+    }
+    public void decreaseStock(int qty) throws ShoppingException {
+        if (qty <= 0) throw new ShoppingException("Quantity must be positive.");
+        if (!tryDecreaseStock(qty)) throw new ShoppingException("Insufficient stock for " + name);
+    }
+    // Puts back units taken by a reservation that was never committed
+    public void restoreStock(int qty) {
+        if (qty <= 0) return;
+        int updated = stock.addAndGet(qty);
+        stockChanged(updated - qty, updated);
+    }
+    // "Electronics"/"Clothing" and the type's one extra attribute, for listings and exports
+    public abstract String getCategory();
+    public abstract String getAttributeLabel();
+    public abstract String getAttribute();
+    // One-line listing used by the console menu and the server
+    public StringBuilder appendDetails(StringBuilder sb) {
+        int stock = getStock();
+        sb.append("ID: ").append(id).append(" | ").append(getCategory()).append(": ").append(name)
+          .append(" (").append(getAttributeLabel()).append(": ").append(getAttribute()).append(") - ");
+        price.appendTo(sb).append(" | Stock: ").append(stock);
+        if (stock == 0) sb.append(" [SOLD OUT]");
+        return sb;
+    }
+    public String describe() { return appendDetails(new StringBuilder(96)).toString(); }
+    public void displayDetails() {
+        ReportSink sink = ReportSink.console();
+        appendDetails(sink.line());
+        sink.endLine().flush();
+    }
+}
+
+class Electronics extends Product {
+    private String brand;
+    public Electronics(String id, String name, Money price, int stock, String brand) throws ShoppingException {
+        super(id, name, price, stock); this.brand = brand;
+    }
+    public String getBrand() { return brand; }
+    @Override
+    public String getCategory() { return "Electronics"; }
+    @Override
+    public String getAttributeLabel() { return "Brand"; }
+    @Override
+    public String getAttribute() { return brand; }
+}
+
+class Clothing extends Product {
+    private String size;
+    public Clothing(String id, String name, Money price, int stock, String size) throws ShoppingException {
+        super(id, name, price, stock); this.size = size;
+    }
+    public String getSize() { return size; }
+    @Override
+    public String getCategory() { return "Clothing"; }
+    @Override
+    public String getAttributeLabel() { return "Size"; }
+    @Override
+    public String getAttribute() { return size; }
+}
+
+// =================== Payment and Cart ===================
+
+// Receives wallet balance changes as signed cent deltas
+interface BalanceListener { void balanceChanged(PaymentMethod method, long deltaCents); }
+
+// A wallet: the balance lives in a WalletAccount, subclasses name the account and word its decline
+abstract class PaymentMethod {
+    private final WalletAccount account;
+    private volatile BalanceListener balanceListener;
+
+    PaymentMethod(Money balance) { this.account = new WalletAccount(balance.cents()); }
+
+    public boolean pay(Money amount) throws ShoppingException {
+        if (!account.tryDebit(amount.cents())) throw new ShoppingException(insufficientFunds());
+        balanceChanged(-amount.cents());
+        return true;
+    }
+    public void refund(Money amount) {
+        account.credit(amount.cents());
+        balanceChanged(amount.cents());
+    }
+    public void addFunds(Money amount) throws ShoppingException {
+        if (!amount.isPositive()) throw new ShoppingException("Amount to add must be positive.");
+        account.credit(amount.cents());
+        balanceChanged(amount.cents());
+    }
+    protected abstract String insufficientFunds();
+    public abstract String getDetails();
+    public String getBalance() { return Money.ofCents(account.balanceCents()).toString(); }
+    // Card number or email; identifies the account across restarts
+    public abstract String getAccountKey();
+    public long getBalanceCents() { return account.balanceCents(); }
+    // Most recent debits and credits, newest first
+    public List<WalletTransaction> recentTransactions() { return account.recentTransactions(); }
+    public void setBalanceListener(BalanceListener listener) { this.balanceListener = listener; }
+    private void balanceChanged(long deltaCents) {
+        BalanceListener l = balanceListener;
+        if (l != null) l.balanceChanged(this, deltaCents);
+    }
+}
+
+// One entry of an account's transaction journal
+final class WalletTransaction {
+    static final byte DEBIT = 1, CREDIT = 2;
+    private final long sequence;
+    private final byte kind;
+    private final long cents;
+    private final long timeMillis;
+
+    WalletTransaction(long sequence, byte kind, long cents, long timeMillis) {
+        this.sequence = sequence; this.kind = kind; this.cents = cents; this.timeMillis = timeMillis;
+    }
+    public long getSequence() { return sequence; }
+    public boolean isDebit() { return kind == DEBIT; }
+    public Money getAmount() { return Money.ofCents(cents); }
+    public Date getDate() { return new Date(timeMillis); }
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(48).append('#').append(sequence).append(' ');
+        ShopRenderer.isoUtc(sb, timeMillis).append(' ');
+        return Money.appendCents(sb, kind == DEBIT ? -cents : cents, true).toString();
+    }
+}
+
+// Lock-free balance: debits CAS settled and never take it negative, credits go to a LongAdder folded in on demand
+final class WalletAccount {
+    private static final int JOURNAL_SLOTS = 64;
+
+    private final AtomicLong settled;
+    private final LongAdder credits = new LongAdder();
+    private final AtomicInteger folding = new AtomicInteger();
+    // Ring of the last JOURNAL_SLOTS transactions; each slot holds the newest one whose sequence maps to it
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicReferenceArray<WalletTransaction> journal = new AtomicReferenceArray<>(JOURNAL_SLOTS);
+
+    WalletAccount(long openingCents) {
+        this.settled = new AtomicLong(openingCents);
+    }
+
+    boolean tryDebit(long cents) {
+        for (;;) {
+            long current = settled.get();
+            if (current < cents) {
+                // Fold pending top-ups in; only fail if even those don't cover the charge.
+                // Mid-fold the money is in neither settled nor the adder, hence the folding count.
+                long pending;
+                folding.incrementAndGet();
+                try {
+                    pending = credits.sumThenReset();
+                    if (pending != 0) addToSettled(pending);
+                } finally {
+                    folding.decrementAndGet();
+                }
+                if (pending != 0) continue;
+                // Another debit may hold the top-ups mid-fold; wait for it to land before declining
+                if (folding.get() != 0) Thread.onSpinWait();
+                else if (settled.get() == current) return false;
+                continue;
+            }
+            if (settled.compareAndSet(current, current - cents)) {
+                record(WalletTransaction.DEBIT, cents);
+                return true;
+            }
+        }
+    }
+
+    void credit(long cents) {
+        if (cents < 0) throw new IllegalArgumentException("Credit cannot be negative");
+        credits.add(cents);
+        record(WalletTransaction.CREDIT, cents);
+    }
+
+    private void addToSettled(long cents) {
+        for (;;) {
+            long current = settled.get();
+            if (settled.compareAndSet(current, Math.addExact(current, cents))) return;
+        }
+    }
+
+    // Exact when quiescent; a read racing a fold may briefly miss or double-count the folded amount
+    long balanceCents() { return settled.get() + credits.sum(); }
+
+    // Writers JOURNAL_SLOTS apart race for one slot; the later sequence wins whichever order they land in
+    private void record(byte kind, long cents) {
+        long seq = nextSequence.getAndIncrement();
+        int slot = (int) (seq & (JOURNAL_SLOTS - 1));
+        WalletTransaction t = new WalletTransaction(seq, kind, cents, System.currentTimeMillis());
+        for (;;) {
+            WalletTransaction old = journal.get(slot);
+            if (old != null && old.getSequence() > seq) return;
+            if (journal.compareAndSet(slot, old, t)) return;
+        }
+    }
+
+    // Newest first; entries already overwritten by newer ones, or not yet written, are skipped
+    List<WalletTransaction> recentTransactions() {
+        long end = nextSequence.get();
+        List<WalletTransaction> out = new ArrayList<>();
+        for (long seq = end - 1; seq >= 0 && seq >= end - JOURNAL_SLOTS; seq--) {
+            WalletTransaction t = journal.get((int) (seq & (JOURNAL_SLOTS - 1)));
+            if (t != null && t.getSequence() == seq) out.add(t);
+        }
+        return out;
+    }
+}
+
+class CreditCard extends PaymentMethod {
+    private String cardNumber;
+    public CreditCard(String cardNumber, Money balance) throws ShoppingException {
+        super(balance);
+        if (!cardNumber.matches("\\d{16}")) throw new ShoppingException("Invalid credit card number (must be 16 digits).");
+        if (balance.isNegative()) throw new ShoppingException("Credit card balance cannot be negative.");
+        this.cardNumber = cardNumber;
+    }
+    @Override
+    protected String insufficientFunds() { return "Insufficient funds on credit card ending in " + cardNumber.substring(12); }
+    @Override
+    public String getDetails() { return "Credit Card ending in " + cardNumber.substring(12); }
+    @Override
+    public String getAccountKey() { return cardNumber; }
+}
+
+class PayPal extends PaymentMethod {
+    private String email;
+    public PayPal(String email, Money balance) throws ShoppingException {
+        super(balance);
+        if (!email.matches(".+@.+\\..+")) throw new ShoppingException("Invalid PayPal email format.");
+        if (balance.isNegative()) throw new ShoppingException("PayPal balance cannot be negative.");
+        this.email = email;
+    }
+    @Override
+    protected String insufficientFunds() { return "Insufficient funds in PayPal account (Email: " + email + ")"; }
+    @Override
+    public String getDetails() { return "PayPal (Email: " + email + ")"; }
+    @Override
+    public String getAccountKey() { return email; }
+}
+
+class CartItem {
+    private Product product;
+    private int quantity;
+    public CartItem(Product product, int quantity) {
+        this.product = product; this.quantity = quantity;
+    }
+    public Product getProduct() { return product; }
+    public int getQuantity() { return quantity; }
+    public void setQuantity(int quantity) { this.quantity = quantity; }
+}
+
+// Open-addressing map from product id to an int slot; no boxing and no entry objects
+class ProductIdIndex {
+    private String[] keys;
+    private int[] slots;
+    private int size, mask;
+
+    public ProductIdIndex(int expected) {
+        int cap = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new String[cap]; slots = new int[cap]; mask = cap - 1;
+    }
+    private static int spread(int h) { return (h ^ (h >>> 16)) * 0x9E3779B1; }
+
+    public int get(String key) {
+        for (int i = spread(key.hashCode()) & mask; keys[i] != null; i = (i + 1) & mask)
+            if (keys[i].equals(key)) return slots[i];
+        return -1;
+    }
+    public void put(String key, int slot) {
+        if ((size + 1) * 2 > keys.length) resize();
+        int i = spread(key.hashCode()) & mask;
+        for (; keys[i] != null; i = (i + 1) & mask)
+            if (keys[i].equals(key)) { slots[i] = slot; return; }
+        keys[i] = key; slots[i] = slot; size++;
+    }
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    public int remove(String key) {
+        int i = spread(key.hashCode()) & mask;
+        for (; keys[i] != null; i = (i + 1) & mask) if (keys[i].equals(key)) break;
+        if (keys[i] == null) return -1;
+        int removed = slots[i];
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = spread(keys[j].hashCode()) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j]; slots[i] = slots[j]; i = j;
+            }
+        }
+        keys[i] = null; size--;
+        return removed;
+    }
+    public int size() { return size; }
+    public void clear() { Arrays.fill(keys, null); size = 0; }
+    private void resize() {
+        String[] oldKeys = keys; int[] oldSlots = slots;
+        keys = new String[oldKeys.length * 2]; slots = new int[oldKeys.length * 2]; mask = keys.length - 1; size = 0;
+        for (int i = 0; i < oldKeys.length; i++) if (oldKeys[i] != null) put(oldKeys[i], oldSlots[i]);
+    }
+}
+
+// Lines live in parallel arrays addressed through an id index; the subtotal is kept in cents as lines change
+class Cart {
+    private final ProductIdIndex index = new ProductIdIndex(16);
+    private Product[] products = new Product[8];
+    private int[] quantities = new int[8];
+    private int size;
+    private long subtotalCents;
+
+    public void addProduct(Product p, int qty) throws ShoppingException {
+        long t = ShopMetrics.CART_ADD.start();
+        try {
+            add(p, qty);
+        } finally {
+            ShopMetrics.CART_ADD.recordSince(t);
+        }
+    }
+
+    private void add(Product p, int qty) throws ShoppingException {
+        if (qty <= 0) throw new ShoppingException("Quantity must be positive.");
+        if (qty > p.getStock()) throw new ShoppingException("Requested quantity exceeds stock for " + p.getName());
+        int slot = index.get(p.getId());
+        // Checked before anything changes, so an overflowing add leaves the cart as it was
+        long subtotal = Math.addExact(subtotalCents, Math.multiplyExact(p.getPrice().cents(), qty));
+        if (slot >= 0) Math.addExact(quantities[slot], qty);
+        if (slot < 0) {
+            if (size == products.length) {
+                products = Arrays.copyOf(products, size * 2);
+                quantities = Arrays.copyOf(quantities, size * 2);
+            }
+            slot = size++;
+            products[slot] = p;
+            index.put(p.getId(), slot);
+        }
+        quantities[slot] += qty;
+        subtotalCents = subtotal;
+    }
+    // Moves the last line into the freed slot so removal stays O(1)
+    public void removeProduct(String productId) {
+        int slot = index.get(productId);
+        if (slot < 0) return;
+        // Same checked arithmetic as add, done before the line is unlinked
+        subtotalCents = Math.subtractExact(subtotalCents, Math.multiplyExact(products[slot].getPrice().cents(), quantities[slot]));
+        index.remove(productId);
+        int last = --size;
+        if (slot != last) {
+            products[slot] = products[last];
+            quantities[slot] = quantities[last];
+            index.put(products[slot].getId(), slot);
+        }
+        products[last] = null;
+        quantities[last] = 0;
+    }
+    public void displayCart() {
+        ReportSink sink = ReportSink.console();
+        ShopRenderer.cart(sink, this);
+        sink.flush();
+    }
+    public Money getTotal() { return Money.ofCents(subtotalCents); }
+    public int size() { return size; }
+    public Product getProductAt(int slot) { return products[slot]; }
+    public int getQuantityAt(int slot) { return quantities[slot]; }
+    public List<CartItem> getItems() {
+        List<CartItem> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) items.add(new CartItem(products[i], quantities[i]));
+        return Collections.unmodifiableList(items);
+    }
+    public boolean isEmpty() { return size == 0; }
+    public void clear() {
+        Arrays.fill(products, 0, size, null);
+        Arrays.fill(quantities, 0, size, 0);
+        index.clear();
+        size = 0;
+        subtotalCents = 0;
+    }
+}
+
+// =================== Customer and Order History ===================
+
+// Immutable product identity and price as of a purchase; equal refs are shared across all orders
+final class ProductRef {
+    private static final ConcurrentMap<String, ProductRef> LATEST = new ConcurrentHashMap<>();
+    private final String id, name;
+    private final Money unitPrice;
+
+    private ProductRef(String id, String name, Money unitPrice) { this.id = id; this.name = name; this.unitPrice = unitPrice; }
+
+    // Returns the shared ref for this id when name and price still match, so millions of lines point at a handful of refs
+    static ProductRef of(String id, String name, Money unitPrice) {
+        ProductRef cached = LATEST.get(id);
+        if (cached != null && cached.name.equals(name) && cached.unitPrice.equals(unitPrice)) return cached;
+        ProductRef ref = new ProductRef(id.intern(), name.intern(), unitPrice);
+        LATEST.put(ref.id, ref);
+        return ref;
+    }
+    static ProductRef of(Product p) { return of(p.getId(), p.getName(), p.getPrice()); }
+
+    public String getId() { return id; }
+    public String getName() { return name; }
+    public Money getUnitPrice() { return unitPrice; }
+}
+
+// One purchased line: what was bought, at what price, how many
+final class OrderLine {
+    private final ProductRef product;
+    private final int quantity;
+    OrderLine(ProductRef product, int quantity) { this.product = product; this.quantity = quantity; }
+    public ProductRef getProduct() { return product; }
+    public int getQuantity() { return quantity; }
+    public Money getLineTotal() { return product.getUnitPrice().times(quantity); }
+}
+
+// Lines and payments are held in flat arrays; OrderLine and PaymentRecord objects are only built on request
+class Order {
+    private final ProductRef[] products;
+    private final int[] quantities;
+    private final Money totalPaid;
+    private final long dateMillis;
+    private final String[] paymentMethods;
+    private final long[] paymentCents;
+    // Snapshots the cart lines so the order keeps the price paid and holds no live Product
+    public Order(List<CartItem> items, Money totalPaid, List<PaymentRecord> payments) {
+        this(snapshot(items), totalPaid, payments, new Date());
+    }
+    Order(OrderLine[] lines, Money totalPaid, List<PaymentRecord> payments, Date date) {
+        this.products = new ProductRef[lines.length];
+        this.quantities = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) { products[i] = lines[i].getProduct(); quantities[i] = lines[i].getQuantity(); }
+        this.totalPaid = totalPaid;
+        this.dateMillis = date.getTime();
+        this.paymentMethods = new String[payments.size()];
+        this.paymentCents = new long[payments.size()];
+        for (int i = 0; i < paymentMethods.length; i++) {
+            paymentMethods[i] = payments.get(i).getMethodName();
+            paymentCents[i] = payments.get(i).getAmount().cents();
+        }
+    }
+    private static OrderLine[] snapshot(List<CartItem> items) {
+        OrderLine[] lines = new OrderLine[items.size()];
+        for (int i = 0; i < lines.length; i++) lines[i] = new OrderLine(ProductRef.of(items.get(i).getProduct()), items.get(i).getQuantity());
+        return lines;
+    }
+    public int lineCount() { return products.length; }
+    public ProductRef getProductAt(int line) { return products[line]; }
+    public int getQuantityAt(int line) { return quantities[line]; }
+    public List<OrderLine> getLines() {
+        List<OrderLine> lines = new ArrayList<>(products.length);
+        for (int i = 0; i < products.length; i++) lines.add(new OrderLine(products[i], quantities[i]));
+        return lines;
+    }
+    public Money getTotalPaid() { return totalPaid; }
+    public Date getDate() { return new Date(dateMillis); }
+    public long getDateMillis() { return dateMillis; }
+    public List<PaymentRecord> getPayments() {
+        List<PaymentRecord> records = new ArrayList<>(paymentMethods.length);
+        for (int i = 0; i < paymentMethods.length; i++) records.add(new PaymentRecord(paymentMethods[i], Money.ofCents(paymentCents[i])));
+        return records;
+    }
+    public String getPaymentMethodAt(int i) { return paymentMethods[i]; }
+    public long getPaymentCentsAt(int i) { return paymentCents[i]; }
+    public int paymentCount() { return paymentMethods.length; }
+    public void displayOrder() {
+        ReportSink sink = ReportSink.console();
+        ShopRenderer.order(sink, this);
+        sink.flush();
+    }
+}
+
+// One page of a cursor walk; pass nextCursor back to continue, -1 means the end was reached
+class CursorPage<T> {
+    private final List<T> items;
+    private final long nextCursor;
+    public CursorPage(List<T> items, long nextCursor) { this.items = items; this.nextCursor = nextCursor; }
+    public List<T> getItems() { return items; }
+    public long getNextCursor() { return nextCursor; }
+    public boolean hasMore() { return nextCursor >= 0; }
+}
+
+// Append-only order history kept in encoded columns instead of Order object graphs.
+// Dates, totals and blob offsets are primitive arrays; lines and payments are varint-encoded into one byte
+// array, with product refs and payment method names dictionary-encoded. Orders are decoded only when read.
+// The columns fill pages of PAGE_ORDERS orders; a full page goes to OrderPageFile and leaves the heap, so a
+// customer keeps one open page, the dictionaries and 20 bytes per spilled page however long the history gets.
+class OrderHistory {
+    static final int PAGE_ORDERS = Math.max(1, Integer.getInteger("shop.historyPageOrders", 4096));
+
+    // One page of columns; offsets point into this page's blob. Spilled pages are read back whole and never change.
+    private static final class Page {
+        long[] dates, totals;
+        int[] offsets;
+        byte[] blob;
+        int count, blobSize;
+
+        Page(int capacity, int blobCapacity) {
+            dates = new long[capacity]; totals = new long[capacity]; offsets = new int[capacity]; blob = new byte[blobCapacity];
+        }
+
+        void writeVar(long v) {
+            if (blobSize + 10 > blob.length) blob = Arrays.copyOf(blob, Math.max(blob.length * 2, blobSize + 10));
+            while ((v & ~0x7FL) != 0) {
+                blob[blobSize++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            blob[blobSize++] = (byte) v;
+        }
+
+        // First slot dated at or after millis, or count
+        int firstAtOrAfter(long millis) {
+            int lo = 0, hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (dates[mid] < millis) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        ByteBuffer encode() {
+            ByteBuffer buf = ByteBuffer.allocate(8 + 20 * count + blobSize).putInt(count).putInt(blobSize);
+            for (int i = 0; i < count; i++) buf.putLong(dates[i]);
+            for (int i = 0; i < count; i++) buf.putLong(totals[i]);
+            for (int i = 0; i < count; i++) buf.putInt(offsets[i]);
+            return buf.put(blob, 0, blobSize).flip();
+        }
+
+        static Page decode(ByteBuffer buf) {
+            Page p = new Page(buf.getInt(), buf.getInt());
+            p.count = p.dates.length; p.blobSize = p.blob.length;
+            for (int i = 0; i < p.count; i++) p.dates[i] = buf.getLong();
+            for (int i = 0; i < p.count; i++) p.totals[i] = buf.getLong();
+            for (int i = 0; i < p.count; i++) p.offsets[i] = buf.getInt();
+            buf.get(p.blob);
+            return p;
+        }
+    }
+
+    private Page open = new Page(8, 256);
+    // Spilled pages, oldest first: where each sits in OrderPageFile, and its first order's date for range lookups
+    private long[] spillPos = new long[4], spillFirstDate = new long[4];
+    private int[] spillLen = new int[4];
+    private int spilled, count;
+    private long spilledCents;
+    // Sequential reads (paging, streams) touch one spilled page many times in a row
+    private Page lastRead;
+    private int lastReadPage = -1;
+    private final List<ProductRef> products = new ArrayList<>();
+    private final Map<ProductRef, Integer> productCodes = new IdentityHashMap<>();
+    private final List<String> methods = new ArrayList<>();
+    private final Map<String, Integer> methodCodes = new HashMap<>();
+
+    // Orders must arrive in placement order so the date column stays sorted for range lookups
+    public synchronized void append(Order order) {
+        Page page = open;
+        if (page.count == page.dates.length) {
+            int grown = Math.min(page.count * 2, PAGE_ORDERS);
+            page.dates = Arrays.copyOf(page.dates, grown);
+            page.totals = Arrays.copyOf(page.totals, grown);
+            page.offsets = Arrays.copyOf(page.offsets, grown);
+        }
+        int slot = page.count;
+        page.dates[slot] = order.getDateMillis();
+        page.totals[slot] = order.getTotalPaid().cents();
+        page.offsets[slot] = page.blobSize;
+        // Indexed accessors, not getLines()/getPayments(), which build a fresh list on every call
+        int lines = order.lineCount();
+        page.writeVar(lines);
+        for (int i = 0; i < lines; i++) {
+            ProductRef ref = order.getProductAt(i);
+            Integer code = productCodes.get(ref);
+            if (code == null) {
+                code = products.size();
+                products.add(ref);
+                productCodes.put(ref, code);
+            }
+            page.writeVar(code);
+            page.writeVar(order.getQuantityAt(i));
+        }
+        int paid = order.paymentCount();
+        page.writeVar(paid);
+        for (int i = 0; i < paid; i++) {
+            String method = order.getPaymentMethodAt(i);
+            Integer code = methodCodes.get(method);
+            if (code == null) {
+                code = methods.size();
+                methods.add(method);
+                methodCodes.put(method, code);
+            }
+            page.writeVar(code);
+            page.writeVar(order.getPaymentCentsAt(i));
+        }
+        page.count++;
+        count++;
+        if (page.count == PAGE_ORDERS) spill();
+    }
+
+    private void spill() {
+        if (spilled == spillPos.length) {
+            spillPos = Arrays.copyOf(spillPos, spilled * 2);
+            spillFirstDate = Arrays.copyOf(spillFirstDate, spilled * 2);
+            spillLen = Arrays.copyOf(spillLen, spilled * 2);
+        }
+        ByteBuffer bytes = open.encode();
+        spillLen[spilled] = bytes.remaining();
+        spillPos[spilled] = OrderPageFile.get().write(bytes);
+        spillFirstDate[spilled] = open.dates[0];
+        for (int i = 0; i < open.count; i++) spilledCents = Math.addExact(spilledCents, open.totals[i]);
+        spilled++;
+        open = new Page(8, 256);
+    }
+
+    private Page page(int index) {
+        if (index == spilled) return open;
+        if (index != lastReadPage) {
+            lastRead = Page.decode(OrderPageFile.get().read(spillPos[index], spillLen[index]));
+            lastReadPage = index;
+        }
+        return lastRead;
+    }
+
+    public synchronized int size() { return count; }
+    public synchronized boolean isEmpty() { return count == 0; }
+
+    public synchronized Order get(int index) {
+        if (index < 0 || index >= count) throw new IndexOutOfBoundsException("Order " + index);
+        Page page = page(index / PAGE_ORDERS);
+        int slot = index % PAGE_ORDERS;
+        int[] pos = { page.offsets[slot] };
+        int lines = (int) readVar(page.blob, pos);
+        OrderLine[] items = new OrderLine[lines];
+        for (int i = 0; i < lines; i++) items[i] = new OrderLine(products.get((int) readVar(page.blob, pos)), (int) readVar(page.blob, pos));
+        int paid = (int) readVar(page.blob, pos);
+        List<PaymentRecord> payments = new ArrayList<>(paid);
+        for (int i = 0; i < paid; i++) payments.add(new PaymentRecord(methods.get((int) readVar(page.blob, pos)), Money.ofCents(readVar(page.blob, pos))));
+        return new Order(items, Money.ofCents(page.totals[slot]), payments, new Date(page.dates[slot]));
+    }
+
+    // The cursor is the position of the next order, oldest first; start with 0
+    public CursorPage<Order> page(long cursor, int limit) throws ShoppingException {
+        if (cursor < 0 || limit <= 0) throw new ShoppingException("Invalid page request.");
+        int end;
+        synchronized (this) { end = (int) Math.min(count, cursor + limit); }
+        List<Order> out = new ArrayList<>(limit);
+        for (long i = cursor; i < end; i++) out.add(get((int) i));
+        return new CursorPage<>(out, end < size() ? end : -1);
+    }
+
+    // Lazily decodes orders as the stream is consumed; covers orders present when the stream was created
+    public Stream<Order> stream() { return stream(0, size()); }
+
+    // Orders placed in [from, to), found by binary search on the page dates, then within one page
+    public Stream<Order> between(Date from, Date to) {
+        int lo, hi;
+        synchronized (this) {
+            lo = firstAtOrAfter(from.getTime());
+            hi = firstAtOrAfter(to.getTime());
+        }
+        return stream(lo, hi);
+    }
+
+    private Stream<Order> stream(int from, int to) { return IntStream.range(from, Math.max(from, to)).mapToObj(this::get); }
+
+    // Sum of totals without decoding a single order
+    public synchronized Money totalSpent() {
+        long sum = spilledCents;
+        for (int i = 0; i < open.count; i++) sum = Math.addExact(sum, open.totals[i]);
+        return Money.ofCents(sum);
+    }
+
+    // Adds orders [from, to) to the aggregate straight from the encoded columns, without building any Order.
+    // Appends never rewrite bytes already written and spilled pages never change, so the open page's columns
+    // and the spill positions are snapshotted under the lock and read outside it; scans of one history by
+    // several threads do not contend with each other or with checkout.
+    void aggregateInto(SalesAggregate agg, int from, int to) {
+        Page current;
+        long[] positions;
+        int[] lengths;
+        int pages;
+        ProductRef[] refs;
+        String[] names;
+        synchronized (this) {
+            to = Math.min(to, count);
+            current = new Page(0, 0);
+            current.dates = open.dates; current.totals = open.totals; current.offsets = open.offsets; current.blob = open.blob;
+            current.count = open.count;
+            positions = spillPos; lengths = spillLen; pages = spilled;
+            refs = products.toArray(new ProductRef[0]);
+            names = methods.toArray(new String[0]);
+        }
+        if (from >= to) return;
+        // Tallied per dictionary code, then folded into the aggregate once per distinct product and method
+        long[] units = new long[refs.length];
+        long[] payments = new long[names.length], cents = new long[names.length];
+        long revenue = 0;
+        int[] pos = new int[1];
+        for (int p = from / PAGE_ORDERS; p <= (to - 1) / PAGE_ORDERS; p++) {
+            Page page = p == pages ? current : Page.decode(OrderPageFile.get().read(positions[p], lengths[p]));
+            int first = p * PAGE_ORDERS;
+            for (int i = Math.max(from, first) - first, end = Math.min(to, first + PAGE_ORDERS) - first; i < end; i++) {
+                revenue = Math.addExact(revenue, page.totals[i]);
+                pos[0] = page.offsets[i];
+                for (int lines = (int) readVar(page.blob, pos); lines > 0; lines--) {
+                    int code = (int) readVar(page.blob, pos);
+                    units[code] += readVar(page.blob, pos);
+                }
+                for (int n = (int) readVar(page.blob, pos); n > 0; n--) {
+                    int code = (int) readVar(page.blob, pos);
+                    payments[code]++;
+                    cents[code] += readVar(page.blob, pos);
+                }
+            }
+        }
+        agg.addOrders(to - from, revenue);
+        for (int c = 0; c < refs.length; c++) if (units[c] > 0) agg.addProduct(refs[c], units[c]);
+        for (int c = 0; c < names.length; c++) if (payments[c] > 0) agg.addPayments(names[c], payments[c], cents[c]);
+    }
+
+    // The boundary lies in the page before the first one that starts at or after millis
+    private int firstAtOrAfter(long millis) {
+        int lo = 0, hi = spilled + 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long first = mid < spilled ? spillFirstDate[mid] : open.count > 0 ? open.dates[0] : Long.MAX_VALUE;
+            if (first < millis) lo = mid + 1; else hi = mid;
+        }
+        if (lo == 0) return 0;
+        return (lo - 1) * PAGE_ORDERS + page(lo - 1).firstAtOrAfter(millis);
+    }
+
+    private static long readVar(byte[] blob, int[] pos) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = blob[pos[0]++];
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+    }
+}
+
+// Process-wide scratch file holding the spilled pages of every OrderHistory; deleted when the JVM exits.
+// Pages are appended and never rewritten, so reads need no lock.
+final class OrderPageFile {
+    private static OrderPageFile instance;
+    private final FileChannel channel;
+    private long end;
+
+    private OrderPageFile(FileChannel channel) { this.channel = channel; }
+
+    static synchronized OrderPageFile get() {
+        if (instance == null) {
+            try {
+                Path file = Files.createTempFile("shop-order-pages", ".bin");
+                instance = new OrderPageFile(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return instance;
+    }
+
+    synchronized long write(ByteBuffer page) {
+        long at = end;
+        try {
+            while (page.hasRemaining()) channel.write(page, at + page.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        end += page.limit();
+        return at;
+    }
+
+    ByteBuffer read(long pos, int len) {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        try {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, pos + buf.position()) < 0) throw new EOFException("Order page file truncated at " + pos);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buf.flip();
+    }
+}
+
+class Customer {
+    private String name;
+    private Cart cart = new Cart();
+    private final OrderHistory orderHistory = new OrderHistory();
+    private List<PaymentMethod> paymentMethods = new ArrayList<>();
+    private ShopJournal journal;
+    // Serializes server commands on this customer across its connections; see ShopSession
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public Customer(String name) throws ShoppingException {
+        if (name == null || name.trim().isEmpty()) throw new ShoppingException("Customer name cannot be empty.");
+        this.name = name;
+    }
+    public Cart getCart() { return cart; }
+    public String getName() { return name; }
+    public void addOrder(Order order) {
+        orderHistory.append(order);
+        if (journal != null) journal.orderPlaced(name, order);
+    }
+    // Starts recording this customer's orders and wallet changes; call after any restored state is loaded
+    void attachJournal(ShopJournal journal) {
+        this.journal = journal;
+        for (PaymentMethod m : paymentMethods) m.setBalanceListener(journal.balanceListenerFor(name));
+    }
+    public OrderHistory getOrderHistory() { return orderHistory; }
+    ReentrantLock lock() { return lock; }
+    public void showOrderHistory() {
+        ReportSink sink = ReportSink.console();
+        ShopRenderer.orderHistory(sink, name, orderHistory.stream(), RenderFormat.TEXT);
+        sink.flush();
+    }
+    public void addPaymentMethod(PaymentMethod method) {
+        paymentMethods.add(method);
+        if (journal != null) {
+            method.setBalanceListener(journal.balanceListenerFor(name));
+            journal.accountAdded(name, method);
+        }
+    }
+    public void removePaymentMethod(int index) throws ShoppingException {
+        if (index < 0 || index >= paymentMethods.size()) throw new ShoppingException("Invalid payment method index.");
+        PaymentMethod removed = paymentMethods.remove(index);
+        if (journal != null) {
+            removed.setBalanceListener(null);
+            journal.accountRemoved(name, removed);
+        }
+    }
+    public List<PaymentMethod> getPaymentMethods() { return Collections.unmodifiableList(paymentMethods); }
+    public void displayPaymentMethods() {
+        ReportSink sink = ReportSink.console();
+        ShopRenderer.paymentMethods(sink, paymentMethods);
+        sink.flush();
+    }
+}
+
+// =================== Rendering ===================
+
+// JSONL is one JSON object per line, the form the bulk importer reads
+enum RenderFormat { TEXT, JSON, JSONL, CSV }
+
+// Buffered UTF-8 output for listings and reports. Renderers build each row in the reusable line()
+// builder and endLine() encodes it into a byte buffer that only reaches the stream when full or flushed,
+// so a 100K-product listing is a handful of writes instead of one synchronized printf per row.
+final class ReportSink implements Flushable {
+    private static final ThreadLocal<ReportSink> CONSOLE = new ThreadLocal<>();
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos;
+    private final StringBuilder line = new StringBuilder(256);
+
+    ReportSink(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buf = new byte[Math.max(64, bufferSize)];
+    }
+
+    // One per thread, reused across calls and rebuilt if System.out was replaced; flush before printing directly
+    static ReportSink console() {
+        ReportSink sink = CONSOLE.get();
+        if (sink == null || sink.out != System.out) {
+            sink = new ReportSink(System.out, 1 << 16);
+            CONSOLE.set(sink);
+        }
+        return sink;
+    }
+
+    public StringBuilder line() { return line; }
+
+    public ReportSink endLine() {
+        line.append('\n');
+        write(line);
+        line.setLength(0);
+        return this;
+    }
+
+    public ReportSink write(CharSequence cs) {
+        for (int i = 0, n = cs.length(); i < n; i++) {
+            if (pos + 4 > buf.length) drain();
+            char c = cs.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | c >> 6);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(cs.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, cs.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | cp >> 18);
+                buf[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xE0 | c >> 12);
+                buf[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return this;
+    }
+
+    private void drain() {
+        try {
+            out.write(buf, 0, pos);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pos = 0;
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// Text, JSON and CSV renderings of products, carts, orders and wallets, written row by row into a ReportSink.
+// JSON and CSV carry plain decimal amounts ("12.50") and UTC ISO-8601 dates.
+final class ShopRenderer {
+    private ShopRenderer() {}
+
+    // Returns the number of products written
+    static long catalog(ReportSink sink, Iterable<Product> products, RenderFormat format) {
+        StringBuilder sb = sink.line();
+        if (format == RenderFormat.CSV) sink.write("id,category,name,attribute,price,stock\n");
+        if (format == RenderFormat.JSON) sink.write("[\n");
+        long rows = 0;
+        for (Product p : products) {
+            switch (format) {
+                case TEXT:
+                    p.appendDetails(sb);
+                    break;
+                case CSV:
+                    csv(sb, p.getId()).append(',');
+                    csv(sb, p.getCategory()).append(',');
+                    csv(sb, p.getName()).append(',');
+                    csv(sb, p.getAttribute()).append(',');
+                    Money.appendCents(sb, p.getPrice().cents(), false).append(',').append(p.getStock());
+                    break;
+                case JSONL:
+                    jsonProduct(sb, p);
+                    break;
+                case JSON:
+                    // Rows are separated by ",\n", so each row's newline is held back until the next one
+                    if (rows > 0) sb.append(",\n");
+                    jsonProduct(sb, p);
+                    sink.write(sb);
+                    sb.setLength(0);
+                    rows++;
+                    continue;
+            }
+            sink.endLine();
+            rows++;
+        }
+        if (format == RenderFormat.JSON) sink.write(rows == 0 ? "]\n" : "\n]\n");
+        return rows;
+    }
+
+    private static void jsonProduct(StringBuilder sb, Product p) {
+        sb.append("{\"id\":");
+        json(sb, p.getId()).append(",\"category\":");
+        json(sb, p.getCategory()).append(",\"name\":");
+        String label = p.getAttributeLabel();
+        json(sb, p.getName()).append(",\"").append(Character.toLowerCase(label.charAt(0))).append(label, 1, label.length()).append("\":");
+        json(sb, p.getAttribute()).append(",\"price\":");
+        Money.appendCents(sb, p.getPrice().cents(), false).append(",\"stock\":").append(p.getStock()).append('}');
+    }
+
+    static void cart(ReportSink sink, Cart cart) {
+        if (cart.isEmpty()) { sink.write("Cart is empty.\n"); return; }
+        sink.write("Your Cart:\n");
+        StringBuilder sb = sink.line();
+        for (int i = 0; i < cart.size(); i++) {
+            cartLine(sb, cart, i);
+            sink.endLine();
+        }
+    }
+
+    // Subtotal, any discounts, and what is due
+    static void quote(ReportSink sink, PriceQuote quote) {
+        StringBuilder sb = sink.line().append("Subtotal: ");
+        quote.getSubtotal().appendTo(sb);
+        sink.endLine();
+        if (quote.getLineDiscounts().isPositive()) {
+            quote.getLineDiscounts().appendTo(sb.append("Promotions: -"));
+            sink.endLine();
+        }
+        if (quote.getOrderDiscount().isPositive()) {
+            quote.getOrderDiscount().appendTo(sb.append("Discount: -"));
+            sink.endLine();
+        }
+        quote.getTotal().appendTo(sb.append("Total after discount: "));
+        sink.endLine();
+    }
+
+    // "Paid $5.00 using Credit Card ending in 3456. New balance: $95.00", and the same for refunds
+    static void tender(ReportSink sink, String verb, String preposition, PaymentRecord pr) {
+        StringBuilder sb = sink.line().append(verb).append(' ');
+        pr.getAmount().appendTo(sb).append(' ').append(preposition).append(' ').append(pr.getMethod().getDetails()).append(". New balance: ");
+        Money.appendCents(sb, pr.getMethod().getBalanceCents(), true);
+        sink.endLine();
+    }
+
+    // "Name x2 ($5.00 each)", shared with the server's CART reply
+    static StringBuilder cartLine(StringBuilder sb, Cart cart, int i) {
+        Product p = cart.getProductAt(i);
+        sb.append(p.getName()).append(" x").append(cart.getQuantityAt(i)).append(" (");
+        return p.getPrice().appendTo(sb).append(" each)");
+    }
+
+    // One-line order for the server's HISTORY reply: "2024-05-01T13:45:00Z | $12.50 | P1x2 P7x1"
+    static StringBuilder orderSummary(StringBuilder sb, Order o) {
+        isoUtc(sb, o.getDateMillis()).append(" | ");
+        o.getTotalPaid().appendTo(sb).append(" |");
+        for (int i = 0; i < o.lineCount(); i++) sb.append(' ').append(o.getProductAt(i).getId()).append('x').append(o.getQuantityAt(i));
+        return sb;
+    }
+
+    static void order(ReportSink sink, Order order) {
+        StringBuilder sb = sink.line();
+        sb.append("Order Date: ").append(order.getDate()).append(" | Total Paid: ");
+        order.getTotalPaid().appendTo(sb);
+        sink.endLine().write("Items:\n");
+        for (int i = 0; i < order.lineCount(); i++) {
+            ProductRef p = order.getProductAt(i);
+            sb.append("  ").append(p.getName()).append(" x").append(order.getQuantityAt(i)).append(" (");
+            p.getUnitPrice().appendTo(sb).append(" each)");
+            sink.endLine();
+        }
+        sink.write("Payments:\n");
+        for (int i = 0; i < order.paymentCount(); i++) {
+            sb.append("  ").append(order.getPaymentMethodAt(i)).append(": ");
+            Money.appendCents(sb, order.getPaymentCentsAt(i), true);
+            sink.endLine();
+        }
+    }
+
+    // CSV has one row per order line; JSON is an array of orders with nested lines and payments, JSONL one order per line
+    static void orderHistory(ReportSink sink, String customer, Stream<Order> orders, RenderFormat format) {
+        Iterator<Order> it = orders.iterator();
+        StringBuilder sb = sink.line();
+        switch (format) {
+            case TEXT:
+                if (!it.hasNext()) { sink.write("No orders yet.\n"); return; }
+                sb.append("Order History for ").append(customer).append(':');
+                sink.endLine();
+                while (it.hasNext()) order(sink, it.next());
+                return;
+            case CSV:
+                sink.write("customer,date,product_id,product_name,unit_price,quantity,order_total\n");
+                while (it.hasNext()) {
+                    Order o = it.next();
+                    for (int i = 0; i < o.lineCount(); i++) {
+                        ProductRef p = o.getProductAt(i);
+                        csv(sb, customer).append(',');
+                        isoUtc(sb, o.getDateMillis()).append(',');
+                        csv(sb, p.getId()).append(',');
+                        csv(sb, p.getName()).append(',');
+                        Money.appendCents(sb, p.getUnitPrice().cents(), false).append(',').append(o.getQuantityAt(i)).append(',');
+                        Money.appendCents(sb, o.getTotalPaid().cents(), false);
+                        sink.endLine();
+                    }
+                }
+                return;
+            case JSON:
+                sink.write("[\n");
+                for (boolean first = true; it.hasNext(); first = false) {
+                    if (!first) sb.append(",\n");
+                    jsonOrder(sb, customer, it.next());
+                    sink.write(sb);
+                    sb.setLength(0);
+                    if (!it.hasNext()) sink.write("\n");
+                }
+                sink.write("]\n");
+                return;
+            case JSONL:
+                while (it.hasNext()) {
+                    jsonOrder(sb, customer, it.next());
+                    sink.endLine();
+                }
+        }
+    }
+
+    private static void jsonOrder(StringBuilder sb, String customer, Order o) {
+        sb.append("{\"customer\":");
+        json(sb, customer).append(",\"date\":\"");
+        isoUtc(sb, o.getDateMillis()).append("\",\"total\":");
+        Money.appendCents(sb, o.getTotalPaid().cents(), false).append(",\"lines\":[");
+        for (int i = 0; i < o.lineCount(); i++) {
+            ProductRef p = o.getProductAt(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":");
+            json(sb, p.getId()).append(",\"name\":");
+            json(sb, p.getName()).append(",\"unitPrice\":");
+            Money.appendCents(sb, p.getUnitPrice().cents(), false).append(",\"quantity\":").append(o.getQuantityAt(i)).append('}');
+        }
+        sb.append("],\"payments\":[");
+        for (int i = 0; i < o.paymentCount(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"method\":");
+            json(sb, o.getPaymentMethodAt(i)).append(",\"amount\":");
+            Money.appendCents(sb, o.getPaymentCentsAt(i), false).append('}');
+        }
+        sb.append("]}");
+    }
+
+    static void paymentMethods(ReportSink sink, List<PaymentMethod> methods) {
+        if (methods.isEmpty()) { sink.write("No payment methods registered.\n"); return; }
+        sink.write("Registered Payment Methods:\n");
+        StringBuilder sb = sink.line();
+        for (int i = 0; i < methods.size(); i++) {
+            paymentMethodLine(sb, methods, i);
+            sink.endLine();
+        }
+    }
+
+    // "1. Credit Card ending in 3456 | Balance: $95.00", shared with the server's PAYMENTS reply
+    static StringBuilder paymentMethodLine(StringBuilder sb, List<PaymentMethod> methods, int i) {
+        PaymentMethod m = methods.get(i);
+        sb.append(i + 1).append(". ").append(m.getDetails()).append(" | Balance: ");
+        return Money.appendCents(sb, m.getBalanceCents(), true);
+    }
+
+    static StringBuilder csv(StringBuilder sb, String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) return sb.append(value);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') sb.append('"');
+            sb.append(c);
+        }
+        return sb.append('"');
+    }
+
+    static StringBuilder json(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+
+    // "2024-05-01T13:45:00Z" from epoch millis, using the days-to-civil conversion instead of a formatter
+    static StringBuilder isoUtc(StringBuilder sb, long millis) {
+        long days = Math.floorDiv(millis, 86_400_000L);
+        long secs = Math.floorMod(millis, 86_400_000L) / 1000;
+        long z = days + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long doe = z - era * 146_097;
+        long yoe = (doe - doe / 1460 + doe / 36_524 - doe / 146_096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        sb.append(year).append('-');
+        two(sb, month).append('-');
+        two(sb, day).append('T');
+        two(sb, secs / 3600).append(':');
+        two(sb, secs / 60 % 60).append(':');
+        return two(sb, secs % 60).append('Z');
+    }
+
+    private static StringBuilder two(StringBuilder sb, long v) {
+        if (v < 10) sb.append('0');
+        return sb.append(v);
+    }
+}
+
+// =================== Bulk Import/Export ===================
+
+final class ImportError {
+    private final long line;
+    private final String message;
+    ImportError(long line, String message) { this.line = line; this.message = message; }
+    public long getLine() { return line; }
+    public String getMessage() { return message; }
+    @Override public String toString() { return "line " + line + ": " + message; }
+}
+
+// Outcome of one import; rejected rows are listed (up to MAX_LISTED_ERRORS) but never stop the load
+final class ImportReport {
+    static final int MAX_LISTED_ERRORS = 1000;
+    private final long rows, imported, errorCount, nanos;
+    private final List<ImportError> errors;
+
+    ImportReport(long rows, long imported, long errorCount, List<ImportError> errors, long nanos) {
+        this.rows = rows; this.imported = imported; this.errorCount = errorCount; this.errors = errors; this.nanos = nanos;
+    }
+    public long getRows() { return rows; }
+    public long getImported() { return imported; }
+    public long getErrorCount() { return errorCount; }
+    public List<ImportError> getErrors() { return Collections.unmodifiableList(errors); }
+    public double rowsPerSecond() { return nanos == 0 ? 0 : rows * 1e9 / nanos; }
+    @Override
+    public String toString() {
+        return String.format("Imported %d of %d rows in %.1f ms (%.0f rows/s), %d rejected",
+            imported, rows, nanos / 1e6, rowsPerSecond(), errorCount);
+    }
+}
+
+// Loads supplier feeds (CSV with the exporter's header, or JSON Lines) into a StoreManager. The file is
+// memory-mapped in record-aligned chunks that a fork-join pool parses in parallel; rows are validated by the
+// Product constructors and isProductIdUnique, and each chunk inserts its rows through addProducts in batches.
+// A quoted CSV field may span lines, so CSV records end only at a newline outside quotes.
+class CatalogImporter {
+    static final int DEFAULT_CHUNK_BYTES = 4 << 20;
+    private static final int BATCH = 1024;
+
+    private final StoreManager store;
+    private final int chunkBytes;
+    private final ForkJoinPool pool;
+
+    CatalogImporter(StoreManager store) { this(store, DEFAULT_CHUNK_BYTES, ForkJoinPool.commonPool()); }
+
+    CatalogImporter(StoreManager store, int chunkBytes, ForkJoinPool pool) {
+        this.store = store; this.chunkBytes = chunkBytes; this.pool = pool;
+    }
+
+    private static final class ChunkResult {
+        long lines, rows, imported, errorCount;
+        final List<ImportError> errors = new ArrayList<>();
+    }
+
+    public ImportReport importFile(Path file) throws IOException {
+        String lower = file.getFileName().toString().toLowerCase();
+        boolean jsonLines = lower.endsWith(".jsonl") || lower.endsWith(".ndjson") || lower.endsWith(".json");
+        long t0 = System.nanoTime();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] starts = chunkStarts(ch, !jsonLines);
+            List<ChunkResult> chunks = pool.invoke(new ParseTask(ch, starts, 0, starts.length - 1, jsonLines));
+            // Chunks only know their own line counts; turn their errors' local line numbers into file line numbers
+            long rows = 0, imported = 0, errorCount = 0, lineBase = 0;
+            List<ImportError> errors = new ArrayList<>();
+            for (ChunkResult c : chunks) {
+                rows += c.rows;
+                imported += c.imported;
+                errorCount += c.errorCount;
+                c.errors.sort(Comparator.comparingLong(ImportError::getLine));
+                for (ImportError e : c.errors) {
+                    if (errors.size() == ImportReport.MAX_LISTED_ERRORS) break;
+                    errors.add(new ImportError(lineBase + e.getLine(), e.getMessage()));
+                }
+                lineBase += c.lines;
+            }
+            return new ImportReport(rows, imported, errorCount, errors, System.nanoTime() - t0);
+        }
+    }
+
+    // Offsets where chunks begin, each just after a record's newline, plus the file size as the final end
+    private long[] chunkStarts(FileChannel ch, boolean quotes) throws IOException {
+        long size = ch.size();
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        for (long target = chunkBytes; target < size; ) {
+            long next = nextRecordStart(ch, starts.get(starts.size() - 1), target, size, quotes);
+            if (next >= size) break;
+            starts.add(next);
+            target = next + chunkBytes;
+        }
+        starts.add(size);
+        return starts.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    // First offset past target that follows a newline ending a record. With quotes the quote state is only
+    // known at a record start, so the scan runs from the previous chunk's start rather than from target.
+    private static long nextRecordStart(FileChannel ch, long from, long target, long size, boolean quotes) throws IOException {
+        boolean quoted = false;
+        for (long window = quotes ? from : target; window < size; window += 1 << 16) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, window, Math.min(1 << 16, size - window));
+            for (int i = 0; i < buf.limit(); i++) {
+                byte b = buf.get(i);
+                if (b == '"' && quotes) quoted = !quoted;
+                else if (b == '\n' && !quoted && window + i >= target) return window + i + 1;
+            }
+        }
+        return size;
+    }
+
+    private final class ParseTask extends RecursiveTask<List<ChunkResult>> {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel ch;
+        private final long[] starts;
+        private final int lo, hi;
+        private final boolean jsonLines;
+
+        ParseTask(FileChannel ch, long[] starts, int lo, int hi, boolean jsonLines) {
+            this.ch = ch; this.starts = starts; this.lo = lo; this.hi = hi; this.jsonLines = jsonLines;
+        }
+
+        @Override
+        protected List<ChunkResult> compute() {
+            if (hi - lo <= 1) {
+                List<ChunkResult> one = new ArrayList<>(1);
+                if (hi > lo) one.add(parseChunk(ch, starts[lo], starts[hi], lo == 0, jsonLines));
+                return one;
+            }
+            int mid = (lo + hi) >>> 1;
+            ParseTask left = new ParseTask(ch, starts, lo, mid, jsonLines);
+            left.fork();
+            List<ChunkResult> right = new ParseTask(ch, starts, mid, hi, jsonLines).compute();
+            List<ChunkResult> all = left.join();
+            all.addAll(right);
+            return all;
+        }
+    }
+
+    private ChunkResult parseChunk(FileChannel ch, long start, long end, boolean first, boolean jsonLines) {
+        ChunkResult result = new ChunkResult();
+        MappedByteBuffer buf;
+        try {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<Product> batch = new ArrayList<>(BATCH);
+        long[] batchLines = new long[BATCH];
+        byte[] line = new byte[256];
+        int pos = 0, limit = buf.limit();
+        while (pos < limit) {
+            int eol = pos, breaks = 0;
+            boolean quoted = false;
+            for (; eol < limit; eol++) {
+                byte b = buf.get(eol);
+                if (b == '"' && !jsonLines) quoted = !quoted;
+                else if (b == '\n') {
+                    if (!quoted) break;
+                    breaks++;
+                }
+            }
+            int len = eol - pos;
+            if (len > 0 && buf.get(eol - 1) == '\r') len--;
+            if (len > line.length) line = new byte[Math.max(len, line.length * 2)];
+            buf.get(pos, line, 0, len);
+            pos = eol + 1;
+            // Errors report the line the record starts on
+            long lineNo = ++result.lines;
+            result.lines += breaks;
+            String text = new String(line, 0, len, StandardCharsets.UTF_8);
+            if (text.isBlank()) continue;
+            if (first && lineNo == 1 && !jsonLines && text.startsWith("id,")) continue;
+            result.rows++;
+            try {
+                Product p = jsonLines ? fromJson(text) : fromCsv(text);
+                if (!store.isProductIdUnique(p.getId())) throw new ShoppingException("Product ID " + p.getId() + " already exists.");
+                batchLines[batch.size()] = lineNo;
+                batch.add(p);
+                if (batch.size() == BATCH) load(batch, batchLines, result);
+            } catch (ShoppingException | IllegalArgumentException | ArithmeticException e) {
+                reject(result, lineNo, e.getMessage());
+            }
+        }
+        load(batch, batchLines, result);
+        return result;
+    }
+
+    private void load(List<Product> batch, long[] batchLines, ChunkResult result) {
+        if (batch.isEmpty()) return;
+        List<Product> duplicates = store.addProducts(batch);
+        result.imported += batch.size() - duplicates.size();
+        if (!duplicates.isEmpty()) {
+            // Lost a race with another chunk or an earlier row of this file
+            Set<Product> rejected = Collections.newSetFromMap(new IdentityHashMap<>());
+            rejected.addAll(duplicates);
+            for (int i = 0; i < batch.size(); i++)
+                if (rejected.contains(batch.get(i))) reject(result, batchLines[i], "Product ID " + batch.get(i).getId() + " already exists.");
+        }
+        batch.clear();
+    }
+
+    private static void reject(ChunkResult result, long line, String message) {
+        result.errorCount++;
+        if (result.errors.size() < ImportReport.MAX_LISTED_ERRORS) result.errors.add(new ImportError(line, message));
+    }
+
+    // id,category,name,attribute,price,stock with RFC 4180 quoting
+    static Product fromCsv(String line) throws ShoppingException {
+        List<String> f = new ArrayList<>(6);
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') cell.append(c);
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"') { cell.append('"'); i++; }
+                else quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                f.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        f.add(cell.toString());
+        if (f.size() != 6) throw new ShoppingException("Expected 6 fields but found " + f.size());
+        return build(f.get(0), f.get(1), f.get(2), f.get(3), f.get(4), f.get(5));
+    }
+
+    // One flat object per line, as the exporter writes: {"id":..,"category":..,"name":..,"brand"|"size":..,"price":..,"stock":..}
+    static Product fromJson(String line) throws ShoppingException {
+        Map<String, String> f = new HashMap<>();
+        int i = skipSpace(line, 0);
+        if (i >= line.length() || line.charAt(i) != '{') throw new ShoppingException("Expected a JSON object");
+        i = skipSpace(line, i + 1);
+        while (i < line.length() && line.charAt(i) != '}') {
+            StringBuilder key = new StringBuilder();
+            i = skipSpace(line, jsonString(line, i, key));
+            if (i >= line.length() || line.charAt(i) != ':') throw new ShoppingException("Expected ':' after \"" + key + "\"");
+            i = skipSpace(line, i + 1);
+            StringBuilder value = new StringBuilder();
+            if (i < line.length() && line.charAt(i) == '"') {
+                i = jsonString(line, i, value);
+            } else {
+                while (i < line.length() && ",} \t".indexOf(line.charAt(i)) < 0) value.append(line.charAt(i++));
+            }
+            f.put(key.toString(), value.toString());
+            i = skipSpace(line, i);
+            if (i < line.length() && line.charAt(i) == ',') i = skipSpace(line, i + 1);
+        }
+        if (i >= line.length()) throw new ShoppingException("Unterminated JSON object");
+        String attribute = f.containsKey("brand") ? f.get("brand") : f.containsKey("size") ? f.get("size") : f.get("attribute");
+        return build(f.get("id"), f.get("category"), f.get("name"), attribute, f.get("price"), f.get("stock"));
+    }
+
+    private static int skipSpace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+
+    // Reads the string literal starting at s[i] == '"' into out; returns the index after the closing quote
+    private static int jsonString(String s, int i, StringBuilder out) throws ShoppingException {
+        if (i >= s.length() || s.charAt(i) != '"') throw new ShoppingException("Expected a JSON string at column " + (i + 1));
+        for (i++; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') return i + 1;
+            if (c != '\\') { out.append(c); continue; }
+            if (++i >= s.length()) break;
+            char e = s.charAt(i);
+            switch (e) {
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'u':
+                    if (i + 4 >= s.length()) throw new ShoppingException("Bad \\u escape");
+                    out.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default: out.append(e);
+            }
+        }
+        throw new ShoppingException("Unterminated JSON string");
+    }
+
+    private static Product build(String id, String category, String name, String attribute, String price, String stock) throws ShoppingException {
+        if (id == null || id.isBlank()) throw new ShoppingException("Missing product id");
+        if (name == null || name.isBlank()) throw new ShoppingException("Missing name for " + id);
+        if (attribute == null || price == null || stock == null) throw new ShoppingException("Missing attribute, price or stock for " + id);
+        Money p = Money.parse(price.trim());
+        int s = Integer.parseInt(stock.trim());
+        String kind = category == null ? "" : category.trim();
+        if (kind.equalsIgnoreCase("Electronics") || kind.equalsIgnoreCase("E")) return new Electronics(id.trim(), name, p, s, attribute);
+        if (kind.equalsIgnoreCase("Clothing") || kind.equalsIgnoreCase("C")) return new Clothing(id.trim(), name, p, s, attribute);
+        throw new ShoppingException("Unknown category '" + kind + "' for " + id);
+    }
+}
+
+// Streams the catalog to a file in the importer's formats, chosen by extension: CSV, or JSON Lines for
+// .jsonl/.ndjson/.json, so that anything exported can be imported again
+final class CatalogExporter {
+    private CatalogExporter() {}
+
+    static RenderFormat formatFor(Path file) {
+        String lower = file.getFileName().toString().toLowerCase();
+        if (lower.endsWith(".jsonl") || lower.endsWith(".ndjson") || lower.endsWith(".json")) return RenderFormat.JSONL;
+        return RenderFormat.CSV;
+    }
+
+    static long export(Iterable<Product> products, Path file) throws IOException {
+        long rows = 0;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            ReportSink sink = new ReportSink(out, 1 << 16);
+            rows = ShopRenderer.catalog(sink, products, formatFor(file));
+            sink.flush();
+        }
+        return rows;
+    }
+}
+
+// =================== Admin Authentication ===================
+
+class AdminSession {
+    private static final Map<String, String> ADMINS = Map.of("admin", "1234");
+    private boolean loggedIn = false;
+
+    public boolean isLoggedIn() { return loggedIn; }
+
+    public boolean login(String username, String password) {
+        long t = ShopMetrics.ADMIN_LOGIN.start();
+        try {
+            if (ADMINS.containsKey(username) && ADMINS.get(username).equals(password)) {
+                loggedIn = true;
+                return true;
+            }
+            ShopMetrics.ADMIN_LOGIN_FAILED.increment();
+            return false;
+        } finally {
+            ShopMetrics.ADMIN_LOGIN.recordSince(t);
+        }
+    }
+
+    public void logout() { loggedIn = false; }
+}
+
+// =================== Product Storage ===================
+
+// Where the catalog lives. Heap storage hands out the one live Product per id; other storages build a fresh
+// instance per load, and StoreManager interns those so a product stays one object while anything uses it.
+interface ProductStorage extends Closeable {
+    Product load(String id);
+    // False if the id is taken
+    boolean insert(Product product);
+    // One flag per product as insert would return it; storages that sync each insert sync a batch once
+    default boolean[] insertAll(List<Product> products) {
+        boolean[] added = new boolean[products.size()];
+        for (int i = 0; i < added.length; i++) added[i] = insert(products.get(i));
+        return added;
+    }
+    // Stock is the only mutable product state; storages that copy products are kept current through this
+    void updateStock(String id, int stock);
+    boolean contains(String id);
+    int size();
+    // Full scan in storage order
+    Iterator<Product> iterator();
+    default boolean holdsLiveInstances() { return false; }
+    @Override default void close() throws IOException {}
+}
+
+final class HeapProductStorage implements ProductStorage {
+    private final ConcurrentMap<String, Product> products = new ConcurrentHashMap<>();
+
+    @Override public Product load(String id) { return products.get(id); }
+    @Override public boolean insert(Product product) { return products.putIfAbsent(product.getId(), product) == null; }
+    @Override public void updateStock(String id, int stock) {}
+    @Override public boolean contains(String id) { return products.containsKey(id); }
+    @Override public int size() { return products.size(); }
+    @Override public Iterator<Product> iterator() { return products.values().iterator(); }
+    @Override public boolean holdsLiveInstances() { return true; }
+    Collection<Product> values() { return products.values(); }
+}
+
+// Append-only product file. Ids are found through an open-addressing table of (hash, offset) slots mapped from
+// a scratch file beside it, rebuilt on open, so the OS pages the index and no per-product state is on the heap.
+// Record: [int length][int stock][byte type][long price cents][UTF id][UTF name][UTF attribute], where
+// length covers everything after itself. Stock is rewritten in place, so a record never moves.
+final class DiskProductStorage implements ProductStorage {
+    private static final byte ELECTRONICS = 1, CLOTHING = 2;
+    // Stock, type, price and three empty UTF strings
+    private static final int MIN_RECORD = 4 + 1 + 8 + 3 * 2, ID_AT = 4 + 4 + 1 + 8;
+    // Slot: [int hash][long offset + 1]; a zero offset means empty
+    private static final int SLOT = 12;
+    private final FileChannel channel, indexChannel;
+    // Replaced whole when it grows; each table is mapped from the region after the previous one
+    private volatile MappedByteBuffer index;
+    private long indexRegion;
+    private volatile int count;
+    // Records below end are complete; lookups ignore slots past it
+    private volatile long end;
+
+    private DiskProductStorage(FileChannel channel, FileChannel indexChannel) throws IOException {
+        this.channel = channel; this.indexChannel = indexChannel;
+        this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, 1024 * SLOT);
+    }
+
+    static DiskProductStorage open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel indexChannel = FileChannel.open(file.resolveSibling(file.getFileName() + ".idx"), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        DiskProductStorage s = new DiskProductStorage(channel, indexChannel);
+        s.rebuildIndex(file);
+        return s;
+    }
+
+    private void rebuildIndex(Path file) throws IOException {
+        long size = channel.size(), pos = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            while (pos + 4 <= size) {
+                int len = in.readInt();
+                // A record cut short by a crash mid-append is dropped and later overwritten
+                if (pos + 4 + len > size) break;
+                if (len < MIN_RECORD) throw new IOException("Corrupt product file at " + pos);
+                byte[] body = new byte[len];
+                in.readFully(body);
+                DataInputStream rec = new DataInputStream(new ByteArrayInputStream(body, 13, len - 13));
+                addSlot(rec.readUTF(), pos);
+                pos += 4 + len;
+            }
+        }
+        end = pos;
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Offset of the record holding id, or -1; slots whose hash matches are confirmed against the record's id
+    private long find(String id) throws IOException {
+        MappedByteBuffer table = index;
+        long limit = end;
+        int h = hash(id), mask = table.capacity() / SLOT - 1;
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            long pos = table.getLong(SLOT * slot + 4) - 1;
+            if (pos < 0) return -1;
+            if (table.getInt(SLOT * slot) == h && pos < limit && id.equals(idAt(pos))) return pos;
+        }
+    }
+
+    private String idAt(long pos) throws IOException {
+        ByteBuffer len = ByteBuffer.allocate(2);
+        readFully(len, pos + ID_AT);
+        ByteBuffer utf = ByteBuffer.allocate(2 + (len.getShort(0) & 0xFFFF)).put(len.flip());
+        readFully(utf, pos + ID_AT);
+        return new DataInputStream(new ByteArrayInputStream(utf.array())).readUTF();
+    }
+
+    // Callers hold the lock, or run before the storage is shared
+    private void addSlot(String id, long pos) throws IOException {
+        // Keep the table at most half full
+        if (2 * (count + 1) > index.capacity() / SLOT) {
+            MappedByteBuffer old = index;
+            long region = indexRegion + old.capacity();
+            if ((long) old.capacity() * 2 > Integer.MAX_VALUE) throw new IOException("Product file index over 2 GiB");
+            MappedByteBuffer grown = indexChannel.map(FileChannel.MapMode.READ_WRITE, region, old.capacity() * 2);
+            for (int slot = 0; slot < old.capacity() / SLOT; slot++) {
+                long at = old.getLong(SLOT * slot + 4);
+                if (at != 0) putSlot(grown, old.getInt(SLOT * slot), at);
+            }
+            indexRegion = region;
+            index = grown;
+        }
+        putSlot(index, hash(id), pos + 1);
+        count++;
+    }
+
+    private static void putSlot(MappedByteBuffer table, int h, long at) {
+        int mask = table.capacity() / SLOT - 1;
+        int slot = h & mask;
+        while (table.getLong(SLOT * slot + 4) != 0) slot = (slot + 1) & mask;
+        table.putInt(SLOT * slot, h);
+        table.putLong(SLOT * slot + 4, at);
+    }
+
+    @Override
+    public Product load(String id) {
+        try {
+            long pos = find(id);
+            return pos < 0 ? null : read(pos);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Product read(long pos) throws IOException {
+        // One read covers a typical record; longer ones take a second
+        ByteBuffer buf = ByteBuffer.allocate(128);
+        while (buf.position() < 4) {
+            if (channel.read(buf, pos + buf.position()) < 0) throw new EOFException("Product file truncated at " + pos);
+        }
+        int len = buf.getInt(0);
+        if (len + 4 > buf.capacity()) buf = ByteBuffer.allocate(len + 4).put(buf.flip());
+        buf.limit(len + 4);
+        readFully(buf, pos);
+        return decode(buf.array(), 4, len, pos);
+    }
+
+    private static Product decode(byte[] bytes, int off, int len, long pos) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, off, len));
+        int stock = in.readInt();
+        byte type = in.readByte();
+        Money price = Money.ofCents(in.readLong());
+        String id = in.readUTF(), name = in.readUTF(), attr = in.readUTF();
+        try {
+            return type == ELECTRONICS ? new Electronics(id, name, price, stock, attr) : new Clothing(id, name, price, stock, attr);
+        } catch (ShoppingException e) {
+            throw new IllegalStateException("Corrupt product record at " + pos, e);
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) throw new EOFException("Product file truncated at " + pos);
+        }
+    }
+
+    // Durable before it returns: the record is forced to disk
+    @Override
+    public synchronized boolean insert(Product p) {
+        try {
+            if (!append(p)) return false;
+            channel.force(false);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The whole batch is forced once
+    @Override
+    public synchronized boolean[] insertAll(List<Product> products) {
+        boolean[] added = new boolean[products.size()];
+        try {
+            for (int i = 0; i < added.length; i++) added[i] = append(products.get(i));
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return added;
+    }
+
+    private boolean append(Product p) throws IOException {
+        if (find(p.getId()) >= 0) return false;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(p.getStock());
+        out.writeByte(p instanceof Electronics ? ELECTRONICS : CLOTHING);
+        out.writeLong(p.getPrice().cents());
+        out.writeUTF(p.getId()); out.writeUTF(p.getName()); out.writeUTF(p.getAttribute());
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        buf.putInt(0, buf.limit() - 4);
+        long pos = end;
+        while (buf.hasRemaining()) channel.write(buf, pos + buf.position());
+        addSlot(p.getId(), pos);
+        end = pos + buf.limit();
+        return true;
+    }
+
+    @Override
+    public void updateStock(String id, int stock) {
+        ByteBuffer buf = ByteBuffer.allocate(4).putInt(0, stock);
+        try {
+            long pos = find(id);
+            if (pos < 0) return;
+            while (buf.hasRemaining()) channel.write(buf, pos + 4 + buf.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean contains(String id) {
+        try {
+            return find(id) >= 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override public int size() { return count; }
+
+    // Walks the file front to back through a 64 KB window, so a full scan is sequential reads rather than a
+    // positioned read per product; covers the records present when it was created
+    @Override
+    public Iterator<Product> iterator() {
+        long limit;
+        synchronized (this) { limit = end; }
+        return new Iterator<Product>() {
+            private ByteBuffer window = ByteBuffer.allocate(1 << 16).limit(0);
+            private long windowStart, pos;
+
+            @Override public boolean hasNext() { return pos < limit; }
+
+            @Override
+            public Product next() {
+                if (pos >= limit) throw new NoSuchElementException();
+                try {
+                    int len = window(4).getInt((int) (pos - windowStart));
+                    Product p = decode(window(4 + len).array(), (int) (pos - windowStart) + 4, len, pos);
+                    pos += 4 + len;
+                    return p;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            // Makes [pos, pos + bytes) readable from window, refilling it from pos when it runs past the end
+            private ByteBuffer window(int bytes) throws IOException {
+                if (pos + bytes <= windowStart + window.limit()) return window;
+                if (bytes > window.capacity()) window = ByteBuffer.allocate(Math.max(bytes, window.capacity() * 2));
+                window.clear().limit((int) Math.min(window.capacity(), limit - pos));
+                windowStart = pos;
+                while (window.position() < bytes) {
+                    if (channel.read(window, pos + window.position()) < 0) throw new EOFException("Product file truncated at " + pos);
+                }
+                window.limit(window.position());
+                return window;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.force(true);
+        channel.close();
+        indexChannel.close();
+    }
+}
+
+// Catalog kept outside the Java heap in direct ByteBuffers, so tens of millions of products cost the collector
+// nothing to trace. Rows live in pages of 65536, each page laid out column by column (price, id and name
+// references, stock, attribute code, type); ids and names are length-prefixed UTF-8 in a separate string arena;
+// brands and sizes are dictionary-encoded; and an open-addressing table of (hash, row) pairs finds ids.
+// Loads build a fresh Product from its row, which StoreManager interns and caches like any copying storage: a
+// Product owns its stock counter and listener, so a view over the row could not stand in for one. scan() walks
+// rows through one reusable ProductView instead. Inserts are serialized; loads run concurrently,
+// and only see a row once the volatile row count covers it.
+final class OffHeapProductStorage implements ProductStorage {
+    private static final int PAGE_SHIFT = 16, PAGE_ROWS = 1 << PAGE_SHIFT;
+    // Column offsets within a row page
+    private static final int PRICE = 0, ID_REF = 8 * PAGE_ROWS, NAME_REF = 16 * PAGE_ROWS, STOCK = 24 * PAGE_ROWS,
+        ATTR = 28 * PAGE_ROWS, TYPE = 32 * PAGE_ROWS, PAGE_BYTES = 33 * PAGE_ROWS;
+    private static final int ARENA_BYTES = 1 << 24;
+    private static final byte ELECTRONICS = 1, CLOTHING = 2;
+
+    private volatile ByteBuffer[] pages = new ByteBuffer[0];
+    private volatile ByteBuffer[] arena = new ByteBuffer[0];
+    private int arenaUsed = ARENA_BYTES;
+    private volatile String[] dictionary = new String[16];
+    private final Map<String, Integer> dictionaryCodes = new HashMap<>();
+    // Slots of (int hash, int row + 1); zero row means empty. Replaced whole when it grows.
+    private volatile ByteBuffer index = ByteBuffer.allocateDirect(8 * 1024);
+    private volatile int rows;
+
+    @Override
+    public Product load(String id) {
+        int row = find(id.getBytes(StandardCharsets.UTF_8));
+        return row < 0 ? null : materialize(row);
+    }
+
+    private Product materialize(int row) {
+        ByteBuffer page = pages[row >>> PAGE_SHIFT];
+        int r = row & (PAGE_ROWS - 1);
+        String id = string(page.getLong(ID_REF + 8 * r)), name = string(page.getLong(NAME_REF + 8 * r));
+        Money price = Money.ofCents(page.getLong(PRICE + 8 * r));
+        int stock = page.getInt(STOCK + 4 * r);
+        String attr = dictionary[page.getInt(ATTR + 4 * r)];
+        try {
+            return page.get(TYPE + r) == ELECTRONICS ? new Electronics(id, name, price, stock, attr) : new Clothing(id, name, price, stock, attr);
+        } catch (ShoppingException e) {
+            throw new IllegalStateException("Corrupt product row " + row, e);
+        }
+    }
+
+    private static int hash(byte[] key) {
+        int h = Arrays.hashCode(key) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Row holding the id, or -1
+    private int find(byte[] key) {
+        ByteBuffer table = index;
+        int published = rows;
+        int h = hash(key), mask = table.capacity() / 8 - 1;
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int row = table.getInt(8 * slot + 4) - 1;
+            if (row < 0) return -1;
+            if (table.getInt(8 * slot) == h && row < published && idEquals(row, key)) return row;
+        }
+    }
+
+    private boolean idEquals(int row, byte[] key) {
+        long ref = pages[row >>> PAGE_SHIFT].getLong(ID_REF + 8 * (row & (PAGE_ROWS - 1)));
+        ByteBuffer chunk = arena[(int) (ref >>> 32)];
+        int at = (int) ref;
+        if ((chunk.getShort(at) & 0xFFFF) != key.length) return false;
+        for (int i = 0; i < key.length; i++) if (chunk.get(at + 2 + i) != key[i]) return false;
+        return true;
+    }
+
+    private String string(long ref) {
+        ByteBuffer chunk = arena[(int) (ref >>> 32)];
+        int at = (int) ref, len = chunk.getShort(at) & 0xFFFF;
+        byte[] bytes = new byte[len];
+        chunk.get(at + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) throw new IllegalArgumentException("Product text over 64 KiB: " + s.substring(0, 20) + "...");
+        if (arenaUsed + 2 + bytes.length > ARENA_BYTES) {
+            ByteBuffer[] grown = Arrays.copyOf(arena, arena.length + 1);
+            grown[arena.length] = ByteBuffer.allocateDirect(ARENA_BYTES);
+            arena = grown;
+            arenaUsed = 0;
+        }
+        ByteBuffer chunk = arena[arena.length - 1];
+        chunk.putShort(arenaUsed, (short) bytes.length);
+        chunk.put(arenaUsed + 2, bytes);
+        long ref = (long) (arena.length - 1) << 32 | arenaUsed;
+        arenaUsed += 2 + bytes.length;
+        return ref;
+    }
+
+    private int code(String attr) {
+        Integer code = dictionaryCodes.get(attr);
+        if (code != null) return code;
+        int next = dictionaryCodes.size();
+        String[] dict = dictionary;
+        if (next == dict.length) dict = Arrays.copyOf(dict, next * 2);
+        dict[next] = attr;
+        dictionary = dict;
+        dictionaryCodes.put(attr, next);
+        return next;
+    }
+
+    @Override
+    public synchronized boolean insert(Product p) {
+        byte[] key = p.getId().getBytes(StandardCharsets.UTF_8);
+        if (find(key) >= 0) return false;
+        int row = rows;
+        if ((row >>> PAGE_SHIFT) == pages.length) {
+            ByteBuffer[] grown = Arrays.copyOf(pages, pages.length + 1);
+            grown[pages.length] = ByteBuffer.allocateDirect(PAGE_BYTES);
+            pages = grown;
+        }
+        ByteBuffer page = pages[row >>> PAGE_SHIFT];
+        int r = row & (PAGE_ROWS - 1);
+        page.putLong(PRICE + 8 * r, p.getPrice().cents());
+        page.putLong(ID_REF + 8 * r, putString(p.getId()));
+        page.putLong(NAME_REF + 8 * r, putString(p.getName()));
+        page.putInt(STOCK + 4 * r, p.getStock());
+        page.putInt(ATTR + 4 * r, code(p.getAttribute()));
+        page.put(TYPE + r, p instanceof Electronics ? ELECTRONICS : CLOTHING);
+        // Keep the table at most half full
+        if (2 * (row + 1) > index.capacity() / 8) index = rehash(index.capacity() * 2);
+        putSlot(index, hash(key), row);
+        rows = row + 1;
+        return true;
+    }
+
+    private ByteBuffer rehash(int bytes) {
+        ByteBuffer old = index, table = ByteBuffer.allocateDirect(bytes);
+        for (int slot = 0; slot < old.capacity() / 8; slot++) {
+            int row = old.getInt(8 * slot + 4) - 1;
+            if (row >= 0) putSlot(table, old.getInt(8 * slot), row);
+        }
+        return table;
+    }
+
+    private static void putSlot(ByteBuffer table, int h, int row) {
+        int mask = table.capacity() / 8 - 1;
+        int slot = h & mask;
+        while (table.getInt(8 * slot + 4) != 0) slot = (slot + 1) & mask;
+        table.putInt(8 * slot, h);
+        table.putInt(8 * slot + 4, row + 1);
+    }
+
+    @Override
+    public void updateStock(String id, int stock) {
+        int row = find(id.getBytes(StandardCharsets.UTF_8));
+        if (row >= 0) pages[row >>> PAGE_SHIFT].putInt(STOCK + 4 * (row & (PAGE_ROWS - 1)), stock);
+    }
+
+    @Override public boolean contains(String id) { return find(id.getBytes(StandardCharsets.UTF_8)) >= 0; }
+    @Override public int size() { return rows; }
+
+    @Override
+    public Iterator<Product> iterator() {
+        int end = rows;
+        return new Iterator<Product>() {
+            int next;
+            @Override public boolean hasNext() { return next < end; }
+            @Override public Product next() {
+                if (next >= end) throw new NoSuchElementException();
+                return materialize(next++);
+            }
+        };
+    }
+
+    // Visits every row through a single ProductView, allocating nothing unless the visitor asks for id or name
+    public void scan(Consumer<ProductView> visitor) {
+        ProductView view = new ProductView();
+        for (int row = 0, end = rows; row < end; row++) {
+            view.moveTo(pages[row >>> PAGE_SHIFT], row & (PAGE_ROWS - 1));
+            visitor.accept(view);
+        }
+    }
+
+    public long offHeapBytes() {
+        return (long) pages.length * PAGE_BYTES + (long) arena.length * ARENA_BYTES + index.capacity();
+    }
+
+    @Override
+    public synchronized void close() {
+        // Direct buffers are freed once unreachable
+        pages = new ByteBuffer[0];
+        arena = new ByteBuffer[0];
+        index = ByteBuffer.allocateDirect(8 * 1024);
+        rows = 0;
+    }
+
+    // Read-only window onto one row; scan() moves it along, so copy out whatever outlives the visit
+    final class ProductView {
+        private ByteBuffer page;
+        private int r;
+
+        void moveTo(ByteBuffer page, int r) { this.page = page; this.r = r; }
+
+        public String getId() { return string(page.getLong(ID_REF + 8 * r)); }
+        public String getName() { return string(page.getLong(NAME_REF + 8 * r)); }
+        public long getPriceCents() { return page.getLong(PRICE + 8 * r); }
+        public int getStock() { return page.getInt(STOCK + 4 * r); }
+        public String getCategory() { return page.get(TYPE + r) == ELECTRONICS ? "Electronics" : "Clothing"; }
+        // Brand or size, straight from the dictionary
+        public String getAttribute() { return dictionary[page.getInt(ATTR + 4 * r)]; }
+    }
+}
+
+// Point-in-time cache counters
+final class CacheStats {
+    final long hits, misses, loads, evictions, evictedWeight, rejections, refreshes, weight, entries;
+    CacheStats(long hits, long misses, long loads, long evictions, long evictedWeight, long rejections, long refreshes, long weight, long entries) {
+        this.hits = hits; this.misses = misses; this.loads = loads; this.evictions = evictions; this.evictedWeight = evictedWeight;
+        this.rejections = rejections; this.refreshes = refreshes; this.weight = weight; this.entries = entries;
+    }
+    public double hitRate() { return hits + misses == 0 ? 0 : (double) hits / (hits + misses); }
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d hitRate=%.1f%% loads=%d evictions=%d (%d bytes) rejected=%d refreshes=%d entries=%d weight=%d",
+            hits, misses, hitRate() * 100, loads, evictions, evictedWeight, rejections, refreshes, entries, weight);
+    }
+}
+
+// Frequency estimates for admission: a count-min sketch of 4-bit-range counters that is halved every
+// sampleSize increments, so popularity decays and yesterday's hot keys stop crowding out today's
+final class FrequencySketch {
+    private final byte[][] rows = new byte[4][];
+    private final int mask, sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(1024, expectedEntries) * 2 - 1);
+        for (int i = 0; i < rows.length; i++) rows[i] = new byte[width];
+        mask = width - 1;
+        sampleSize = width * 10;
+    }
+
+    private static int index(int hash, int row) {
+        int h = hash * (0x9E3779B9 + row * 0x632BE5AB);
+        return h ^ (h >>> 16);
+    }
+
+    void increment(Object key) {
+        int hash = key.hashCode();
+        for (int r = 0; r < rows.length; r++) {
+            int i = index(hash, r) & mask;
+            if (rows[r][i] < 15) rows[r][i]++;
+        }
+        if (++additions == sampleSize) {
+            for (byte[] row : rows) for (int i = 0; i < row.length; i++) row[i] >>= 1;
+            additions /= 2;
+        }
+    }
+
+    int frequency(Object key) {
+        int hash = key.hashCode(), min = 15;
+        for (int r = 0; r < rows.length; r++) min = Math.min(min, rows[r][index(hash, r) & mask]);
+        return min;
+    }
+}
+
+// Bounded, weighted read-through cache with W-TinyLFU eviction: new entries land in a small LRU window
+// (1% of the weight budget), then compete for a slot in a segmented LRU main area (probation, and protected
+// at 80% of main). When the cache is over budget, a probation newcomer only displaces the probation victim
+// if the sketch has seen it more often, which keeps one-off scans from flushing hot entries.
+// Hits are lock-free; their reordering is skipped when the lock is busy, as a lossy LRU may do.
+// Entries expire expireAfterNanos after loading; a hit past refreshAfterNanos reloads in the background so
+// hot keys are refreshed ahead of expiry instead of missing. Zero disables either.
+final class BoundedCache<K, V> {
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        final int weight;
+        volatile long loadedAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        int segment;
+        Node<K, V> prev, next;
+        Node(K key, V value, int weight, long loadedAt) { this.key = key; this.value = value; this.weight = weight; this.loadedAt = loadedAt; }
+    }
+
+    // Intrusive LRU list: head is the eldest
+    private static final class AccessOrder<K, V> {
+        Node<K, V> head, tail;
+        long weight;
+        void addLast(Node<K, V> n) {
+            n.prev = tail; n.next = null;
+            if (tail == null) head = n; else tail.next = n;
+            tail = n;
+            weight += n.weight;
+        }
+        void remove(Node<K, V> n) {
+            if (n.prev == null) head = n.next; else n.prev.next = n.next;
+            if (n.next == null) tail = n.prev; else n.next.prev = n.prev;
+            n.prev = n.next = null;
+            weight -= n.weight;
+        }
+        void moveToLast(Node<K, V> n) {
+            if (tail == n) return;
+            remove(n);
+            addLast(n);
+        }
+    }
+
+    private final ConcurrentMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final Function<K, V> loader;
+    private final ToIntFunction<V> weigher;
+    private final long maxWeight, windowMax, protectedMax;
+    private final long expireAfterNanos, refreshAfterNanos;
+    private final Executor refresher;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AccessOrder<K, V> window = new AccessOrder<>(), probation = new AccessOrder<>(), protectedSegment = new AccessOrder<>();
+    private final FrequencySketch sketch;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), loads = new LongAdder(), evictions = new LongAdder(),
+        evictedWeight = new LongAdder(), rejections = new LongAdder(), refreshes = new LongAdder();
+
+    BoundedCache(long maxWeight, int expectedEntries, Function<K, V> loader, ToIntFunction<V> weigher,
+                 long expireAfterNanos, long refreshAfterNanos, Executor refresher) {
+        this.maxWeight = maxWeight;
+        this.windowMax = Math.max(1, maxWeight / 100);
+        this.protectedMax = (maxWeight - windowMax) * 4 / 5;
+        this.loader = loader; this.weigher = weigher;
+        this.expireAfterNanos = expireAfterNanos; this.refreshAfterNanos = refreshAfterNanos;
+        this.refresher = refresher;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    // Cached value, or the loader's (null is not cached)
+    public V get(K key) {
+        Node<K, V> n = data.get(key);
+        long now = System.nanoTime();
+        if (n != null && (expireAfterNanos == 0 || now - n.loadedAt < expireAfterNanos)) {
+            hits.increment();
+            onAccess(n);
+            if (refreshAfterNanos > 0 && now - n.loadedAt >= refreshAfterNanos && n.refreshing.compareAndSet(false, true))
+                refresher.execute(() -> refresh(n));
+            return n.value;
+        }
+        misses.increment();
+        V value = loader.apply(key);
+        loads.increment();
+        if (value != null) put(key, value, now);
+        else if (n != null) invalidate(key);
+        return value;
+    }
+
+    public V getIfPresent(K key) {
+        Node<K, V> n = data.get(key);
+        return n == null ? null : n.value;
+    }
+
+    private void refresh(Node<K, V> n) {
+        try {
+            V value = loader.apply(n.key);
+            loads.increment();
+            refreshes.increment();
+            if (value == null) {
+                invalidate(n.key);
+            } else {
+                n.value = value;
+                n.loadedAt = System.nanoTime();
+            }
+        } finally {
+            n.refreshing.set(false);
+        }
+    }
+
+    private void onAccess(Node<K, V> n) {
+        if (!lock.tryLock()) return;
+        try {
+            if (data.get(n.key) != n) return;
+            sketch.increment(n.key);
+            if (n.segment == WINDOW) {
+                window.moveToLast(n);
+            } else if (n.segment == PROBATION) {
+                probation.remove(n);
+                n.segment = PROTECTED;
+                protectedSegment.addLast(n);
+                while (protectedSegment.weight > protectedMax && protectedSegment.head != null) {
+                    Node<K, V> demoted = protectedSegment.head;
+                    protectedSegment.remove(demoted);
+                    demoted.segment = PROBATION;
+                    probation.addLast(demoted);
+                }
+            } else {
+                protectedSegment.moveToLast(n);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(K key, V value, long now) {
+        int weight = weigher.applyAsInt(value);
+        if (weight > maxWeight) return;
+        Node<K, V> n = new Node<>(key, value, weight, now);
+        lock.lock();
+        try {
+            Node<K, V> old = data.put(key, n);
+            if (old != null) unlink(old);
+            sketch.increment(key);
+            n.segment = WINDOW;
+            window.addLast(n);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evict() {
+        while (window.weight > windowMax && window.head != null) {
+            Node<K, V> candidate = window.head;
+            window.remove(candidate);
+            candidate.segment = PROBATION;
+            probation.addLast(candidate);
+        }
+        while (weight() > maxWeight) {
+            Node<K, V> victim = probation.head, candidate = probation.tail;
+            Node<K, V> out;
+            if (victim == null) {
+                out = protectedSegment.head != null ? protectedSegment.head : window.head;
+            } else if (victim != candidate && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                out = candidate;
+                rejections.increment();
+            } else {
+                out = victim;
+            }
+            data.remove(out.key, out);
+            unlink(out);
+            evictions.increment();
+            evictedWeight.add(out.weight);
+        }
+    }
+
+    private void unlink(Node<K, V> n) {
+        (n.segment == WINDOW ? window : n.segment == PROBATION ? probation : protectedSegment).remove(n);
+    }
+
+    public void invalidate(K key) {
+        lock.lock();
+        try {
+            Node<K, V> n = data.remove(key);
+            if (n != null) unlink(n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long weight() { return window.weight + probation.weight + protectedSegment.weight; }
+
+    public CacheStats stats() {
+        lock.lock();
+        try {
+            return new CacheStats(hits.sum(), misses.sum(), loads.sum(), evictions.sum(), evictedWeight.sum(),
+                rejections.sum(), refreshes.sum(), weight(), data.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+// =================== Store Management ===================
+
+class StoreManager implements Closeable {
+    // Rough retained size of a cached product: object headers, the stock counter and three Latin-1 strings
+    static final ToIntFunction<Product> PRODUCT_WEIGHER =
+        p -> 160 + p.getId().length() + p.getName().length() + p.getAttribute().length();
+
+    private final ProductStorage storage;
+    private final BoundedCache<String, Product> cache;
+    // Products currently handed out for storages that build a fresh object per load. Two live copies of one
+    // product would each CAS their own stock, so every load resolves to whichever instance is still reachable.
+    private final ConcurrentMap<String, LiveRef> live = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Product> collected = new ReferenceQueue<>();
+    private final List<InventoryListener> listeners = new CopyOnWriteArrayList<>();
+    // Null unless the store was built with a search index; search() then scans storage instead
+    private final CatalogIndex index;
+    // Single listener handed to every product; fans out to whoever subscribed on the store
+    private final InventoryListener fanOut = new InventoryListener() {
+        @Override public void productAdded(Product product) { for (InventoryListener l : listeners) l.productAdded(product); }
+        @Override public void productsAdded(List<Product> products) { for (InventoryListener l : listeners) l.productsAdded(products); }
+        @Override public void stockChanged(Product product, int oldStock, int newStock) {
+            for (InventoryListener l : listeners) l.stockChanged(product, oldStock, newStock);
+        }
+    };
+
+    private static final class LiveRef extends WeakReference<Product> {
+        final String id;
+        LiveRef(Product p, ReferenceQueue<Product> queue) { super(p, queue); this.id = p.getId(); }
+    }
+
+    // Everything on the heap, as before
+    public StoreManager() { this(new HeapProductStorage(), 0); }
+
+    // Heap storage gets the search index; disk, off-heap and sharded catalogs only with -Dshop.searchIndex=true,
+    // since the index holds every id, name token and price on the heap
+    public StoreManager(ProductStorage storage, long cacheBytes) {
+        this(storage, cacheBytes, storage.holdsLiveInstances() || Boolean.getBoolean("shop.searchIndex"));
+    }
+
+    // cacheBytes bounds the products kept in memory for storages that do not hold them already. Without the
+    // search index, the heap holds only the cache, the live products and their weak refs.
+    public StoreManager(ProductStorage storage, long cacheBytes, boolean searchIndex) {
+        this.storage = storage;
+        if (storage.holdsLiveInstances()) {
+            cache = null;
+        } else {
+            // No refresh-ahead: stock is the only mutable product state and the live instance owns it, so a reload
+            // would only hand back that instance or an identical copy
+            cache = new BoundedCache<>(cacheBytes, (int) Math.min(storage.size(), cacheBytes / 192),
+                this::loadLive, PRODUCT_WEIGHER, 0, 0, ForkJoinPool.commonPool());
+            // Write-through, so an evicted and collected product reloads with its latest stock. Writes for one
+            // product are serialized and re-read the counter, so racing decrements cannot persist out of order.
+            listeners.add(new InventoryListener() {
+                @Override public void stockChanged(Product p, int oldStock, int newStock) {
+                    synchronized (p) { storage.updateStock(p.getId(), p.getStock()); }
+                }
+            });
+        }
+        index = searchIndex ? new CatalogIndex(this) : null;
+        if (index == null) return;
+        listeners.add(index);
+        // Existing products are indexed without being cached
+        List<Product> batch = new ArrayList<>(1024);
+        for (Iterator<Product> it = storage.iterator(); it.hasNext(); ) {
+            batch.add(it.next());
+            if (batch.size() == 1024) { index.productsAdded(batch); batch.clear(); }
+        }
+        if (!batch.isEmpty()) index.productsAdded(batch);
+    }
+
+    // Catalog kept in a product file, with at most cacheBytes of it in memory
+    public static StoreManager onDisk(Path file, long cacheBytes) throws IOException {
+        return new StoreManager(DiskProductStorage.open(file), cacheBytes);
+    }
+
+    // Catalog kept in off-heap columns, with at most cacheBytes of it as Product objects
+    public static StoreManager offHeap(long cacheBytes) {
+        return new StoreManager(new OffHeapProductStorage(), cacheBytes);
+    }
+
+    public void addProduct(Product product) throws ShoppingException {
+        if (!insert(product))
+            throw new ShoppingException("Product ID " + product.getId() + " already exists.");
+        fanOut.productAdded(product);
+    }
+
+    // Bulk insert: products whose id is taken are returned instead of thrown, and listeners get the accepted batch at once
+    public List<Product> addProducts(List<Product> products) {
+        List<Product> accepted = new ArrayList<>(products.size());
+        List<Product> duplicates = new ArrayList<>();
+        InventoryListener[] previous = new InventoryListener[products.size()];
+        for (int i = 0; i < previous.length; i++) {
+            previous[i] = products.get(i).getListener();
+            products.get(i).attach(fanOut);
+        }
+        boolean[] added = storage.insertAll(products);
+        if (cache != null) expunge();
+        for (int i = 0; i < added.length; i++) {
+            Product p = products.get(i);
+            if (added[i]) {
+                accepted.add(p);
+                if (cache != null) live.put(p.getId(), new LiveRef(p, collected));
+            } else {
+                p.setListener(previous[i]);
+                duplicates.add(p);
+            }
+        }
+        if (!accepted.isEmpty()) fanOut.productsAdded(accepted);
+        return duplicates;
+    }
+
+    // The listener goes on before insert makes the product reachable, so no stock change escapes the listeners
+    // and getAddedStock() is the stock every logged delta applies to. insert is putIfAbsent, which keeps the
+    // uniqueness check and insert atomic across threads.
+    private boolean insert(Product p) {
+        InventoryListener previous = p.getListener();
+        p.attach(fanOut);
+        if (!storage.insert(p)) {
+            p.setListener(previous);
+            return false;
+        }
+        if (cache != null) {
+            expunge();
+            live.put(p.getId(), new LiveRef(p, collected));
+        }
+        return true;
+    }
+
+    public void addListener(InventoryListener listener) { listeners.add(listener); }
+
+    // Null when the store was built without a search index
+    public CatalogIndex getIndex() { return index; }
+
+    // For storage-specific scans, such as OffHeapProductStorage.scan
+    ProductStorage getStorage() { return storage; }
+
+    public ResultPage<Product> search(CatalogQuery q) { return index != null ? index.search(q) : CatalogIndex.scan(getAllProducts(), q); }
+
+    public Product getProduct(String id) {
+        long t = ShopMetrics.GET_PRODUCT.start();
+        Product p = cache == null ? storage.load(id) : cache.get(id);
+        ShopMetrics.GET_PRODUCT.recordSince(t);
+        return p;
+    }
+
+    // For scans like search: the cached product if there is one, else a load that bypasses the cache, so one
+    // broad query neither floods the frequency sketch nor evicts the hot SKUs
+    public Product peekProduct(String id) {
+        if (cache == null) return storage.load(id);
+        Product p = cache.getIfPresent(id);
+        return p != null ? p : loadLive(id);
+    }
+
+    // Cache loader: the live instance if something still holds it, else a fresh copy from storage
+    private Product loadLive(String id) {
+        Product p = liveInstance(id);
+        return p != null ? p : intern(storage.load(id));
+    }
+
+    // Drops map entries of live products that have since been collected
+    private void expunge() {
+        for (LiveRef stale; (stale = (LiveRef) collected.poll()) != null; ) live.remove(stale.id, stale);
+    }
+
+    private Product liveInstance(String id) {
+        LiveRef ref = live.get(id);
+        return ref == null ? null : ref.get();
+    }
+
+    private Product intern(Product loaded) {
+        if (loaded == null) return null;
+        expunge();
+        while (true) {
+            LiveRef ref = live.get(loaded.getId());
+            Product current = ref == null ? null : ref.get();
+            if (current != null) return current;
+            LiveRef fresh = new LiveRef(loaded, collected);
+            if (ref == null ? live.putIfAbsent(loaded.getId(), fresh) == null : live.replace(loaded.getId(), ref, fresh)) {
+                loaded.setListener(fanOut);
+                return loaded;
+            }
+        }
+    }
+
+    // Scans storage directly; a full listing passes through without displacing the cache's working set
+    public Collection<Product> getAllProducts() {
+        if (storage instanceof HeapProductStorage) return ((HeapProductStorage) storage).values();
+        return new AbstractCollection<Product>() {
+            @Override public int size() { return storage.size(); }
+            @Override public Iterator<Product> iterator() {
+                Iterator<Product> scan = storage.iterator();
+                return new Iterator<Product>() {
+                    @Override public boolean hasNext() { return scan.hasNext(); }
+                    @Override public Product next() { return intern(scan.next()); }
+                };
+            }
+        };
+    }
+
+    // Products are never removed, so one already in memory answers without asking a storage that may be remote
+    public boolean isProductIdUnique(String id) {
+        if (cache != null && (cache.getIfPresent(id) != null || liveInstance(id) != null)) return false;
+        return !storage.contains(id);
+    }
+
+    // How checkouts take stock: through the storage when it owns stock remotely, else on the products here
+    public StockReserver stockReserver() {
+        return storage instanceof StockReserver ? (StockReserver) storage : LocalStockReserver.INSTANCE;
+    }
+
+    // Null when every product is already in memory
+    public CacheStats getCacheStats() { return cache == null ? null : cache.stats(); }
+
+    @Override
+    public void close() throws IOException { storage.close(); }
+}
+
+// =================== Catalog Search ===================
+
+enum SortOrder { PRICE_ASC, PRICE_DESC, NAME_ASC }
+
+// Filters for CatalogIndex.search; unset fields do not filter
+class CatalogQuery {
+    String namePrefix, brand, size;
+    Money minPrice, maxPrice;
+    boolean inStockOnly;
+    SortOrder sort = SortOrder.PRICE_ASC;
+    int page = 0, pageSize = 20;
+
+    public CatalogQuery namePrefix(String prefix) { this.namePrefix = blankToNull(prefix); return this; }
+    public CatalogQuery brand(String brand) { this.brand = blankToNull(brand); return this; }
+    public CatalogQuery size(String size) { this.size = blankToNull(size); return this; }
+    public CatalogQuery priceBetween(Money min, Money max) { this.minPrice = min; this.maxPrice = max; return this; }
+    public CatalogQuery inStockOnly(boolean inStockOnly) { this.inStockOnly = inStockOnly; return this; }
+    public CatalogQuery sort(SortOrder sort) { this.sort = sort; return this; }
+    public CatalogQuery page(int page, int pageSize) throws ShoppingException {
+        if (page < 0 || pageSize <= 0) throw new ShoppingException("Invalid page request.");
+        this.page = page; this.pageSize = pageSize; return this;
+    }
+    private static String blankToNull(String s) { return (s == null || s.trim().isEmpty()) ? null : s.trim().toLowerCase(); }
+}
+
+class ResultPage<T> {
+    private final List<T> items;
+    private final int page;
+    private final boolean hasMore;
+    public ResultPage(List<T> items, int page, boolean hasMore) { this.items = items; this.page = page; this.hasMore = hasMore; }
+    public List<T> getItems() { return items; }
+    public int getPage() { return page; }
+    public boolean hasMore() { return hasMore; }
+}
+
+// Secondary indexes over the store, kept current through InventoryListener callbacks.
+// Prices and names never change after a product is added, so only the in-stock set moves on stock updates.
+class CatalogIndex implements InventoryListener {
+    private final StoreManager store;
+    private final ConcurrentSkipListMap<String, Set<String>> nameTokens = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Long, Set<String>> byPrice = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<String> byName = new ConcurrentSkipListSet<>();
+    private final ConcurrentMap<String, Set<String>> brands = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> sizes = new ConcurrentHashMap<>();
+    // Keyed by id; updated through compute(), which re-reads the stock under that key's bin lock, so racing
+    // sold-out and restock callbacks for one product leave whichever state the stock ended in
+    private final ConcurrentMap<String, Boolean> inStock = new ConcurrentHashMap<>();
+
+    CatalogIndex(StoreManager store) { this.store = store; }
+
+    private static Set<String> newIdSet() { return new ConcurrentSkipListSet<>(); }
+    // Name keys sort by lower-cased name, then id, separated by a char below any printable one
+    private static String nameKey(Product p) { return p.getName().toLowerCase() + '\u0000' + p.getId(); }
+
+    @Override
+    public void productAdded(Product p) {
+        for (String token : p.getName().toLowerCase().split("\\s+"))
+            if (!token.isEmpty()) nameTokens.computeIfAbsent(token, k -> newIdSet()).add(p.getId());
+        byPrice.computeIfAbsent(p.getPrice().cents(), k -> newIdSet()).add(p.getId());
+        byName.add(nameKey(p));
+        if (p instanceof Electronics) brands.computeIfAbsent(((Electronics) p).getBrand().toLowerCase(), k -> newIdSet()).add(p.getId());
+        if (p instanceof Clothing) sizes.computeIfAbsent(((Clothing) p).getSize().toLowerCase(), k -> newIdSet()).add(p.getId());
+        syncInStock(p);
+    }
+
+    @Override
+    public void stockChanged(Product p, int oldStock, int newStock) {
+        if ((oldStock > 0) == (newStock > 0)) return;
+        syncInStock(p);
+    }
+
+    private void syncInStock(Product p) { inStock.compute(p.getId(), (id, was) -> p.getStock() > 0 ? Boolean.TRUE : null); }
+
+    // Ids with any name word starting with prefix, from a range scan of the token index
+    Set<String> idsWithNamePrefix(String prefix) {
+        Set<String> ids = new HashSet<>();
+        for (Set<String> s : nameTokens.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) ids.addAll(s);
+        return ids;
+    }
+
+    public ResultPage<Product> search(CatalogQuery q) {
+        // Start from the most selective set we have; otherwise walk the ordered index and stop once the page is full
+        Set<String> candidates = null;
+        if (q.namePrefix != null) candidates = idsWithNamePrefix(q.namePrefix);
+        candidates = narrow(candidates, q.brand == null ? null : brands.getOrDefault(q.brand, Collections.emptySet()));
+        candidates = narrow(candidates, q.size == null ? null : sizes.getOrDefault(q.size, Collections.emptySet()));
+        // Sorting a price band by name beats walking every name for the few inside the band
+        if (candidates == null && q.sort == SortOrder.NAME_ASC && (q.minPrice != null || q.maxPrice != null)) {
+            candidates = new HashSet<>();
+            for (Set<String> ids : priceRange(q).values()) candidates.addAll(ids);
+        }
+        int skip = q.page * q.pageSize;
+        List<Product> out = new ArrayList<>(q.pageSize);
+        boolean hasMore = false;
+        if (candidates != null) {
+            List<Product> matches = new ArrayList<>();
+            for (String id : candidates) {
+                Product p = store.peekProduct(id);
+                if (p != null && accepts(p, q)) matches.add(p);
+            }
+            matches.sort(comparator(q.sort));
+            for (int i = skip; i < matches.size() && out.size() < q.pageSize; i++) out.add(matches.get(i));
+            hasMore = matches.size() > skip + q.pageSize;
+        } else {
+            Iterator<String> ids = orderedIds(q);
+            while (ids.hasNext()) {
+                Product p = store.peekProduct(ids.next());
+                if (p == null || !accepts(p, q)) continue;
+                if (skip > 0) { skip--; continue; }
+                if (out.size() == q.pageSize) { hasMore = true; break; }
+                out.add(p);
+            }
+        }
+        return new ResultPage<>(out, q.page, hasMore);
+    }
+
+    // Search without an index: one pass over the catalog that keeps only the best skip + pageSize + 1 matches,
+    // so memory follows the page depth rather than the catalog size
+    static ResultPage<Product> scan(Iterable<Product> products, CatalogQuery q) {
+        int skip = q.page * q.pageSize, keep = skip + q.pageSize + 1;
+        Comparator<Product> order = comparator(q.sort);
+        PriorityQueue<Product> best = new PriorityQueue<>(Math.min(keep, 1024), order.reversed());
+        for (Product p : products) {
+            if (!matches(p, q)) continue;
+            if (best.size() < keep) best.add(p);
+            else if (order.compare(p, best.peek()) < 0) { best.poll(); best.add(p); }
+        }
+        List<Product> sorted = new ArrayList<>(best);
+        sorted.sort(order);
+        List<Product> out = new ArrayList<>(q.pageSize);
+        for (int i = skip; i < sorted.size() && out.size() < q.pageSize; i++) out.add(sorted.get(i));
+        return new ResultPage<>(out, q.page, sorted.size() > skip + q.pageSize);
+    }
+
+    // Every filter checked on the product itself, as the indexes would have
+    private static boolean matches(Product p, CatalogQuery q) {
+        long cents = p.getPrice().cents();
+        if (q.minPrice != null && cents < q.minPrice.cents()) return false;
+        if (q.maxPrice != null && cents > q.maxPrice.cents()) return false;
+        if (q.inStockOnly && p.getStock() == 0) return false;
+        if (q.brand != null && !(p instanceof Electronics && ((Electronics) p).getBrand().toLowerCase().equals(q.brand))) return false;
+        if (q.size != null && !(p instanceof Clothing && ((Clothing) p).getSize().toLowerCase().equals(q.size))) return false;
+        if (q.namePrefix == null) return true;
+        for (String token : p.getName().toLowerCase().split("\\s+"))
+            if (token.startsWith(q.namePrefix)) return true;
+        return false;
+    }
+
+    private static Set<String> narrow(Set<String> current, Set<String> facet) {
+        if (facet == null) return current;
+        if (current == null) return facet;
+        Set<String> smaller = current.size() <= facet.size() ? current : facet, larger = smaller == current ? facet : current;
+        Set<String> result = new HashSet<>();
+        for (String id : smaller) if (larger.contains(id)) result.add(id);
+        return result;
+    }
+
+    private boolean accepts(Product p, CatalogQuery q) {
+        long cents = p.getPrice().cents();
+        if (q.minPrice != null && cents < q.minPrice.cents()) return false;
+        if (q.maxPrice != null && cents > q.maxPrice.cents()) return false;
+        return !q.inStockOnly || inStock.containsKey(p.getId());
+    }
+
+    private Iterator<String> orderedIds(CatalogQuery q) {
+        if (q.sort == SortOrder.NAME_ASC) {
+            Iterator<String> keys = byName.iterator();
+            return new Iterator<String>() {
+                public boolean hasNext() { return keys.hasNext(); }
+                public String next() { String k = keys.next(); return k.substring(k.lastIndexOf('\u0000') + 1); }
+            };
+        }
+        NavigableMap<Long, Set<String>> range = priceRange(q);
+        if (q.sort == SortOrder.PRICE_DESC) range = range.descendingMap();
+        return range.values().stream().flatMap(Set::stream).iterator();
+    }
+
+    private NavigableMap<Long, Set<String>> priceRange(CatalogQuery q) {
+        long lo = q.minPrice == null ? Long.MIN_VALUE : q.minPrice.cents();
+        long hi = q.maxPrice == null ? Long.MAX_VALUE : q.maxPrice.cents();
+        return byPrice.subMap(lo, true, hi, true);
+    }
+
+    private static Comparator<Product> comparator(SortOrder sort) {
+        Comparator<Product> byId = Comparator.comparing(Product::getId);
+        switch (sort) {
+            case PRICE_DESC: return Comparator.comparing(Product::getPrice).reversed().thenComparing(byId);
+            case NAME_ASC: return Comparator.comparing((Product p) -> p.getName().toLowerCase()).thenComparing(byId);
+            default: return Comparator.comparing(Product::getPrice).thenComparing(byId);
+        }
+    }
+}
+
+// =================== Pricing ===================
+
+// A promotion, optionally limited to [startMillis, endMillis). Rules are immutable data, so a plan compiled
+// from them stays valid until a rule is added; PricingEngine compiles the active ones into a PricingPlan
+// rather than asking each rule about each cart line.
+abstract class PromotionRule {
+    private final String name;
+    private final long startMillis, endMillis;
+
+    PromotionRule(String name, long startMillis, long endMillis) { this.name = name; this.startMillis = startMillis; this.endMillis = endMillis; }
+    public String getName() { return name; }
+    // A copy of this rule limited to [start, end); a null bound is open
+    public PromotionRule activeBetween(Date start, Date end) {
+        return during(start == null ? Long.MIN_VALUE : start.getTime(), end == null ? Long.MAX_VALUE : end.getTime());
+    }
+    abstract PromotionRule during(long startMillis, long endMillis);
+    public boolean isActiveAt(long millis) { return millis >= startMillis && millis < endMillis; }
+    long getStartMillis() { return startMillis; }
+    long getEndMillis() { return endMillis; }
+
+    public static PromotionRule categoryPercent(String name, String category, int percent) { return new PercentOff(name, PercentOff.CATEGORY, category, percent); }
+    // Brands match exactly as they are spelled in the catalog
+    public static PromotionRule brandPercent(String name, String brand, int percent) { return new PercentOff(name, PercentOff.BRAND, brand, percent); }
+    public static PromotionRule productPercent(String name, String productId, int percent) { return new PercentOff(name, PercentOff.PRODUCT, productId, percent); }
+    public static PromotionRule buyNGetM(String name, String productId, int buy, int free) { return new BuyNGetM(name, productId, buy, free); }
+    // thresholdsCents ascending; spending strictly more than thresholdsCents[i] earns percents[i] off the order
+    public static PromotionRule tiered(String name, long[] thresholdsCents, int[] percents) { return new TieredDiscount(name, thresholdsCents, percents); }
+}
+
+final class PercentOff extends PromotionRule {
+    static final int CATEGORY = 0, BRAND = 1, PRODUCT = 2;
+    final int scope;
+    final String key;
+    final int percent;
+    PercentOff(String name, int scope, String key, int percent) { this(name, scope, key, percent, Long.MIN_VALUE, Long.MAX_VALUE); }
+    private PercentOff(String name, int scope, String key, int percent, long startMillis, long endMillis) {
+        super(name, startMillis, endMillis);
+        if (percent < 0 || percent > 100) throw new IllegalArgumentException("Percent must be 0-100");
+        this.scope = scope; this.key = key; this.percent = percent;
+    }
+    @Override
+    PromotionRule during(long startMillis, long endMillis) { return new PercentOff(getName(), scope, key, percent, startMillis, endMillis); }
+}
+
+final class BuyNGetM extends PromotionRule {
+    final String productId;
+    final int buy, free;
+    BuyNGetM(String name, String productId, int buy, int free) { this(name, productId, buy, free, Long.MIN_VALUE, Long.MAX_VALUE); }
+    private BuyNGetM(String name, String productId, int buy, int free, long startMillis, long endMillis) {
+        super(name, startMillis, endMillis);
+        if (buy < 1 || free < 1) throw new IllegalArgumentException("Buy and free counts must be positive");
+        this.productId = productId; this.buy = buy; this.free = free;
+    }
+    @Override
+    PromotionRule during(long startMillis, long endMillis) { return new BuyNGetM(getName(), productId, buy, free, startMillis, endMillis); }
+}
+
+final class TieredDiscount extends PromotionRule {
+    final long[] thresholdsCents;
+    final int[] percents;
+    TieredDiscount(String name, long[] thresholdsCents, int[] percents) { this(name, thresholdsCents, percents, Long.MIN_VALUE, Long.MAX_VALUE); }
+    private TieredDiscount(String name, long[] thresholdsCents, int[] percents, long startMillis, long endMillis) {
+        super(name, startMillis, endMillis);
+        if (thresholdsCents.length != percents.length) throw new IllegalArgumentException("One percent per threshold");
+        this.thresholdsCents = thresholdsCents.clone(); this.percents = percents.clone();
+    }
+    @Override
+    PromotionRule during(long startMillis, long endMillis) { return new TieredDiscount(getName(), thresholdsCents, percents, startMillis, endMillis); }
+}
+
+// Subtotal, discounts and total for one cart, in cents
+final class PriceQuote {
+    private final long subtotalCents, lineDiscountCents, orderDiscountCents;
+
+    PriceQuote(long subtotalCents, long lineDiscountCents, long orderDiscountCents) {
+        this.subtotalCents = subtotalCents; this.lineDiscountCents = lineDiscountCents; this.orderDiscountCents = orderDiscountCents;
+    }
+    public Money getSubtotal() { return Money.ofCents(subtotalCents); }
+    public Money getLineDiscounts() { return Money.ofCents(lineDiscountCents); }
+    public Money getOrderDiscount() { return Money.ofCents(orderDiscountCents); }
+    public Money getDiscount() { return Money.ofCents(lineDiscountCents + orderDiscountCents); }
+    public Money getTotal() { return Money.ofCents(subtotalCents - lineDiscountCents - orderDiscountCents); }
+}
+
+// The active rules for one time span, indexed by what a cart line is looked up by. Per line: buy-N-get-M
+// frees units first, then the best single percentage among category, brand and product rules applies to
+// what is left (percentages do not stack). The order tier then applies to the discounted subtotal.
+final class PricingPlan {
+    private final Map<String, Integer> byCategory = new HashMap<>(), byBrand = new HashMap<>(), byProduct = new HashMap<>();
+    private final Map<String, BuyNGetM> buyGet = new HashMap<>();
+    private final long[] tierThresholds;
+    private final int[] tierPercents;
+    final long version;
+    // The plan is rebuilt once the clock reaches the next rule start or end
+    final long validUntilMillis;
+
+    PricingPlan(List<PromotionRule> rules, long nowMillis, long version) {
+        this.version = version;
+        long until = Long.MAX_VALUE;
+        TreeMap<Long, Integer> tiers = new TreeMap<>();
+        for (PromotionRule r : rules) {
+            if (r.getStartMillis() > nowMillis) until = Math.min(until, r.getStartMillis());
+            else if (r.getEndMillis() > nowMillis) until = Math.min(until, r.getEndMillis());
+            if (!r.isActiveAt(nowMillis)) continue;
+            if (r instanceof PercentOff) {
+                PercentOff p = (PercentOff) r;
+                Map<String, Integer> index = p.scope == PercentOff.CATEGORY ? byCategory : p.scope == PercentOff.BRAND ? byBrand : byProduct;
+                index.merge(p.key, p.percent, Math::max);
+            } else if (r instanceof BuyNGetM) {
+                BuyNGetM b = (BuyNGetM) r;
+                // Keep the most generous offer: the larger free share of each group
+                buyGet.merge(b.productId, b, (x, y) -> (long) y.free * (x.buy + x.free) > (long) x.free * (y.buy + y.free) ? y : x);
+            } else if (r instanceof TieredDiscount) {
+                TieredDiscount t = (TieredDiscount) r;
+                for (int i = 0; i < t.thresholdsCents.length; i++) tiers.merge(t.thresholdsCents[i], t.percents[i], Math::max);
+            }
+        }
+        this.validUntilMillis = until;
+        // Flatten to ascending thresholds where each tier's percent is the best at or below it
+        tierThresholds = new long[tiers.size()];
+        tierPercents = new int[tiers.size()];
+        int i = 0, best = 0;
+        for (Map.Entry<Long, Integer> e : tiers.entrySet()) {
+            best = Math.max(best, e.getValue());
+            tierThresholds[i] = e.getKey();
+            tierPercents[i++] = best;
+        }
+    }
+
+    public PriceQuote price(Cart cart) {
+        long subtotal = 0, lineDiscounts = 0;
+        boolean anyLineRules = !byCategory.isEmpty() || !byBrand.isEmpty() || !byProduct.isEmpty() || !buyGet.isEmpty();
+        for (int i = 0, n = cart.size(); i < n; i++) {
+            Product p = cart.getProductAt(i);
+            int qty = cart.getQuantityAt(i);
+            long unit = p.getPrice().cents();
+            long gross = Math.multiplyExact(unit, qty);
+            subtotal = Math.addExact(subtotal, gross);
+            if (!anyLineRules) continue;
+            long net = gross;
+            BuyNGetM bg = buyGet.isEmpty() ? null : buyGet.get(p.getId());
+            if (bg != null) net -= Math.multiplyExact(unit, (long) (qty / (bg.buy + bg.free)) * bg.free);
+            int pct = best(byCategory, p.getCategory(), 0);
+            if (p instanceof Electronics) pct = best(byBrand, ((Electronics) p).getBrand(), pct);
+            pct = best(byProduct, p.getId(), pct);
+            if (pct > 0) net -= Money.divideHalfEven(Math.multiplyExact(net, pct), 100);
+            lineDiscounts += gross - net;
+        }
+        long afterLines = subtotal - lineDiscounts;
+        int tier = tierPercentFor(afterLines);
+        long orderDiscount = tier == 0 ? 0 : Money.divideHalfEven(Math.multiplyExact(afterLines, tier), 100);
+        return new PriceQuote(subtotal, lineDiscounts, orderDiscount);
+    }
+
+    private static int best(Map<String, Integer> index, String key, int current) {
+        if (index.isEmpty()) return current;
+        Integer pct = index.get(key);
+        return pct != null && pct > current ? pct : current;
+    }
+
+    // Highest tier whose threshold the amount strictly exceeds
+    private int tierPercentFor(long cents) {
+        int lo = 0, hi = tierThresholds.length - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cents > tierThresholds[mid]) { found = mid; lo = mid + 1; } else hi = mid - 1;
+        }
+        return found < 0 ? 0 : tierPercents[found];
+    }
+}
+
+class PricingEngine {
+    private final List<PromotionRule> rules = new CopyOnWriteArrayList<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile PricingPlan plan;
+
+    // The shop's standing offer: 10% off orders over $100.00
+    public static PricingEngine withDefaults() {
+        PricingEngine engine = new PricingEngine();
+        engine.addRule(PromotionRule.tiered("Spend over $100, save 10%", new long[] { 100_00 }, new int[] { 10 }));
+        return engine;
+    }
+
+    public void addRule(PromotionRule rule) {
+        rules.add(rule);
+        version.incrementAndGet();
+    }
+
+    public boolean removeRule(String name) {
+        boolean removed = rules.removeIf(r -> r.getName().equals(name));
+        if (removed) version.incrementAndGet();
+        return removed;
+    }
+
+    public List<PromotionRule> getRules() { return Collections.unmodifiableList(rules); }
+
+    public PriceQuote quote(Cart cart) { return plan().price(cart); }
+
+    // Current plan, recompiled only when the rules changed or a promotion window opened or closed
+    public PricingPlan plan() {
+        PricingPlan p = plan;
+        long now = System.currentTimeMillis();
+        if (p != null && p.version == version.get() && now < p.validUntilMillis) return p;
+        synchronized (this) {
+            p = plan;
+            if (p != null && p.version == version.get() && now < p.validUntilMillis) return p;
+            long v = version.get();
+            p = new PricingPlan(rules, now, v);
+            plan = p;
+            return p;
+        }
+    }
+
+    // Reference evaluation straight from the rule list, one pass over the rules per line; used to check the
+    // compiled plan and as the benchmark baseline
+    PriceQuote quoteInterpreted(Cart cart, long nowMillis) {
+        long subtotal = 0, lineDiscounts = 0;
+        for (int i = 0; i < cart.size(); i++) {
+            Product p = cart.getProductAt(i);
+            int qty = cart.getQuantityAt(i);
+            long unit = p.getPrice().cents(), gross = unit * qty, freeUnits = 0;
+            int pct = 0;
+            BuyNGetM bestOffer = null;
+            for (PromotionRule r : rules) {
+                if (!r.isActiveAt(nowMillis)) continue;
+                if (r instanceof PercentOff) {
+                    PercentOff o = (PercentOff) r;
+                    boolean hit = o.scope == PercentOff.CATEGORY ? o.key.equals(p.getCategory())
+                        : o.scope == PercentOff.BRAND ? p instanceof Electronics && o.key.equals(((Electronics) p).getBrand())
+                        : o.key.equals(p.getId());
+                    if (hit) pct = Math.max(pct, o.percent);
+                } else if (r instanceof BuyNGetM && ((BuyNGetM) r).productId.equals(p.getId())) {
+                    BuyNGetM b = (BuyNGetM) r;
+                    if (bestOffer == null || (long) b.free * (bestOffer.buy + bestOffer.free) > (long) bestOffer.free * (b.buy + b.free)) bestOffer = b;
+                }
+            }
+            if (bestOffer != null) freeUnits = (long) (qty / (bestOffer.buy + bestOffer.free)) * bestOffer.free;
+            long net = gross - unit * freeUnits;
+            if (pct > 0) net -= Money.divideHalfEven(net * pct, 100);
+            subtotal += gross;
+            lineDiscounts += gross - net;
+        }
+        long afterLines = subtotal - lineDiscounts;
+        int tier = 0;
+        for (PromotionRule r : rules) {
+            if (!(r instanceof TieredDiscount) || !r.isActiveAt(nowMillis)) continue;
+            TieredDiscount t = (TieredDiscount) r;
+            for (int i = 0; i < t.thresholdsCents.length; i++) if (afterLines > t.thresholdsCents[i]) tier = Math.max(tier, t.percents[i]);
+        }
+        return new PriceQuote(subtotal, lineDiscounts, tier == 0 ? 0 : Money.divideHalfEven(afterLines * tier, 100));
+    }
+}
+
+// =================== Checkout ===================
+
+// Observes placed orders; callbacks run on the thread that placed the order
+interface OrderListener {
+    void orderPlaced(String customer, Order order);
+}
+
+// Takes stock for a checkout and settles it. reserve takes every line or none; commit makes the taking final and
+// release puts it back. Hold ids are unique within one CheckoutService.
+interface StockReserver {
+    void reserve(long holdId, List<CartItem> lines) throws ShoppingException;
+    default void commit(long holdId, List<CartItem> lines) throws ShoppingException {}
+    void release(long holdId, List<CartItem> lines);
+}
+
+// Stock of in-process products: one CAS per line, and lines already taken are put back if a later one is short
+final class LocalStockReserver implements StockReserver {
+    static final LocalStockReserver INSTANCE = new LocalStockReserver();
+
+    private LocalStockReserver() {}
+
+    @Override
+    public void reserve(long holdId, List<CartItem> lines) throws ShoppingException {
+        for (int i = 0; i < lines.size(); i++) {
+            Product p = lines.get(i).getProduct();
+            if (!p.tryDecreaseStock(lines.get(i).getQuantity())) {
+                release(holdId, lines.subList(0, i));
+                throw new ShoppingException("Insufficient stock for " + p.getName());
+            }
+        }
+    }
+
+    @Override
+    public void release(long holdId, List<CartItem> lines) {
+        for (CartItem ci : lines) ci.getProduct().restoreStock(ci.getQuantity());
+    }
+}
+
+// Stock held for one checkout until it is committed, released, or its TTL runs out
+class Reservation {
+    static final int ACTIVE = 0, COMMITTED = 1, RELEASED = 2;
+    private final long id;
+    private final List<CartItem> lines;
+    private final long expiresAtNanos;
+    private final AtomicInteger state = new AtomicInteger(ACTIVE);
+
+    Reservation(long id, List<CartItem> lines, long expiresAtNanos) {
+        this.id = id; this.lines = lines; this.expiresAtNanos = expiresAtNanos;
+    }
+    public long getId() { return id; }
+    public List<CartItem> getLines() { return Collections.unmodifiableList(lines); }
+    public boolean isExpired(long nowNanos) { return nowNanos - expiresAtNanos > 0; }
+    boolean transition(int to) { return state.compareAndSet(ACTIVE, to); }
+    public boolean isActive() { return state.get() == ACTIVE; }
+    public boolean isCommitted() { return state.get() == COMMITTED; }
+}
+
+class CheckoutService {
+    private final ConcurrentMap<Long, Reservation> holds = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final long ttlNanos;
+    private final ScheduledExecutorService sweeper;
+    private final PaymentRouter payments;
+    private final PricingEngine pricing;
+    private final StockReserver stock;
+    private final List<OrderListener> orderListeners = new CopyOnWriteArrayList<>();
+    // Finishing an order waits on the journal, so it must not run on a gateway's completer thread
+    private final ExecutorService finisher = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "checkout-finisher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public CheckoutService(long ttlMillis) { this(ttlMillis, PaymentRouter.fromProperties()); }
+
+    public CheckoutService(long ttlMillis, PaymentRouter payments) { this(ttlMillis, payments, PricingEngine.withDefaults()); }
+
+    public CheckoutService(long ttlMillis, PaymentRouter payments, PricingEngine pricing) {
+        this(ttlMillis, payments, pricing, LocalStockReserver.INSTANCE);
+    }
+
+    // Stock is taken through the reserver, e.g. StoreManager.stockReserver() for a sharded catalog
+    public CheckoutService(long ttlMillis, StockReserver stock) {
+        this(ttlMillis, PaymentRouter.fromProperties(), PricingEngine.withDefaults(), stock);
+    }
+
+    public CheckoutService(long ttlMillis, PaymentRouter payments, PricingEngine pricing, StockReserver stock) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.payments = payments;
+        this.pricing = pricing;
+        this.stock = stock;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "reservation-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(10, ttlMillis / 4);
+        sweeper.scheduleAtFixedRate(this::releaseExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public PricingEngine getPricing() { return pricing; }
+    public void addOrderListener(OrderListener listener) { orderListeners.add(listener); }
+    public PriceQuote quote(Cart cart) { return pricing.quote(cart); }
+    public Money totalDue(Cart cart) { return quote(cart).getTotal(); }
+
+    // Takes every line's stock up front, or none of it
+    public Reservation reserve(Cart cart) throws ShoppingException {
+        if (cart.isEmpty()) throw new ShoppingException("Cart is empty. Add items before checkout.");
+        List<CartItem> lines = new ArrayList<>(cart.size());
+        for (int i = 0; i < cart.size(); i++) lines.add(new CartItem(cart.getProductAt(i), cart.getQuantityAt(i)));
+        long id = nextId.incrementAndGet();
+        stock.reserve(id, lines);
+        Reservation r = new Reservation(id, lines, System.nanoTime() + ttlNanos);
+        holds.put(r.getId(), r);
+        return r;
+    }
+
+    // Commit and the sweeper race on the same CAS, so an expired hold can never also be committed.
+    // If the reserver cannot make the hold final, its stock is put back and the checkout fails.
+    public void commit(Reservation r) throws ShoppingException {
+        if (r.isExpired(System.nanoTime())) {
+            release(r);
+            throw new ShoppingException("Checkout timed out; reserved items were released.");
+        }
+        if (!r.transition(Reservation.COMMITTED)) throw new ShoppingException("Reservation is no longer active.");
+        holds.remove(r.getId());
+        try {
+            stock.commit(r.getId(), r.getLines());
+        } catch (ShoppingException | RuntimeException e) {
+            stock.release(r.getId(), r.getLines());
+            throw e;
+        }
+    }
+
+    public void release(Reservation r) {
+        if (!r.transition(Reservation.RELEASED)) return;
+        holds.remove(r.getId());
+        stock.release(r.getId(), r.getLines());
+    }
+
+    // Undoes a partially paid checkout: refunds every tender already charged and frees the stock
+    public void rollback(Reservation r, List<PaymentRecord> payments) {
+        for (PaymentRecord pr : payments) pr.getMethod().refund(pr.getAmount());
+        release(r);
+    }
+
+    // Sends every tender of one payment attempt at once. Keys derive from the hold and the attempt number,
+    // so resubmitting an attempt can never charge twice.
+    public CompletableFuture<List<PaymentResult>> charge(Reservation r, int attempt, List<PaymentRecord> tenders) {
+        return payments.chargeAll("hold-" + r.getId() + "-" + attempt, tenders);
+    }
+
+    // Reserve, charge all tenders in parallel, then commit, or undo everything on failure.
+    // The cart must not change until the returned future completes.
+    public CompletableFuture<Order> checkoutAsync(Customer customer, List<PaymentRecord> tenders) {
+        long t = ShopMetrics.CHECKOUT.start();
+        Money due = totalDue(customer.getCart());
+        Reservation hold;
+        try {
+            hold = holdFor(customer.getCart(), due, tenders);
+        } catch (ShoppingException e) {
+            ShopMetrics.CHECKOUT_FAILED.increment();
+            ShopMetrics.CHECKOUT.recordSince(t);
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<List<PaymentResult>> charged = charge(hold, 0, tenders);
+        AtomicBoolean finishing = new AtomicBoolean();
+        return charged.thenApplyAsync(results -> {
+            finishing.set(true);
+            try {
+                return finish(customer, hold, due, results);
+            } catch (ShoppingException e) {
+                throw new CompletionException(e);
+            }
+        }, finisher).whenComplete((order, failure) -> {
+            if (failure != null) {
+                // finish() undoes its own failures; anything that kept it from running is undone here
+                if (!finishing.get()) abandon(hold, charged);
+                ShopMetrics.CHECKOUT_FAILED.increment();
+            }
+            ShopMetrics.CHECKOUT.recordSince(t);
+        });
+    }
+
+    // Same steps as checkoutAsync, but the order is finished on the calling thread
+    public Order checkout(Customer customer, List<PaymentRecord> tenders) throws ShoppingException {
+        long t = ShopMetrics.CHECKOUT.start();
+        try {
+            Money due = totalDue(customer.getCart());
+            Reservation hold = holdFor(customer.getCart(), due, tenders);
+            CompletableFuture<List<PaymentResult>> charged = charge(hold, 0, tenders);
+            List<PaymentResult> results;
+            try {
+                results = await(charged);
+            } catch (ShoppingException | RuntimeException e) {
+                abandon(hold, charged);
+                throw e;
+            }
+            return finish(customer, hold, due, results);
+        } catch (ShoppingException | RuntimeException e) {
+            ShopMetrics.CHECKOUT_FAILED.increment();
+            throw e;
+        } finally {
+            ShopMetrics.CHECKOUT.recordSince(t);
+        }
+    }
+
+    private Reservation holdFor(Cart cart, Money due, List<PaymentRecord> tenders) throws ShoppingException {
+        Reservation hold = reserve(cart);
+        Money tendered = Money.ZERO;
+        for (PaymentRecord t : tenders) tendered = tendered.plus(t.getAmount());
+        if (!tendered.equals(due)) {
+            release(hold);
+            throw new ShoppingException("Tendered amount does not match total due.");
+        }
+        return hold;
+    }
+
+    // A checkout that failed before finish() ran, e.g. the finisher was shut down: refunds whatever the
+    // tenders' results show was approved and frees the stock
+    private void abandon(Reservation hold, CompletableFuture<List<PaymentResult>> charged) {
+        List<PaymentRecord> paid = new ArrayList<>();
+        if (charged.isDone() && !charged.isCompletedExceptionally())
+            for (PaymentResult r : charged.join()) if (r.isApproved()) paid.add(r.getRecord());
+        rollback(hold, paid);
+    }
+
+    private Order finish(Customer customer, Reservation hold, Money due, List<PaymentResult> results) throws ShoppingException {
+        List<PaymentRecord> paid = new ArrayList<>(results.size());
+        String declined = null;
+        for (PaymentResult r : results) {
+            if (r.isApproved()) paid.add(r.getRecord());
+            else if (declined == null) declined = r.getDeclineReason();
+        }
+        try {
+            if (declined != null) throw new ShoppingException(declined);
+            commit(hold);
+        } catch (ShoppingException | RuntimeException e) {
+            rollback(hold, paid);
+            throw e;
+        }
+        Order order = new Order(hold.getLines(), due, paid);
+        placeOrder(customer, order);
+        customer.getCart().clear();
+        return order;
+    }
+
+    // Records a paid order in the customer's history and tells order listeners
+    public void placeOrder(Customer customer, Order order) {
+        customer.addOrder(order);
+        for (OrderListener l : orderListeners) l.orderPlaced(customer.getName(), order);
+    }
+
+    // Blocks for an async result, rethrowing the domain failure rather than its CompletionException wrapper
+    static <T> T await(CompletableFuture<T> future) throws ShoppingException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ShoppingException) throw (ShoppingException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw e;
+        }
+    }
+
+    void releaseExpired() {
+        long now = System.nanoTime();
+        for (Reservation r : holds.values()) if (r.isExpired(now)) release(r);
+    }
+
+    public int activeHolds() { return holds.size(); }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+        finisher.shutdown();
+        payments.shutdown();
+    }
+}
+
+// =================== Payments ===================
+
+// Outcome of one charge; a declined charge carries the reason instead of throwing
+final class PaymentResult {
+    private final String idempotencyKey;
+    private final PaymentRecord record;
+    private final String declineReason;
+
+    PaymentResult(String idempotencyKey, PaymentRecord record, String declineReason) {
+        this.idempotencyKey = idempotencyKey; this.record = record; this.declineReason = declineReason;
+    }
+    public String getIdempotencyKey() { return idempotencyKey; }
+    public PaymentRecord getRecord() { return record; }
+    public boolean isApproved() { return declineReason == null; }
+    public String getDeclineReason() { return declineReason; }
+}
+
+interface PaymentGateway {
+    String getName();
+    // Charging an idempotency key again returns the first attempt's result and moves no money
+    CompletableFuture<PaymentResult> charge(String idempotencyKey, PaymentMethod method, Money amount);
+    void shutdown();
+}
+
+// Local stand-in for a remote processor. Charges queue up and go out in micro-batches of up to maxBatch:
+// whatever queued while the previous batch was being sent, plus anything arriving within lingerMicros; each batch completes after a simulated round trip and
+// every charge in it is declined with probability failureRate.
+class StubGateway implements PaymentGateway {
+    private static final long KEY_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final class Charge {
+        final String key;
+        final PaymentMethod method;
+        final Money amount;
+        final CompletableFuture<PaymentResult> result = new CompletableFuture<>();
+        Charge(String key, PaymentMethod method, Money amount) { this.key = key; this.method = method; this.amount = amount; }
+    }
+
+    private final String name;
+    private final long latencyMicros;
+    private final double failureRate;
+    private final int maxBatch;
+    private final long lingerMicros;
+    private final BlockingQueue<Charge> queue = new LinkedBlockingQueue<>();
+    // Sent but not yet settled; settle and shutdown each claim a charge by removing it, so exactly one answers it
+    private final Set<Charge> inFlight = ConcurrentHashMap.newKeySet();
+    // Keys are remembered long enough to absorb client retries: two generations rotated every half retention
+    private volatile ConcurrentMap<String, CompletableFuture<PaymentResult>> recentKeys = new ConcurrentHashMap<>();
+    private volatile ConcurrentMap<String, CompletableFuture<PaymentResult>> olderKeys = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService completer;
+    private final Thread dispatcher;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder charges = new LongAdder();
+    private volatile boolean running = true;
+
+    StubGateway(String name, long latencyMicros, double failureRate, int maxBatch, long lingerMicros) {
+        if (maxBatch < 1) throw new IllegalArgumentException("maxBatch must be at least 1");
+        this.name = name; this.latencyMicros = latencyMicros; this.failureRate = failureRate;
+        this.maxBatch = maxBatch; this.lingerMicros = lingerMicros;
+        // One thread is enough: it only settles batches whose simulated round trips overlap in time
+        this.completer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-gateway-completer");
+            t.setDaemon(true);
+            return t;
+        });
+        completer.scheduleAtFixedRate(() -> {
+            olderKeys = recentKeys;
+            recentKeys = new ConcurrentHashMap<>();
+        }, KEY_RETENTION_MILLIS / 2, KEY_RETENTION_MILLIS / 2, TimeUnit.MILLISECONDS);
+        this.dispatcher = new Thread(this::dispatchLoop, name + "-gateway-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    // Reads latency, failure rate and batching for a gateway from pay.<name>.* system properties
+    static StubGateway fromProperties(String name) {
+        String p = "pay." + name + ".";
+        return new StubGateway(name,
+            Long.getLong(p + "latencyMicros", 0),
+            Double.parseDouble(System.getProperty(p + "failureRate", "0")),
+            Integer.getInteger(p + "maxBatch", 64),
+            Long.getLong(p + "lingerMicros", 0));
+    }
+
+    @Override
+    public String getName() { return name; }
+    public long batchesSent() { return batches.sum(); }
+    public long chargesSent() { return charges.sum(); }
+
+    @Override
+    public CompletableFuture<PaymentResult> charge(String idempotencyKey, PaymentMethod method, Money amount) {
+        Charge c = new Charge(idempotencyKey, method, amount);
+        CompletableFuture<PaymentResult> first = olderKeys.get(idempotencyKey);
+        if (first == null) first = recentKeys.putIfAbsent(idempotencyKey, c.result);
+        if (first != null) return first;
+        if (!running) {
+            recentKeys.remove(idempotencyKey);
+            return CompletableFuture.failedFuture(new IllegalStateException(name + " gateway is shut down"));
+        }
+        queue.add(c);
+        return c.result;
+    }
+
+    private void dispatchLoop() {
+        List<Charge> batch = new ArrayList<>(maxBatch);
+        try {
+            while (running) {
+                Charge first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long lingerEnd = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) continue;
+                    long left = lingerEnd - System.nanoTime();
+                    if (left <= 0) break;
+                    Charge next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                List<Charge> sent = new ArrayList<>(batch);
+                batch.clear();
+                batches.increment();
+                charges.add(sent.size());
+                inFlight.addAll(sent);
+                if (!running) failUnsettled(sent);
+                else if (latencyMicros == 0) settle(sent);
+                else {
+                    try {
+                        completer.schedule(() -> settle(sent), latencyMicros, TimeUnit.MICROSECONDS);
+                    } catch (RejectedExecutionException e) {
+                        failUnsettled(sent);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void settle(List<Charge> batch) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (Charge c : batch) {
+            if (!inFlight.remove(c)) continue;
+            String declined = null;
+            if (failureRate > 0 && rnd.nextDouble() < failureRate) {
+                declined = "Payment declined by " + name + " gateway for " + c.method.getDetails();
+            } else {
+                long t = ShopMetrics.PAY.start();
+                try {
+                    c.method.pay(c.amount);
+                } catch (ShoppingException | RuntimeException e) {
+                    declined = e.getMessage();
+                }
+                ShopMetrics.PAY.recordSince(t);
+            }
+            if (declined != null) ShopMetrics.PAY_DECLINED.increment();
+            c.result.complete(new PaymentResult(c.key, new PaymentRecord(c.method, c.amount), declined));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        dispatcher.interrupt();
+        completer.shutdownNow();
+        for (Charge c; (c = queue.poll()) != null; )
+            c.result.completeExceptionally(new IllegalStateException(name + " gateway is shut down"));
+        // Batches whose round trip was cut short never moved money
+        failUnsettled(new ArrayList<>(inFlight));
+    }
+
+    private void failUnsettled(Collection<Charge> batch) {
+        for (Charge c : batch)
+            if (inFlight.remove(c)) c.result.completeExceptionally(new IllegalStateException(name + " gateway is shut down"));
+    }
+}
+
+// Routes each tender to the gateway for its payment type and dispatches split tenders in parallel
+class PaymentRouter {
+    private final PaymentGateway cards;
+    private final PaymentGateway payPal;
+
+    PaymentRouter(PaymentGateway cards, PaymentGateway payPal) { this.cards = cards; this.payPal = payPal; }
+
+    static PaymentRouter fromProperties() {
+        return new PaymentRouter(StubGateway.fromProperties("card"), StubGateway.fromProperties("paypal"));
+    }
+
+    public PaymentGateway gatewayFor(PaymentMethod method) { return (method instanceof PayPal) ? payPal : cards; }
+
+    // Completes when every tender has an answer, so latency tracks the slowest gateway rather than the sum.
+    // Never completes exceptionally: a tender whose gateway failed comes back declined, so the caller still
+    // sees which of the others were approved and can refund exactly those.
+    public CompletableFuture<List<PaymentResult>> chargeAll(String keyPrefix, List<PaymentRecord> tenders) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<PaymentResult>[] pending = new CompletableFuture[tenders.size()];
+        for (int i = 0; i < pending.length; i++) {
+            PaymentRecord t = tenders.get(i);
+            String key = keyPrefix + ":" + i;
+            CompletableFuture<PaymentResult> charged;
+            try {
+                charged = gatewayFor(t.getMethod()).charge(key, t.getMethod(), t.getAmount());
+            } catch (RuntimeException e) {
+                charged = CompletableFuture.failedFuture(e);
+            }
+            pending[i] = charged.handle((result, failure) -> result != null ? result : new PaymentResult(key, t, failureReason(failure)));
+        }
+        return CompletableFuture.allOf(pending).thenApply(done -> {
+            List<PaymentResult> results = new ArrayList<>(pending.length);
+            for (CompletableFuture<PaymentResult> f : pending) results.add(f.join());
+            return results;
+        });
+    }
+
+    private static String failureReason(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+    }
+
+    public void shutdown() {
+        cards.shutdown();
+        payPal.shutdown();
+    }
+}
+
+// =================== Event Feed ===================
+
+enum ShopEventType { PRODUCT_ADDED, STOCK_CHANGED, ORDER_PLACED }
+
+// One preallocated slot of the feed's ring. Slots are reused once every subscriber has passed them, so a
+// handler must copy out whatever it keeps beyond its onEvent call.
+final class ShopEvent {
+    private ShopEventType type;
+    private long timestampMillis;
+    private Product product;
+    private int oldStock, newStock;
+    private String customer;
+    private Order order;
+
+    void set(ShopEventType type, Product product, int oldStock, int newStock, String customer, Order order) {
+        this.type = type; this.timestampMillis = System.currentTimeMillis();
+        this.product = product; this.oldStock = oldStock; this.newStock = newStock;
+        this.customer = customer; this.order = order;
+    }
+
+    public ShopEventType getType() { return type; }
+    public long getTimestampMillis() { return timestampMillis; }
+    // PRODUCT_ADDED and STOCK_CHANGED
+    public Product getProduct() { return product; }
+    public int getOldStock() { return oldStock; }
+    public int getNewStock() { return newStock; }
+    // ORDER_PLACED
+    public String getCustomer() { return customer; }
+    public Order getOrder() { return order; }
+}
+
+// Runs on the subscriber's own thread. endOfBatch marks the last event currently available, so handlers can
+// buffer work and flush once per batch instead of once per event.
+interface ShopEventHandler {
+    void onEvent(ShopEvent event, long sequence, boolean endOfBatch) throws Exception;
+}
+
+// Bounded, Disruptor-style multi-producer ring of inventory and order events. Publishers claim a sequence with
+// one atomic add, fill the preallocated slot and mark it published; every subscriber follows the ring on its
+// own thread at its own pace, taking all published events in one batch. A publisher that laps the slowest
+// subscriber waits for it, so a stuck consumer slows writers down instead of growing memory without bound.
+// A subscriber whose thread dies leaves the gating set, so it can never hold publishers up.
+// Subscribe before publishing starts; a late subscriber only sees events published after it joined.
+final class ShopEventFeed implements InventoryListener, OrderListener, Closeable {
+    private final ShopEvent[] slots;
+    private final int mask, shift;
+    // Round number of the event last published into each slot: sequence >>> shift
+    private final AtomicIntegerArray published;
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    // Lowest subscriber position seen by a publisher; refreshed only when a publisher is about to lap it
+    private volatile long gatingCache = -1;
+    private volatile boolean running = true;
+
+    private final class Subscriber implements Runnable {
+        final String name;
+        final ShopEventHandler handler;
+        final AtomicLong sequence;
+        final Thread thread;
+
+        Subscriber(String name, ShopEventHandler handler, long start) {
+            this.name = name; this.handler = handler; this.sequence = new AtomicLong(start);
+            this.thread = new Thread(this, "feed-" + name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            boolean stopped = false;
+            try {
+                follow();
+                stopped = true;
+            } finally {
+                if (!stopped) drop(this);
+            }
+        }
+
+        private void follow() {
+            long next = sequence.get() + 1;
+            int idle = 0;
+            while (true) {
+                long available = highestPublished(next, cursor.get());
+                if (available < next) {
+                    if (!running) return;
+                    // Spin briefly, then yield, then park: batches form while the subscriber sleeps
+                    if (idle < 100) { idle++; Thread.onSpinWait(); }
+                    else if (idle < 200) { idle++; Thread.yield(); }
+                    else LockSupport.parkNanos(50_000);
+                    continue;
+                }
+                idle = 0;
+                for (long s = next; s <= available; s++) {
+                    try {
+                        handler.onEvent(slots[(int) (s & mask)], s, s == available);
+                    } catch (Exception | LinkageError e) {
+                        ShopMetrics.FEED_HANDLER_ERRORS.increment();
+                        System.err.println("Event subscriber " + name + " failed at " + s + ": " + e);
+                    }
+                }
+                sequence.setRelease(available);
+                next = available + 1;
+            }
+        }
+    }
+
+    public ShopEventFeed(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Feed capacity must be a power of two");
+        slots = new ShopEvent[capacity];
+        for (int i = 0; i < capacity; i++) slots[i] = new ShopEvent();
+        mask = capacity - 1;
+        shift = Integer.numberOfTrailingZeros(capacity);
+        published = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) published.set(i, -1);
+    }
+
+    // An Error escaped the handler and ended the subscriber's thread; publishers stop waiting on it
+    private void drop(Subscriber s) {
+        subscribers.remove(s);
+        gatingCache = -1;
+        ShopMetrics.FEED_SUBSCRIBERS_DROPPED.increment();
+        System.err.println("Event subscriber " + s.name + " stopped at " + s.sequence.get() + " and was dropped");
+    }
+
+    public void subscribe(String name, ShopEventHandler handler) {
+        Subscriber s = new Subscriber(name, handler, cursor.get());
+        subscribers.add(s);
+        gatingCache = -1;
+        s.thread.start();
+    }
+
+    // Replays inventory events to an existing listener on a subscriber thread
+    public void subscribe(String name, InventoryListener listener) {
+        subscribe(name, (e, sequence, endOfBatch) -> {
+            if (e.getType() == ShopEventType.PRODUCT_ADDED) listener.productAdded(e.getProduct());
+            else if (e.getType() == ShopEventType.STOCK_CHANGED) listener.stockChanged(e.getProduct(), e.getOldStock(), e.getNewStock());
+        });
+    }
+
+    @Override public void productAdded(Product p) { publish(ShopEventType.PRODUCT_ADDED, p, 0, p.getAddedStock(), null, null); }
+    @Override public void stockChanged(Product p, int oldStock, int newStock) { publish(ShopEventType.STOCK_CHANGED, p, oldStock, newStock, null, null); }
+    @Override public void orderPlaced(String customer, Order order) { publish(ShopEventType.ORDER_PLACED, null, 0, 0, customer, order); }
+
+    private void publish(ShopEventType type, Product product, int oldStock, int newStock, String customer, Order order) {
+        if (!running) return;
+        long seq = cursor.incrementAndGet();
+        long wrap = seq - slots.length;
+        if (wrap > gatingCache) {
+            long min;
+            for (int spins = 0; wrap > (min = slowestSubscriber(seq)); spins++) {
+                if (spins == 0) ShopMetrics.FEED_PUBLISHER_STALLS.increment();
+                if (spins < 100) Thread.onSpinWait(); else LockSupport.parkNanos(1_000);
+            }
+            gatingCache = min;
+        }
+        slots[(int) (seq & mask)].set(type, product, oldStock, newStock, customer, order);
+        published.setRelease((int) (seq & mask), (int) (seq >>> shift));
+    }
+
+    private long slowestSubscriber(long fallback) {
+        long min = fallback;
+        for (Subscriber s : subscribers) min = Math.min(min, s.sequence.getAcquire());
+        return min;
+    }
+
+    // Last sequence in [lo, hi] up to which every event is published; publishers can finish out of order
+    private long highestPublished(long lo, long hi) {
+        for (long s = lo; s <= hi; s++)
+            if (published.getAcquire((int) (s & mask)) != (int) (s >>> shift)) return s - 1;
+        return hi;
+    }
+
+    public long publishedCount() { return cursor.get() + 1; }
+
+    // Events published but not yet handled by the named subscriber; a dropped subscriber is no longer known
+    public long lag(String name) {
+        for (Subscriber s : subscribers) if (s.name.equals(name)) return cursor.get() - s.sequence.get();
+        throw new IllegalArgumentException("No subscriber " + name);
+    }
+
+    // Stops accepting events, lets subscribers drain what was published, then stops them
+    @Override
+    public void close() {
+        running = false;
+        for (Subscriber s : subscribers) {
+            try {
+                s.thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
+
+// Raises an alert when a product's stock falls to the threshold or sells out. Alerts raised within one batch
+// are handed to the sink together, one per product, with the latest stock.
+final class LowStockAlerter implements ShopEventHandler {
+    private final int threshold;
+    private final Consumer<List<String>> sink;
+    private final Map<String, String> pending = new LinkedHashMap<>();
+
+    LowStockAlerter(int threshold, Consumer<List<String>> sink) { this.threshold = threshold; this.sink = sink; }
+
+    @Override
+    public void onEvent(ShopEvent e, long sequence, boolean endOfBatch) {
+        if (e.getType() == ShopEventType.STOCK_CHANGED && e.getNewStock() < e.getOldStock()) {
+            Product p = e.getProduct();
+            if (e.getNewStock() == 0) pending.put(p.getId(), p.getName() + " (" + p.getId() + ") is SOLD OUT");
+            else if (e.getNewStock() <= threshold && e.getOldStock() > threshold)
+                pending.put(p.getId(), p.getName() + " (" + p.getId() + ") is low on stock: " + e.getNewStock() + " left");
+        }
+        if (endOfBatch && !pending.isEmpty()) {
+            sink.accept(new ArrayList<>(pending.values()));
+            pending.clear();
+        }
+    }
+}
+
+// =================== Sales Analytics ===================
+
+// Units sold and gross sales of one product; gross is unit price times quantity, before promotions
+final class ProductSales {
+    private final String id, name;
+    private final long units;
+    private final Money gross;
+
+    ProductSales(String id, String name, long units, Money gross) { this.id = id; this.name = name; this.units = units; this.gross = gross; }
+    public String getId() { return id; }
+    public String getName() { return name; }
+    public long getUnits() { return units; }
+    public Money getGross() { return gross; }
+}
+
+// How much was paid through one payment method, e.g. "CreditCard"
+final class PaymentShare {
+    private final String method;
+    private final long payments;
+    private final Money amount;
+
+    PaymentShare(String method, long payments, Money amount) { this.method = method; this.payments = payments; this.amount = amount; }
+    public String getMethod() { return method; }
+    public long getPayments() { return payments; }
+    public Money getAmount() { return amount; }
+}
+
+// Dashboard queries shared by a one-off report and the live totals
+interface SalesView {
+    long orderCount();
+    // Sum of what customers paid, after promotions
+    Money revenue();
+    // Null when the product never sold
+    ProductSales productSales(String id);
+    // Most units first
+    List<ProductSales> bestSellers(int limit);
+    // Largest amount first
+    List<PaymentShare> paymentMix();
+
+    default Money averageOrderValue() {
+        long n = orderCount();
+        return n == 0 ? Money.ZERO : Money.ofCents(Money.divideHalfEven(revenue().cents(), n));
+    }
+
+    default void appendTo(StringBuilder out, int top) {
+        Money revenue = revenue();
+        out.append("Orders: ").append(orderCount()).append("  Revenue: ");
+        revenue.appendTo(out).append("  Average order: ");
+        averageOrderValue().appendTo(out).append('\n');
+        List<ProductSales> best = bestSellers(top);
+        if (!best.isEmpty()) out.append("Best sellers:\n");
+        for (int i = 0; i < best.size(); i++) {
+            ProductSales p = best.get(i);
+            out.append("  ").append(i + 1).append(". ").append(p.getName()).append(" (").append(p.getId()).append(")  units ")
+                .append(p.getUnits()).append("  gross ");
+            p.getGross().appendTo(out).append('\n');
+        }
+        List<PaymentShare> mix = paymentMix();
+        long paid = 0;
+        for (PaymentShare m : mix) paid += m.getAmount().cents();
+        if (!mix.isEmpty()) out.append("Payment mix:\n");
+        for (PaymentShare m : mix) {
+            out.append("  ").append(m.getMethod()).append("  ").append(m.getPayments()).append(" payments  ");
+            long permille = paid == 0 ? 0 : Math.round(1000.0 * m.getAmount().cents() / paid);
+            m.getAmount().appendTo(out).append(" (").append(permille / 10).append('.').append(permille % 10).append("%)\n");
+        }
+    }
+}
+
+// Mergeable partial totals over some orders. One thread fills an instance, then instances are merged pairwise.
+// Units are counted per ProductRef, which all orders share, so a line costs an identity lookup; refs of one
+// product at different prices are only folded together by id in toReport.
+final class SalesAggregate {
+    private long orders, revenueCents;
+    // ref -> {units}
+    private final Map<ProductRef, long[]> products = new IdentityHashMap<>();
+    // method -> {payments, cents}
+    private final Map<String, long[]> methods = new HashMap<>();
+
+    void addOrders(long count, long revenueCents) {
+        orders += count;
+        this.revenueCents = Math.addExact(this.revenueCents, revenueCents);
+    }
+
+    void addProduct(ProductRef ref, long units) {
+        long[] t = products.get(ref);
+        if (t == null) products.put(ref, t = new long[1]);
+        t[0] += units;
+    }
+
+    void addPayments(String method, long payments, long cents) {
+        long[] t = methods.computeIfAbsent(method, k -> new long[2]);
+        t[0] += payments;
+        t[1] = Math.addExact(t[1], cents);
+    }
+
+    void add(Order order) {
+        addOrders(1, order.getTotalPaid().cents());
+        for (int i = 0; i < order.lineCount(); i++) addProduct(order.getProductAt(i), order.getQuantityAt(i));
+        for (int i = 0; i < order.paymentCount(); i++) addPayments(order.getPaymentMethodAt(i), 1, order.getPaymentCentsAt(i));
+    }
+
+    SalesAggregate merge(SalesAggregate other) {
+        addOrders(other.orders, other.revenueCents);
+        other.products.forEach((ref, t) -> addProduct(ref, t[0]));
+        other.methods.forEach((m, t) -> addPayments(m, t[0], t[1]));
+        return this;
+    }
+
+    SalesReport toReport() {
+        // id -> {units, gross cents}; the name is taken from whichever ref of the id comes first
+        Map<String, long[]> byId = new HashMap<>();
+        Map<String, String> names = new HashMap<>();
+        products.forEach((ref, t) -> {
+            long[] sum = byId.computeIfAbsent(ref.getId(), k -> new long[2]);
+            sum[0] += t[0];
+            sum[1] = Math.addExact(sum[1], Math.multiplyExact(t[0], ref.getUnitPrice().cents()));
+            names.putIfAbsent(ref.getId(), ref.getName());
+        });
+        List<ProductSales> ranked = new ArrayList<>(byId.size());
+        byId.forEach((id, t) -> ranked.add(new ProductSales(id, names.get(id), t[0], Money.ofCents(t[1]))));
+        ranked.sort(SalesReport.BY_UNITS);
+        List<PaymentShare> mix = new ArrayList<>(methods.size());
+        methods.forEach((m, t) -> mix.add(new PaymentShare(m, t[0], Money.ofCents(t[1]))));
+        mix.sort(SalesReport.BY_AMOUNT);
+        return new SalesReport(orders, Money.ofCents(revenueCents), ranked, mix);
+    }
+}
+
+// Totals frozen at the time they were computed
+final class SalesReport implements SalesView {
+    static final Comparator<ProductSales> BY_UNITS =
+        Comparator.comparingLong(ProductSales::getUnits).reversed().thenComparing(ProductSales::getId);
+    static final Comparator<PaymentShare> BY_AMOUNT =
+        Comparator.comparing(PaymentShare::getAmount).reversed().thenComparing(PaymentShare::getMethod);
+
+    private final long orders;
+    private final Money revenue;
+    private final List<ProductSales> ranked;
+    private final Map<String, ProductSales> byId = new HashMap<>();
+    private final List<PaymentShare> mix;
+
+    SalesReport(long orders, Money revenue, List<ProductSales> ranked, List<PaymentShare> mix) {
+        this.orders = orders; this.revenue = revenue;
+        this.ranked = Collections.unmodifiableList(ranked); this.mix = Collections.unmodifiableList(mix);
+        for (ProductSales p : ranked) byId.put(p.getId(), p);
+    }
+
+    @Override public long orderCount() { return orders; }
+    @Override public Money revenue() { return revenue; }
+    @Override public ProductSales productSales(String id) { return byId.get(id); }
+    @Override public List<ProductSales> bestSellers(int limit) { return ranked.subList(0, Math.min(limit, ranked.size())); }
+    @Override public List<PaymentShare> paymentMix() { return mix; }
+    List<ProductSales> allProducts() { return ranked; }
+}
+
+// Full scans over order histories. Each history is cut into slices of up to SLICE_ORDERS orders, slices are
+// aggregated in parallel on the common fork-join pool straight from the encoded columns, and the partial
+// aggregates are merged as the fork-join tasks complete.
+final class SalesAnalytics {
+    static final int SLICE_ORDERS = 1 << 14;
+
+    private SalesAnalytics() {}
+
+    private static final class Slice {
+        final OrderHistory history;
+        final int from, to;
+        Slice(OrderHistory history, int from, int to) { this.history = history; this.from = from; this.to = to; }
+    }
+
+    private static List<Slice> slices(Collection<OrderHistory> histories) {
+        List<Slice> slices = new ArrayList<>();
+        for (OrderHistory h : histories) {
+            int n = h.size();
+            for (int from = 0; from < n; from += SLICE_ORDERS) slices.add(new Slice(h, from, Math.min(n, from + SLICE_ORDERS)));
+        }
+        return slices;
+    }
+
+    // Covers the orders present in each history when the scan starts
+    static SalesReport compute(Collection<OrderHistory> histories) {
+        // With one worker the fork-join split and merge are pure overhead
+        if (ForkJoinPool.getCommonPoolParallelism() < 2) return computeSequential(histories);
+        return slices(histories).parallelStream()
+            .collect(SalesAggregate::new, (agg, s) -> s.history.aggregateInto(agg, s.from, s.to), SalesAggregate::merge)
+            .toReport();
+    }
+
+    // Single-threaded, for comparison and for callers already running on a pool
+    static SalesReport computeSequential(Collection<OrderHistory> histories) {
+        SalesAggregate agg = new SalesAggregate();
+        for (Slice s : slices(histories)) s.history.aggregateInto(agg, s.from, s.to);
+        return agg.toReport();
+    }
+}
+
+// Materialized sales totals kept current from the event feed, so dashboard reads cost the same whether there
+// are a hundred orders or a hundred million. Seed it once from a full scan, before orders start flowing, then
+// subscribe it to the feed. Orders are applied one at a time under a lock that only the feed thread takes;
+// readers on any thread never lock. Order count and revenue are separate volatiles, so an average read while
+// an order is being applied can be one order off.
+final class LiveSalesAnalytics implements SalesView, ShopEventHandler {
+    // Best sellers kept ranked; longer lists are sorted on request
+    static final int LEADERS = 100;
+
+    private static final class Tally {
+        final String key;
+        volatile String label;
+        volatile long count, cents;
+        // Position on the leaderboard, or -1; touched only by the writer
+        int slot = -1;
+        Tally(String key, String label) { this.key = key; this.label = label; }
+    }
+
+    // A leaderboard entry: units as of when the board was published
+    private static final class Leader {
+        final long units;
+        final Tally tally;
+        Leader(long units, Tally tally) { this.units = units; this.tally = tally; }
+    }
+
+    private final ConcurrentMap<String, Tally> products = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Tally> methods = new ConcurrentHashMap<>();
+    // The writer edits board in place and publishes a copy as leaders after each order that moved it. Units
+    // only grow, so every product off the board has at most the units of the last one on it, and a product
+    // joins by pushing that last one off.
+    private Leader[] board = new Leader[0];
+    private volatile Leader[] leaders = board;
+    private volatile long orders, revenueCents;
+
+    public synchronized void seed(SalesReport report) {
+        orders += report.orderCount();
+        revenueCents = Math.addExact(revenueCents, report.revenue().cents());
+        for (ProductSales p : report.allProducts()) {
+            Tally t = products.computeIfAbsent(p.getId(), k -> new Tally(k, p.getName()));
+            t.cents = Math.addExact(t.cents, p.getGross().cents());
+            t.count += p.getUnits();
+        }
+        for (PaymentShare m : report.paymentMix()) addPayments(m.getMethod(), m.getPayments(), m.getAmount().cents());
+        List<Tally> ranked = rankAll();
+        for (Tally t : products.values()) t.slot = -1;
+        board = new Leader[Math.min(LEADERS, ranked.size())];
+        for (int i = 0; i < board.length; i++) {
+            board[i] = new Leader(ranked.get(i).count, ranked.get(i));
+            ranked.get(i).slot = i;
+        }
+        leaders = board.clone();
+    }
+
+    @Override
+    public void onEvent(ShopEvent e, long sequence, boolean endOfBatch) {
+        if (e.getType() == ShopEventType.ORDER_PLACED) record(e.getOrder());
+    }
+
+    public synchronized void record(Order order) {
+        boolean moved = false;
+        for (int i = 0; i < order.lineCount(); i++) {
+            ProductRef ref = order.getProductAt(i);
+            int qty = order.getQuantityAt(i);
+            Tally t = products.get(ref.getId());
+            if (t == null) products.put(ref.getId(), t = new Tally(ref.getId(), ref.getName()));
+            else t.label = ref.getName();
+            t.cents = Math.addExact(t.cents, Math.multiplyExact(qty, ref.getUnitPrice().cents()));
+            t.count += qty;
+            moved |= promote(t);
+        }
+        for (int i = 0; i < order.paymentCount(); i++) addPayments(order.getPaymentMethodAt(i), 1, order.getPaymentCentsAt(i));
+        revenueCents = Math.addExact(revenueCents, order.getTotalPaid().cents());
+        orders++;
+        if (moved) leaders = board.clone();
+    }
+
+    // Refreshes the product's board entry, or lets it onto the board, and bubbles it up past lower counts
+    private boolean promote(Tally t) {
+        int i = t.slot;
+        if (i < 0) {
+            if (board.length < LEADERS) {
+                board = Arrays.copyOf(board, board.length + 1);
+                i = board.length - 1;
+            } else if (t.count > board[board.length - 1].units) {
+                i = board.length - 1;
+                board[i].tally.slot = -1;
+            } else {
+                return false;
+            }
+        }
+        Leader entry = new Leader(t.count, t);
+        for (; i > 0 && board[i - 1].units < entry.units; i--) {
+            board[i] = board[i - 1];
+            board[i].tally.slot = i;
+        }
+        board[i] = entry;
+        t.slot = i;
+        return true;
+    }
+
+    private void addPayments(String method, long payments, long cents) {
+        Tally t = methods.computeIfAbsent(method, k -> new Tally(k, k));
+        t.cents = Math.addExact(t.cents, cents);
+        t.count += payments;
+    }
+
+    private List<Tally> rankAll() {
+        List<Tally> all = new ArrayList<>(products.values());
+        all.sort(Comparator.comparingLong((Tally t) -> t.count).reversed().thenComparing(t -> t.key));
+        return all;
+    }
+
+    @Override public long orderCount() { return orders; }
+    @Override public Money revenue() { return Money.ofCents(revenueCents); }
+
+    @Override
+    public ProductSales productSales(String id) {
+        Tally t = products.get(id);
+        return t == null ? null : new ProductSales(id, t.label, t.count, Money.ofCents(t.cents));
+    }
+
+    // Up to LEADERS entries come straight off the published board; beyond that every product is sorted
+    @Override
+    public List<ProductSales> bestSellers(int limit) {
+        Leader[] top = leaders;
+        List<ProductSales> out = new ArrayList<>(Math.min(limit, LEADERS));
+        if (limit <= top.length || top.length < LEADERS) {
+            for (int i = 0; i < Math.min(limit, top.length); i++)
+                out.add(new ProductSales(top[i].tally.key, top[i].tally.label, top[i].units, Money.ofCents(top[i].tally.cents)));
+        } else {
+            for (Tally t : rankAll()) {
+                if (out.size() == limit) break;
+                out.add(new ProductSales(t.key, t.label, t.count, Money.ofCents(t.cents)));
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public List<PaymentShare> paymentMix() {
+        List<PaymentShare> mix = new ArrayList<>(methods.size());
+        for (Tally t : methods.values()) mix.add(new PaymentShare(t.key, t.count, Money.ofCents(t.cents)));
+        mix.sort(SalesReport.BY_AMOUNT);
+        return mix;
+    }
+}
+
+// =================== Persistence ===================
+
+// Compact binary form of an Order: date, total, (id, name, unit price, quantity) lines and (method, amount) payments
+final class OrderCodec {
+    static byte[] encode(Order order) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(order.getDate().getTime());
+            out.writeLong(order.getTotalPaid().cents());
+            out.writeInt(order.getLines().size());
+            for (OrderLine line : order.getLines()) {
+                out.writeUTF(line.getProduct().getId());
+                out.writeUTF(line.getProduct().getName());
+                out.writeLong(line.getProduct().getUnitPrice().cents());
+                out.writeInt(line.getQuantity());
+            }
+            out.writeInt(order.getPayments().size());
+            for (PaymentRecord pr : order.getPayments()) {
+                out.writeUTF(pr.getMethodName());
+                out.writeLong(pr.getAmount().cents());
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Order decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        Date date = new Date(in.readLong());
+        Money total = Money.ofCents(in.readLong());
+        int lines = in.readInt();
+        OrderLine[] items = new OrderLine[lines];
+        for (int i = 0; i < lines; i++) {
+            ProductRef ref = ProductRef.of(in.readUTF(), in.readUTF(), Money.ofCents(in.readLong()));
+            items[i] = new OrderLine(ref, in.readInt());
+        }
+        int count = in.readInt();
+        List<PaymentRecord> payments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) payments.add(new PaymentRecord(in.readUTF(), Money.ofCents(in.readLong())));
+        return new Order(items, total, payments, date);
+    }
+}
+
+// Plain-data image of everything the journal records; built by replaying snapshot + log, never by reading live objects
+final class JournalState {
+    static final byte ELECTRONICS = 1, CLOTHING = 2, CREDIT_CARD = 1, PAYPAL = 2;
+
+    static final class ProductRow {
+        byte type; String id, name, attr; long priceCents; int stock;
+    }
+    static final class AccountRow {
+        byte type; String key; long balanceCents;
+    }
+    // Orders older than the snapshot live in the OrderArchive, reachable from lastArchived; only those logged
+    // since are held here
+    static final class CustomerRow {
+        final Map<String, AccountRow> accounts = new LinkedHashMap<>();
+        long lastArchived = OrderArchive.NONE;
+        final List<byte[]> orders = new ArrayList<>();
+    }
+
+    long lastLsn;
+    final Map<String, ProductRow> products = new LinkedHashMap<>();
+    final Map<String, CustomerRow> customers = new HashMap<>();
+    // Stock deltas can be logged just before the product's ADD record, which carries the stock from before
+    // them; they are parked here until it arrives
+    private final Map<String, Integer> earlyStock = new HashMap<>();
+
+    private CustomerRow customer(String name) { return customers.computeIfAbsent(name, k -> new CustomerRow()); }
+
+    void apply(long lsn, DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case ShopJournal.ADD_PRODUCT: {
+                ProductRow row = new ProductRow();
+                row.type = in.readByte(); row.id = in.readUTF(); row.name = in.readUTF(); row.attr = in.readUTF();
+                row.priceCents = in.readLong(); row.stock = in.readInt();
+                Integer early = earlyStock.remove(row.id);
+                if (early != null) row.stock += early;
+                products.putIfAbsent(row.id, row);
+                break;
+            }
+            case ShopJournal.STOCK_DELTA: {
+                String id = in.readUTF();
+                int delta = in.readInt();
+                ProductRow row = products.get(id);
+                if (row != null) row.stock += delta; else earlyStock.merge(id, delta, Integer::sum);
+                break;
+            }
+            case ShopJournal.ACCOUNT_ADD: {
+                AccountRow row = new AccountRow();
+                String owner = in.readUTF();
+                row.type = in.readByte(); row.key = in.readUTF(); row.balanceCents = in.readLong();
+                customer(owner).accounts.put(row.key, row);
+                break;
+            }
+            case ShopJournal.ACCOUNT_REMOVE: {
+                String owner = in.readUTF();
+                customer(owner).accounts.remove(in.readUTF());
+                break;
+            }
+            case ShopJournal.BALANCE_DELTA: {
+                String owner = in.readUTF(), key = in.readUTF();
+                long delta = in.readLong();
+                AccountRow row = customer(owner).accounts.get(key);
+                if (row != null) row.balanceCents += delta;
+                break;
+            }
+            case ShopJournal.ORDER: {
+                String owner = in.readUTF();
+                byte[] order = new byte[in.readInt()];
+                in.readFully(order);
+                customer(owner).orders.add(order);
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+        lastLsn = lsn;
+    }
+
+    // Moves the orders held here into the archive first, so the snapshot only stores where each customer's end
+    void writeTo(DataOutputStream out, OrderArchive archive) throws IOException {
+        for (CustomerRow c : customers.values()) {
+            for (byte[] o : c.orders) c.lastArchived = archive.append(c.lastArchived, o);
+            c.orders.clear();
+        }
+        archive.force();
+        out.writeInt(ShopJournal.SNAPSHOT_MAGIC);
+        out.writeLong(lastLsn);
+        out.writeInt(products.size());
+        for (ProductRow p : products.values()) {
+            out.writeByte(p.type); out.writeUTF(p.id); out.writeUTF(p.name); out.writeUTF(p.attr);
+            out.writeLong(p.priceCents); out.writeInt(p.stock);
+        }
+        out.writeInt(customers.size());
+        for (Map.Entry<String, CustomerRow> e : customers.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeInt(e.getValue().accounts.size());
+            for (AccountRow a : e.getValue().accounts.values()) {
+                out.writeByte(a.type); out.writeUTF(a.key); out.writeLong(a.balanceCents);
+            }
+            out.writeLong(e.getValue().lastArchived);
+        }
+    }
+
+    static JournalState readFrom(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        if (magic != ShopJournal.SNAPSHOT_MAGIC && magic != ShopJournal.SNAPSHOT_MAGIC_INLINE_ORDERS) throw new IOException("Not a snapshot file");
+        JournalState st = new JournalState();
+        st.lastLsn = in.readLong();
+        for (int i = in.readInt(); i > 0; i--) {
+            ProductRow p = new ProductRow();
+            p.type = in.readByte(); p.id = in.readUTF(); p.name = in.readUTF(); p.attr = in.readUTF();
+            p.priceCents = in.readLong(); p.stock = in.readInt();
+            st.products.put(p.id, p);
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            CustomerRow c = st.customer(in.readUTF());
+            for (int j = in.readInt(); j > 0; j--) {
+                AccountRow a = new AccountRow();
+                a.type = in.readByte(); a.key = in.readUTF(); a.balanceCents = in.readLong();
+                c.accounts.put(a.key, a);
+            }
+            if (magic == ShopJournal.SNAPSHOT_MAGIC) {
+                c.lastArchived = in.readLong();
+                continue;
+            }
+            // Snapshots from before the archive; the next compaction moves these orders into it
+            for (int j = in.readInt(); j > 0; j--) {
+                byte[] o = new byte[in.readInt()];
+                in.readFully(o);
+                c.orders.add(o);
+            }
+        }
+        return st;
+    }
+}
+
+// Append-only file of encoded orders, one backward chain per customer: each record is
+// [long previous][int length][bytes], so a snapshot keeps a single offset per customer instead of the orders.
+// Records a failed compaction appended are never referenced and only cost their disk space.
+final class OrderArchive implements Closeable {
+    static final long NONE = -1;
+    private final FileChannel channel;
+    private long end;
+
+    OrderArchive(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = channel.size();
+    }
+
+    synchronized long append(long previous, byte[] order) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(12 + order.length).putLong(previous).putInt(order.length).put(order).flip();
+        long at = end;
+        while (buf.hasRemaining()) channel.write(buf, at + buf.position());
+        end += buf.limit();
+        return at;
+    }
+
+    void force() throws IOException { channel.force(false); }
+
+    // Oldest first
+    List<byte[]> chain(long last) throws IOException {
+        ArrayDeque<byte[]> orders = new ArrayDeque<>();
+        ByteBuffer head = ByteBuffer.allocate(12);
+        for (long at = last; at != NONE; ) {
+            head.clear();
+            readFully(head, at);
+            long previous = head.getLong(0);
+            int len = head.getInt(8);
+            if (len < 0 || previous >= at) throw new IOException("Corrupt order archive at " + at);
+            ByteBuffer body = ByteBuffer.allocate(len);
+            readFully(body, at + 12);
+            orders.addFirst(body.array());
+            at = previous;
+        }
+        return new ArrayList<>(orders);
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) throw new EOFException("Order archive truncated at " + pos);
+        }
+    }
+
+    @Override
+    public void close() throws IOException { channel.close(); }
+}
+
+// Reads a (memory-mapped) ByteBuffer through the java.io stream API
+final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buf;
+    ByteBufferInputStream(ByteBuffer buf) { this.buf = buf; }
+    @Override public int read() { return buf.hasRemaining() ? buf.get() & 0xFF : -1; }
+    @Override public int read(byte[] b, int off, int len) {
+        if (!buf.hasRemaining()) return -1;
+        int n = Math.min(len, buf.remaining());
+        buf.get(b, off, n);
+        return n;
+    }
+}
+
+// Segmented write-ahead log with group commit and background snapshot compaction.
+// Frames are [int length][int crc32][long lsn][byte type][payload]. Stock and balance changes are logged
+// as deltas so concurrent updates replay correctly in any interleaving. Orders, product adds and account
+// changes wait for their fsync; deltas become durable with the next group commit. Compaction folds orders into
+// an OrderArchive, so neither snapshots nor the recovered state hold past orders in memory.
+class ShopJournal implements InventoryListener, Closeable {
+    static final byte ADD_PRODUCT = 1, STOCK_DELTA = 2, ACCOUNT_ADD = 3, ACCOUNT_REMOVE = 4, BALANCE_DELTA = 5, ORDER = 6;
+    static final int SNAPSHOT_MAGIC = 0x53484F51, SNAPSHOT_MAGIC_INLINE_ORDERS = 0x53484F50;
+    private static final int HEADER = 8;
+
+    interface Payload { void write(DataOutputStream out) throws IOException; }
+
+    private final Path dir;
+    private final long segmentLimit;
+    private final JournalState recovered;
+    private final OrderArchive archive;
+    private final Object lock = new Object();
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long nextLsn, queuedLsn, durableLsn;
+    private boolean closing;
+    private volatile IOException failure;
+    private volatile long currentSegmentStart;
+    private FileChannel segment;
+    private long segmentBytes;
+    private final Thread writer;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "journal-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ShopJournal(Path dir, long segmentLimit, JournalState recovered, OrderArchive archive) throws IOException {
+        this.dir = dir; this.segmentLimit = segmentLimit; this.recovered = recovered; this.archive = archive;
+        this.nextLsn = this.queuedLsn = this.durableLsn = recovered.lastLsn;
+        openSegment(nextLsn + 1);
+        writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Loads the newest snapshot (memory-mapped) and replays the log written after it
+    static ShopJournal open(Path dir, long segmentLimit) throws IOException {
+        Files.createDirectories(dir);
+        JournalState state = loadSnapshot(dir);
+        for (Path seg : segments(dir)) replay(seg, state, true);
+        return new ShopJournal(dir, segmentLimit, state, new OrderArchive(dir.resolve("orders.dat")));
+    }
+
+    private static List<Path> list(Path dir, String prefix) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, prefix + "-*")) {
+            for (Path p : ds) files.add(p);
+        }
+        files.sort(Comparator.comparingLong(ShopJournal::sequenceOf));
+        return files;
+    }
+    private static List<Path> segments(Path dir) throws IOException { return list(dir, "wal"); }
+    private static long sequenceOf(Path p) {
+        String n = p.getFileName().toString();
+        return Long.parseLong(n.substring(n.indexOf('-') + 1, n.indexOf('.')));
+    }
+
+    private static JournalState loadSnapshot(Path dir) throws IOException {
+        List<Path> snaps = list(dir, "snapshot");
+        if (snaps.isEmpty()) return new JournalState();
+        try (FileChannel ch = FileChannel.open(snaps.get(snaps.size() - 1), StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) throw new IOException("Snapshot larger than 2GB is not supported");
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return JournalState.readFrom(new DataInputStream(new ByteBufferInputStream(map)));
+        }
+    }
+
+    // Applies every intact record newer than the state; a torn tail is cut off when truncate is set
+    private static void replay(Path seg, JournalState state, boolean truncate) throws IOException {
+        long valid = 0, size = Files.size(seg);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(seg)))) {
+            CRC32 check = new CRC32();
+            while (true) {
+                int len, sum;
+                byte[] body;
+                try {
+                    len = in.readInt();
+                    sum = in.readInt();
+                    // A length running past the end of the segment is garbage from a torn write, not a record
+                    if (len < 9 || len > size - valid - HEADER) break;
+                    body = new byte[len];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                check.reset();
+                check.update(body);
+                if ((int) check.getValue() != sum) break;
+                DataInputStream rec = new DataInputStream(new ByteArrayInputStream(body));
+                long lsn = rec.readLong();
+                if (lsn > state.lastLsn) state.apply(lsn, rec);
+                valid += HEADER + len;
+            }
+        }
+        if (truncate && valid < size) {
+            try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.WRITE)) { ch.truncate(valid); }
+        }
+    }
+
+    // ---- restore ----
+
+    public void restoreInto(StoreManager store) throws ShoppingException {
+        for (JournalState.ProductRow row : recovered.products.values()) {
+            // A persistent catalog (--catalog) may already hold the product
+            if (!store.isProductIdUnique(row.id)) continue;
+            Money price = Money.ofCents(row.priceCents);
+            store.addProduct(row.type == JournalState.ELECTRONICS
+                ? new Electronics(row.id, row.name, price, row.stock, row.attr)
+                : new Clothing(row.id, row.name, price, row.stock, row.attr));
+        }
+        recovered.products.clear();
+        store.addListener(this);
+    }
+
+    // Rebuilds a returning customer's wallets and order history, or returns null for a new name
+    public Customer restoreCustomer(String name) throws ShoppingException, IOException {
+        JournalState.CustomerRow row = recovered.customers.remove(name);
+        if (row == null) return null;
+        Customer c = new Customer(name);
+        for (JournalState.AccountRow a : row.accounts.values()) {
+            Money balance = Money.ofCents(a.balanceCents);
+            c.addPaymentMethod(a.type == JournalState.CREDIT_CARD ? new CreditCard(a.key, balance) : new PayPal(a.key, balance));
+        }
+        for (byte[] o : orders(row)) c.addOrder(OrderCodec.decode(o));
+        c.attachJournal(this);
+        return c;
+    }
+
+    // Order histories of customers recovered from disk who have not logged in since; for startup analytics,
+    // before sessions start restoring customers
+    public List<OrderHistory> recoveredOrderHistories() throws IOException {
+        List<OrderHistory> histories = new ArrayList<>(recovered.customers.size());
+        for (JournalState.CustomerRow row : recovered.customers.values()) {
+            if (row.orders.isEmpty() && row.lastArchived == OrderArchive.NONE) continue;
+            OrderHistory h = new OrderHistory();
+            for (byte[] o : orders(row)) h.append(OrderCodec.decode(o));
+            histories.add(h);
+        }
+        return histories;
+    }
+
+    private List<byte[]> orders(JournalState.CustomerRow row) throws IOException {
+        List<byte[]> orders = archive.chain(row.lastArchived);
+        orders.addAll(row.orders);
+        return orders;
+    }
+
+    // ---- logging ----
+
+    @Override
+    public void productAdded(Product p) { awaitDurable(appendProduct(p)); }
+
+    // A batch waits for durability once, after its last record
+    @Override
+    public void productsAdded(List<Product> products) {
+        long last = 0;
+        for (Product p : products) last = appendProduct(p);
+        awaitDurable(last);
+    }
+
+    private long appendProduct(Product p) {
+        byte type = (p instanceof Electronics) ? JournalState.ELECTRONICS : JournalState.CLOTHING;
+        return append(ADD_PRODUCT, out -> {
+            out.writeByte(type); out.writeUTF(p.getId()); out.writeUTF(p.getName()); out.writeUTF(p.getAttribute());
+            out.writeLong(p.getPrice().cents()); out.writeInt(p.getAddedStock());
+        });
+    }
+
+    @Override
+    public void stockChanged(Product p, int oldStock, int newStock) {
+        append(STOCK_DELTA, out -> { out.writeUTF(p.getId()); out.writeInt(newStock - oldStock); });
+    }
+
+    BalanceListener balanceListenerFor(String customer) {
+        return (method, delta) -> append(BALANCE_DELTA, out -> {
+            out.writeUTF(customer); out.writeUTF(method.getAccountKey()); out.writeLong(delta);
+        });
+    }
+
+    void accountAdded(String customer, PaymentMethod m) {
+        byte type = (m instanceof CreditCard) ? JournalState.CREDIT_CARD : JournalState.PAYPAL;
+        awaitDurable(append(ACCOUNT_ADD, out -> {
+            out.writeUTF(customer); out.writeByte(type); out.writeUTF(m.getAccountKey()); out.writeLong(m.getBalanceCents());
+        }));
+    }
+
+    void accountRemoved(String customer, PaymentMethod m) {
+        awaitDurable(append(ACCOUNT_REMOVE, out -> { out.writeUTF(customer); out.writeUTF(m.getAccountKey()); }));
+    }
+
+    void orderPlaced(String customer, Order order) {
+        byte[] encoded = OrderCodec.encode(order);
+        awaitDurable(append(ORDER, out -> { out.writeUTF(customer); out.writeInt(encoded.length); out.write(encoded); }));
+    }
+
+    // Encodes outside the lock; only LSN assignment, checksum and enqueue are serialized
+    long append(byte type, Payload payload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(0);
+            out.writeByte(type);
+            payload.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] body = bytes.toByteArray();
+        synchronized (lock) {
+            if (closing) throw new IllegalStateException("Journal is closed.");
+            long lsn = ++nextLsn;
+            ByteBuffer.wrap(body).putLong(0, lsn);
+            crc.reset();
+            crc.update(body);
+            ByteBuffer frame = ByteBuffer.allocate(HEADER + body.length);
+            frame.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+            pending.add(frame);
+            queuedLsn = lsn;
+            lock.notifyAll();
+            return lsn;
+        }
+    }
+
+    public void awaitDurable(long lsn) {
+        synchronized (lock) {
+            while (durableLsn < lsn && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for journal commit.", e);
+                }
+            }
+        }
+        if (failure != null) throw new UncheckedIOException("Journal write failed", failure);
+    }
+
+    // Group commit: everything queued while the previous fsync ran goes out in one write + one force
+    private void writeLoop() {
+        try {
+            while (true) {
+                List<ByteBuffer> batch;
+                long last;
+                synchronized (lock) {
+                    while (pending.isEmpty() && !closing) lock.wait();
+                    if (pending.isEmpty()) return;
+                    batch = new ArrayList<>(pending);
+                    pending.clear();
+                    last = queuedLsn;
+                }
+                List<ByteBuffer> run = new ArrayList<>();
+                for (ByteBuffer frame : batch) {
+                    if (segmentBytes > 0 && segmentBytes + frame.remaining() > segmentLimit) {
+                        writeFully(run);
+                        rollSegment(frame.getLong(HEADER));
+                    }
+                    segmentBytes += frame.remaining();
+                    run.add(frame);
+                }
+                writeFully(run);
+                segment.force(false);
+                synchronized (lock) {
+                    durableLsn = last;
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Journal writer interrupted");
+        }
+        synchronized (lock) { lock.notifyAll(); }
+    }
+
+    private void writeFully(List<ByteBuffer> run) throws IOException {
+        ByteBuffer[] bufs = run.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer b : bufs) remaining += b.remaining();
+        while (remaining > 0) remaining -= segment.write(bufs);
+        run.clear();
+    }
+
+    private void openSegment(long startLsn) throws IOException {
+        segment = FileChannel.open(dir.resolve(String.format("wal-%019d.log", startLsn)),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentBytes = segment.size();
+        currentSegmentStart = startLsn;
+    }
+
+    private void rollSegment(long startLsn) throws IOException {
+        segment.force(false);
+        segment.close();
+        openSegment(startLsn);
+        compactor.submit(this::compactQuietly);
+    }
+
+    private void compactQuietly() {
+        try {
+            compact(false);
+        } catch (IOException e) {
+            System.err.println("Journal compaction failed: " + e.getMessage());
+        }
+    }
+
+    // Folds sealed segments into a new snapshot, then deletes what the snapshot covers. Unless forced, waits
+    // until the sealed segments outgrow the snapshot, so rewriting it costs no more than the log it replaces.
+    private void compact(boolean force) throws IOException {
+        long activeStart = currentSegmentStart;
+        List<Path> sealed = new ArrayList<>();
+        long sealedBytes = 0;
+        for (Path seg : segments(dir)) {
+            if (sequenceOf(seg) >= activeStart) continue;
+            sealed.add(seg);
+            sealedBytes += Files.size(seg);
+        }
+        List<Path> snaps = list(dir, "snapshot");
+        if (!force && !snaps.isEmpty() && sealedBytes < Files.size(snaps.get(snaps.size() - 1))) return;
+        JournalState state = loadSnapshot(dir);
+        long before = state.lastLsn;
+        for (Path seg : sealed) replay(seg, state, false);
+        if (state.lastLsn > before) {
+            Path tmp = dir.resolve("snapshot.tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16))) {
+                state.writeTo(out, archive);
+                out.flush();
+                ch.force(true);
+            }
+            Path snap = dir.resolve(String.format("snapshot-%019d.bin", state.lastLsn));
+            Files.move(tmp, snap, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            for (Path old : list(dir, "snapshot")) if (!old.equals(snap)) Files.deleteIfExists(old);
+        }
+        for (Path seg : sealed) Files.deleteIfExists(seg);
+    }
+
+    // Drains the queue, seals the last segment and leaves a snapshot so the next start replays nothing
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closing = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.force(false);
+        segment.close();
+        if (failure != null) throw failure;
+        currentSegmentStart = Long.MAX_VALUE;
+        try {
+            compact(true);
+        } finally {
+            archive.close();
+        }
+    }
+}
+
+// =================== Metrics ===================
+
+// Process-wide probes on the hot paths. They are on unless the JVM starts with -Dshop.metrics=false; ENABLED is
+// a static final, so when it is false the JIT folds every probe down to nothing.
+final class ShopMetrics {
+    static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("shop.metrics"));
+    private static final ConcurrentSkipListMap<String, Object> REGISTRY = new ConcurrentSkipListMap<>();
+
+    // Calls this cheap are timed one in 1024: reading the clock waits out every cache miss still in flight,
+    // which costs a memory-bound lookup loop about 2 us per sample
+    static final LatencyHistogram GET_PRODUCT = histogram("store.getProduct", 1024);
+    static final LatencyHistogram CART_ADD = histogram("cart.addProduct", 1024);
+    static final LatencyHistogram CHECKOUT = histogram("checkout", 1);
+    static final MetricCounter CHECKOUT_FAILED = counter("checkout.failed");
+    static final LatencyHistogram PAY = histogram("payment.pay", 1);
+    static final MetricCounter PAY_DECLINED = counter("payment.declined");
+    static final MetricCounter STOCK_INSUFFICIENT = counter("stock.insufficient");
+    static final LatencyHistogram ADMIN_LOGIN = histogram("admin.login", 1);
+    static final MetricCounter ADMIN_LOGIN_FAILED = counter("admin.login.failed");
+    static final MetricCounter FEED_PUBLISHER_STALLS = counter("feed.publisherStalls");
+    static final MetricCounter FEED_HANDLER_ERRORS = counter("feed.handlerErrors");
+    static final MetricCounter FEED_SUBSCRIBERS_DROPPED = counter("feed.subscribersDropped");
+
+    private ShopMetrics() {}
+
+    static MetricCounter counter(String name) { return (MetricCounter) REGISTRY.computeIfAbsent(name, k -> new MetricCounter()); }
+    static LatencyHistogram histogram(String name, int sampleEvery) {
+        return (LatencyHistogram) REGISTRY.computeIfAbsent(name, k -> new LatencyHistogram(sampleEvery));
+    }
+
+    static Map<String, Object> all() { return Collections.unmodifiableMap(REGISTRY); }
+
+    // One metric per line, sorted by name; latencies in microseconds
+    static StringBuilder appendTo(StringBuilder sb) {
+        if (!ENABLED) return sb.append("metrics disabled (-Dshop.metrics=false)\n");
+        for (Map.Entry<String, Object> e : REGISTRY.entrySet()) {
+            sb.append(e.getKey()).append(' ');
+            if (e.getValue() instanceof MetricCounter) sb.append("count=").append(((MetricCounter) e.getValue()).sum());
+            else ((LatencyHistogram) e.getValue()).appendTo(sb);
+            sb.append('\n');
+        }
+        return sb;
+    }
+
+    static String dump() { return appendTo(new StringBuilder(1024)).toString(); }
+
+    // Publishes every metric as an attribute of shop:type=Metrics on the platform MBean server; safe to call twice
+    static void registerMBean() {
+        if (!ENABLED) return;
+        try {
+            javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            javax.management.ObjectName name = new javax.management.ObjectName("shop:type=Metrics");
+            if (!server.isRegistered(name)) server.registerMBean(new MetricsMBean(), name);
+        } catch (javax.management.JMException e) {
+            System.err.println("Metrics MBean not registered: " + e.getMessage());
+        }
+    }
+}
+
+final class MetricCounter {
+    private final LongAdder count = new LongAdder();
+    public void increment() { if (ShopMetrics.ENABLED) count.increment(); }
+    public long sum() { return count.sum(); }
+}
+
+// Lock-free latency histogram in the HdrHistogram layout: exact below 128 ns, then 64 linear sub-buckets per power
+// of two up to 2^41 ns (~36 min), so any recorded value is within 1/64 (1.6%) of its bucket's bounds.
+// Usage: long t = h.start(); ...; h.recordSince(t). With sampleEvery > 1, start() only reads the clock on every
+// sampleEvery-th call of each thread, picked by a plain per-thread tick rather than ThreadLocalRandom. Every call
+// is counted in a LongAdder, so counts are exact; percentiles come from the samples.
+final class LatencyHistogram {
+    private static final int SUB_BITS = 6, SUB = 1 << SUB_BITS, MAX_EXP = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXP + 1)) - 1;
+    private final AtomicLongArray buckets = new AtomicLongArray(2 * SUB + (MAX_EXP - SUB_BITS) * SUB);
+    private final LongAdder sampledNanos = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    private final int sampleMask;
+    // Sampling ticks, one per thread-id slot and 128 bytes apart so slots never share a cache line. Threads that
+    // collide on a slot may lose ticks, which only shifts when they sample; nothing is counted from them.
+    private final long[] ticks;
+    // Every start() call of a sampled histogram; a timed one counts its samples instead
+    private final LongAdder calls;
+
+    LatencyHistogram(int sampleEvery) {
+        if (Integer.bitCount(sampleEvery) != 1) throw new IllegalArgumentException("sampleEvery must be a power of two");
+        this.sampleMask = sampleEvery - 1;
+        this.ticks = sampleEvery == 1 ? null : new long[64 * 16];
+        this.calls = sampleEvery == 1 ? null : new LongAdder();
+    }
+
+    // Start time for recordSince, or 0 when this call is not sampled
+    public long start() {
+        if (!ShopMetrics.ENABLED) return 0;
+        if (sampleMask != 0) {
+            calls.increment();
+            if ((ticks[(int) (Thread.currentThread().getId() & 63) << 4]++ & sampleMask) != 0) return 0;
+        }
+        return System.nanoTime();
+    }
+
+    public void recordSince(long startNanos) {
+        if (ShopMetrics.ENABLED && startNanos != 0) record(System.nanoTime() - startNanos);
+    }
+
+    void record(long nanos) {
+        long v = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        buckets.incrementAndGet(index(v));
+        sampledNanos.add(v);
+        for (long m = max.get(); v > m && !max.compareAndSet(m, v); m = max.get()) {}
+    }
+
+    static int index(long v) {
+        if (v < 2 * SUB) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        return (exp - SUB_BITS) * SUB + (int) (v >>> (exp - SUB_BITS));
+    }
+
+    static long lowestInBucket(int index) {
+        if (index < 2 * SUB) return index;
+        int exp = index / SUB + SUB_BITS - 1;
+        return (long) (index % SUB + SUB) << (exp - SUB_BITS);
+    }
+
+    public long samples() {
+        long n = 0;
+        for (int i = 0; i < buckets.length(); i++) n += buckets.get(i);
+        return n;
+    }
+    public long count() {
+        return calls == null ? samples() : calls.sum();
+    }
+    public long maxNanos() { return max.get(); }
+    public double meanNanos() { long n = samples(); return n == 0 ? 0 : (double) sampledNanos.sum() / n; }
+
+    // Upper bound of the bucket holding the given percentile of samples, capped at the largest sample seen
+    public long percentileNanos(double percentile) {
+        long total = 0;
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) total += counts[i] = buckets.get(i);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total)), seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(lowestInBucket(i + 1) - 1, max.get());
+        }
+        return max.get();
+    }
+
+    StringBuilder appendTo(StringBuilder sb) {
+        sb.append("count=").append(count()).append(" samples=").append(samples());
+        appendMicros(sb.append(" mean="), (long) meanNanos());
+        appendMicros(sb.append(" p50="), percentileNanos(50));
+        appendMicros(sb.append(" p90="), percentileNanos(90));
+        appendMicros(sb.append(" p99="), percentileNanos(99));
+        appendMicros(sb.append(" p99.9="), percentileNanos(99.9));
+        return appendMicros(sb.append(" max="), maxNanos()).append("us");
+    }
+
+    private static StringBuilder appendMicros(StringBuilder sb, long nanos) {
+        return sb.append(nanos / 1000).append('.').append((char) ('0' + nanos / 100 % 10)).append((char) ('0' + nanos / 10 % 10));
+    }
+}
+
+// JMX view of the registry: counters as <name>, histograms as <name>.count/.meanMicros/.p50Micros/.p99Micros/
+// .p999Micros/.maxMicros, plus a dump() operation returning the text report
+final class MetricsMBean implements javax.management.DynamicMBean {
+    private static final String[] STATS = { "count", "meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros" };
+
+    @Override
+    public Object getAttribute(String attribute) throws javax.management.AttributeNotFoundException {
+        Object metric = ShopMetrics.all().get(attribute);
+        if (metric instanceof MetricCounter) return ((MetricCounter) metric).sum();
+        int dot = attribute.lastIndexOf('.');
+        metric = dot < 0 ? null : ShopMetrics.all().get(attribute.substring(0, dot));
+        if (!(metric instanceof LatencyHistogram)) throw new javax.management.AttributeNotFoundException(attribute);
+        LatencyHistogram h = (LatencyHistogram) metric;
+        switch (attribute.substring(dot + 1)) {
+            case "count": return h.count();
+            case "meanMicros": return h.meanNanos() / 1000;
+            case "p50Micros": return h.percentileNanos(50) / 1000.0;
+            case "p99Micros": return h.percentileNanos(99) / 1000.0;
+            case "p999Micros": return h.percentileNanos(99.9) / 1000.0;
+            case "maxMicros": return h.maxNanos() / 1000.0;
+            default: throw new javax.management.AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public javax.management.AttributeList getAttributes(String[] attributes) {
+        javax.management.AttributeList list = new javax.management.AttributeList();
+        for (String a : attributes) {
+            try {
+                list.add(new javax.management.Attribute(a, getAttribute(a)));
+            } catch (javax.management.AttributeNotFoundException e) {
+                // Unknown names are left out, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(javax.management.Attribute attribute) throws javax.management.AttributeNotFoundException {
+        throw new javax.management.AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public javax.management.AttributeList setAttributes(javax.management.AttributeList attributes) { return new javax.management.AttributeList(); }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) throws javax.management.ReflectionException {
+        if (action.equals("dump")) return ShopMetrics.dump();
+        throw new javax.management.ReflectionException(new NoSuchMethodException(action));
+    }
+
+    @Override
+    public javax.management.MBeanInfo getMBeanInfo() {
+        List<javax.management.MBeanAttributeInfo> attrs = new ArrayList<>();
+        for (Map.Entry<String, Object> e : ShopMetrics.all().entrySet()) {
+            if (e.getValue() instanceof MetricCounter) {
+                attrs.add(new javax.management.MBeanAttributeInfo(e.getKey(), "long", "Event count", true, false, false));
+            } else {
+                attrs.add(new javax.management.MBeanAttributeInfo(e.getKey() + ".count", "long", "Calls", true, false, false));
+                for (int i = 1; i < STATS.length; i++)
+                    attrs.add(new javax.management.MBeanAttributeInfo(e.getKey() + "." + STATS[i], "double", "Latency", true, false, false));
+            }
+        }
+        javax.management.MBeanOperationInfo dump = new javax.management.MBeanOperationInfo("dump", "Text report of every metric",
+            new javax.management.MBeanParameterInfo[0], "java.lang.String", javax.management.MBeanOperationInfo.INFO);
+        return new javax.management.MBeanInfo(MetricsMBean.class.getName(), "Online shop metrics",
+            attrs.toArray(new javax.management.MBeanAttributeInfo[0]), null, new javax.management.MBeanOperationInfo[] { dump }, null);
+    }
+}
+
+// =================== Server Mode ===================
+
+// Customers shared by every connection; logging in again under a name returns the same Customer and cart
+class SessionRegistry {
+    private final ConcurrentMap<String, Customer> customers = new ConcurrentHashMap<>();
+    private final ShopJournal journal;
+
+    SessionRegistry(ShopJournal journal) { this.journal = journal; }
+
+    static void addDemoPaymentMethods(Customer customer) throws ShoppingException {
+        customer.addPaymentMethod(new CreditCard("1234567890123456", Money.parse("1000.00")));
+        customer.addPaymentMethod(new PayPal("user@example.com", Money.parse("500.00")));
+    }
+
+    public Customer login(String name) throws ShoppingException {
+        Customer existing = customers.get(name);
+        if (existing != null) return existing;
+        // First sight of a name is rare; serializing it keeps journal restore and demo setup single-shot
+        synchronized (this) {
+            existing = customers.get(name);
+            if (existing != null) return existing;
+            Customer c;
+            try {
+                c = (journal == null) ? null : journal.restoreCustomer(name);
+            } catch (IOException e) {
+                throw new ShoppingException("Could not restore customer " + name + ": " + e.getMessage());
+            }
+            if (c == null) {
+                c = new Customer(name);
+                if (journal != null) c.attachJournal(journal);
+                addDemoPaymentMethods(c);
+            }
+            customers.put(name, c);
+            return c;
+        }
+    }
+
+    public int size() { return customers.size(); }
+
+    // Histories of everyone logged in so far, plus those still waiting in the journal
+    public List<OrderHistory> orderHistories() throws IOException {
+        List<OrderHistory> histories = journal == null ? new ArrayList<>() : journal.recoveredOrderHistories();
+        for (Customer c : customers.values()) histories.add(c.getOrderHistory());
+        return histories;
+    }
+}
+
+// One connection's state: the logged-in customer and its own admin login.
+// Commands on a customer hold that Customer's lock, so two connections for one name can share a cart. It is a
+// ReentrantLock, not the monitor: CHECKOUT waits on payment futures while holding it, and a virtual thread
+// blocked inside synchronized pins its carrier thread on JDK 17-21.
+class ShopSession {
+    private final StoreManager store;
+    private final CheckoutService checkout;
+    private final SessionRegistry registry;
+    private final SalesView sales;
+    private final AdminSession admin = new AdminSession();
+    private Customer customer;
+
+    ShopSession(StoreManager store, CheckoutService checkout, SessionRegistry registry, SalesView sales) {
+        this.store = store; this.checkout = checkout; this.registry = registry; this.sales = sales;
+    }
+
+    private Customer requireCustomer() throws ShoppingException {
+        if (customer == null) throw new ShoppingException("Login first: LOGIN <name>");
+        return customer;
+    }
+
+    private interface CustomerCommand { void run(Customer c) throws ShoppingException; }
+
+    private void withCustomer(CustomerCommand command) throws ShoppingException {
+        Customer c = requireCustomer();
+        ReentrantLock lock = c.lock();
+        lock.lock();
+        try {
+            command.run(c);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String[] args(String rest, int count, String usage) throws ShoppingException {
+        String[] parts = rest.isEmpty() ? new String[0] : rest.split("\\s+", count);
+        if (parts.length < count) throw new ShoppingException("Usage: " + usage);
+        return parts;
+    }
+
+    // Appends the response body to out; returns false when the client asked to disconnect
+    boolean handle(String line, StringBuilder out) throws ShoppingException {
+        String trimmed = line.trim();
+        int space = trimmed.indexOf(' ');
+        String verb = (space < 0 ? trimmed : trimmed.substring(0, space)).toUpperCase();
+        String rest = space < 0 ? "" : trimmed.substring(space + 1).trim();
+        switch (verb) {
+            case "LOGIN": {
+                customer = registry.login(args(rest, 1, "LOGIN <name>")[0]);
+                out.append("Logged in as ").append(customer.getName()).append('\n');
+                return true;
+            }
+            case "LIST":
+            case "SEARCH": {
+                CatalogQuery q = new CatalogQuery();
+                String pageText = rest;
+                if (verb.equals("SEARCH")) {
+                    String[] a = args(rest, 1, "SEARCH <prefix> [page]");
+                    String[] parts = a[0].split("\\s+");
+                    q.namePrefix(parts[0]);
+                    pageText = parts.length > 1 ? parts[1] : "";
+                }
+                int page = pageText.isEmpty() ? 0 : Integer.parseInt(pageText);
+                ResultPage<Product> results = store.search(q.page(page, 20));
+                for (Product p : results.getItems()) out.append(p.describe()).append('\n');
+                if (results.hasMore()) out.append("More: ").append(verb).append(' ').append(page + 1).append('\n');
+                return true;
+            }
+            case "ADD": {
+                String[] a = args(rest, 2, "ADD <productId> <qty>");
+                Product p = store.getProduct(a[0]);
+                if (p == null) throw new ShoppingException("Product not found.");
+                if (!p.isAvailable()) throw new ShoppingException("Sorry, this product is SOLD OUT.");
+                withCustomer(c -> c.getCart().addProduct(p, Integer.parseInt(a[1])));
+                out.append("Added to cart.\n");
+                return true;
+            }
+            case "REMOVE": {
+                withCustomer(c -> c.getCart().removeProduct(args(rest, 1, "REMOVE <productId>")[0]));
+                out.append("Removed from cart.\n");
+                return true;
+            }
+            case "CART": {
+                withCustomer(c -> {
+                    Cart cart = c.getCart();
+                    if (cart.isEmpty()) { out.append("Cart is empty.\n"); return; }
+                    for (int i = 0; i < cart.size(); i++) ShopRenderer.cartLine(out, cart, i).append('\n');
+                    out.append("Subtotal: ");
+                    cart.getTotal().appendTo(out).append('\n');
+                });
+                return true;
+            }
+            case "QUOTE": {
+                withCustomer(c -> out.append(checkout.totalDue(c.getCart())).append('\n'));
+                return true;
+            }
+            case "CHECKOUT": {
+                // CHECKOUT <methodIndex>:<amount> ... ; the amounts must add up to the total due
+                withCustomer(c -> {
+                    List<PaymentRecord> tenders = new ArrayList<>();
+                    for (String t : args(rest, 1, "CHECKOUT <index>:<amount> ...")[0].split("\\s+")) {
+                        int colon = t.indexOf(':');
+                        if (colon < 0) throw new ShoppingException("Usage: CHECKOUT <index>:<amount> ...");
+                        tenders.add(new PaymentRecord(paymentMethod(c, t.substring(0, colon)), Money.parse(t.substring(colon + 1))));
+                    }
+                    Order order = checkout.checkout(c, tenders);
+                    out.append("Order placed: ").append(order.getTotalPaid()).append('\n');
+                });
+                return true;
+            }
+            case "HISTORY": {
+                Customer c = requireCustomer();
+                CursorPage<Order> page = c.getOrderHistory().page(rest.isEmpty() ? 0 : Long.parseLong(rest), 10);
+                for (Order o : page.getItems()) ShopRenderer.orderSummary(out, o).append('\n');
+                if (page.hasMore()) out.append("More: HISTORY ").append(page.getNextCursor()).append('\n');
+                return true;
+            }
+            case "PAYMENTS": {
+                withCustomer(c -> {
+                    List<PaymentMethod> methods = c.getPaymentMethods();
+                    for (int i = 0; i < methods.size(); i++) ShopRenderer.paymentMethodLine(out, methods, i).append('\n');
+                });
+                return true;
+            }
+            case "ADDCARD": {
+                String[] a = args(rest, 2, "ADDCARD <16-digit number> <balance>");
+                withCustomer(c -> c.addPaymentMethod(new CreditCard(a[0], Money.parse(a[1]))));
+                out.append("Credit Card added.\n");
+                return true;
+            }
+            case "ADDPAYPAL": {
+                String[] a = args(rest, 2, "ADDPAYPAL <email> <balance>");
+                withCustomer(c -> c.addPaymentMethod(new PayPal(a[0], Money.parse(a[1]))));
+                out.append("PayPal added.\n");
+                return true;
+            }
+            case "REMOVEPAYMENT": {
+                withCustomer(c -> c.removePaymentMethod(Integer.parseInt(args(rest, 1, "REMOVEPAYMENT <index>")[0]) - 1));
+                out.append("Payment method removed.\n");
+                return true;
+            }
+            case "FUND": {
+                String[] a = args(rest, 2, "FUND <index> <amount>");
+                Money amount = Money.parse(a[1]);
+                withCustomer(c -> {
+                    PaymentMethod pm = paymentMethod(c, a[0]);
+                    if (pm instanceof CreditCard) ((CreditCard) pm).addFunds(amount);
+                    else if (pm instanceof PayPal) ((PayPal) pm).addFunds(amount);
+                    else throw new ShoppingException("Unsupported payment method for adding funds.");
+                    out.append("Added ").append(amount).append(" to ").append(pm.getDetails()).append(". New balance: ").append(pm.getBalance()).append('\n');
+                });
+                return true;
+            }
+            case "ADMIN": {
+                String[] a = args(rest, 2, "ADMIN <username> <password>");
+                if (!admin.login(a[0], a[1])) throw new ShoppingException("Invalid admin credentials.");
+                out.append("Admin login successful.\n");
+                return true;
+            }
+            case "LOGOUT": {
+                admin.logout();
+                out.append("Admin logged out.\n");
+                return true;
+            }
+            case "ADDPRODUCT": {
+                // ADDPRODUCT E|C <id> <price> <stock> <brand|size> <name...>
+                if (!admin.isLoggedIn()) throw new ShoppingException("Admin privileges required. Please login as admin first.");
+                String[] a = args(rest, 6, "ADDPRODUCT E|C <id> <price> <stock> <brand|size> <name>");
+                Money price = Money.parse(a[2]);
+                int stock = Integer.parseInt(a[3]);
+                store.addProduct(a[0].equalsIgnoreCase("E")
+                    ? new Electronics(a[1], a[5], price, stock, a[4])
+                    : new Clothing(a[1], a[5], price, stock, a[4]));
+                out.append("Product added.\n");
+                return true;
+            }
+            case "SALES": {
+                // SALES [top]: totals, best sellers and payment mix
+                if (!admin.isLoggedIn()) throw new ShoppingException("Admin privileges required. Please login as admin first.");
+                sales.appendTo(out, rest.isEmpty() ? 10 : Integer.parseInt(rest));
+                return true;
+            }
+            case "METRICS":
+                ShopMetrics.appendTo(out);
+                return true;
+            case "QUIT":
+                out.append("Bye.\n");
+                return false;
+            default:
+                throw new ShoppingException("Unknown command " + verb + ". Try LOGIN, LIST, SEARCH, ADD, REMOVE, CART, QUOTE, "
+                    + "CHECKOUT, HISTORY, PAYMENTS, ADDCARD, ADDPAYPAL, REMOVEPAYMENT, FUND, ADMIN, LOGOUT, ADDPRODUCT, SALES, METRICS, QUIT.");
+        }
+    }
+
+    private static PaymentMethod paymentMethod(Customer c, String index) throws ShoppingException {
+        int i = Integer.parseInt(index);
+        if (i < 1 || i > c.getPaymentMethods().size()) throw new ShoppingException("Invalid payment method index.");
+        return c.getPaymentMethods().get(i - 1);
+    }
+}
+
+// Line protocol over TCP: one command per line; every reply is "OK"/"ERR <message>", body lines, then a lone "."
+class ShopServer implements Closeable {
+    private final ServerSocket listener;
+    private final StoreManager store;
+    private final CheckoutService checkout;
+    private final SessionRegistry registry;
+    private final SalesView sales;
+    private final ExecutorService sessions = newSessionExecutor();
+    private final AtomicInteger openSessions = new AtomicInteger();
+    // Closed by close(), which is what ends a session blocked reading from its client
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+
+    // Loopback only: the protocol has no authentication beyond the ADMIN command
+    ShopServer(int port, StoreManager store, CheckoutService checkout, SessionRegistry registry, SalesView sales) throws IOException {
+        this.listener = new ServerSocket(port, 4096, InetAddress.getLoopbackAddress());
+        this.store = store; this.checkout = checkout; this.registry = registry; this.sales = sales;
+        this.acceptor = new Thread(this::acceptLoop, "shop-acceptor");
+    }
+
+    // A virtual thread per connection where the runtime has them (Java 21+), otherwise a cached platform pool
+    static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "shop-session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public int getPort() { return listener.getLocalPort(); }
+    public int openSessions() { return openSessions.get(); }
+    public void start() { acceptor.start(); }
+
+    private void acceptLoop() {
+        while (!listener.isClosed()) {
+            try {
+                Socket s = listener.accept();
+                s.setTcpNoDelay(true);
+                sessions.execute(() -> serve(s));
+            } catch (IOException e) {
+                if (!listener.isClosed()) System.err.println("Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        openSessions.incrementAndGet();
+        connections.add(socket);
+        ShopSession session = new ShopSession(store, checkout, registry, sales);
+        StringBuilder body = new StringBuilder(256);
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            out.write("OK Simple Online Shop\n.\n");
+            out.flush();
+            String line;
+            boolean open = true;
+            while (open && (line = in.readLine()) != null) {
+                if (line.isBlank()) continue;
+                body.setLength(0);
+                String status;
+                try {
+                    open = session.handle(line, body);
+                    status = "OK";
+                } catch (ShoppingException | RuntimeException e) {
+                    // Any failure of one command is that command's error; the connection stays up
+                    body.setLength(0);
+                    status = "ERR " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+                }
+                out.write(status);
+                out.write('\n');
+                out.append(body);
+                out.write(".\n");
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away, or close() shut the socket; nothing to clean up beyond the socket
+        } finally {
+            connections.remove(socket);
+            openSessions.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        listener.close();
+        sessions.shutdownNow();
+        for (Socket s : connections) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Already closing; the session's finally removes it
+            }
+        }
+    }
+}
+
+// Client side of the line protocol: the greeting is consumed on connect, then each command gets one reply
+final class LineClient implements Closeable {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final Writer out;
+    final List<String> body = new ArrayList<>();
+
+    LineClient(Socket s) throws IOException {
+        socket = s;
+        in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+        read();
+    }
+
+    static LineClient connect(String host, int port) throws IOException {
+        Socket s = new Socket(host, port);
+        s.setTcpNoDelay(true);
+        return new LineClient(s);
+    }
+
+    // Sends one command and returns the status line; body lines are left in body
+    String call(String command) throws IOException {
+        send(command);
+        return read();
+    }
+
+    // send and read split, so one caller can have commands in flight on several connections at once
+    void send(String command) throws IOException {
+        out.write(command);
+        out.write('\n');
+        out.flush();
+    }
+
+    String read() throws IOException {
+        body.clear();
+        String status = readStatus();
+        for (String line; (line = readBodyLine()) != null; ) body.add(line);
+        return status;
+    }
+
+    // readStatus then readBodyLine up to null, for replies too large to hold at once
+    String readStatus() throws IOException {
+        String status = in.readLine();
+        if (status == null) throw new EOFException("Server closed the connection");
+        return status;
+    }
+
+    String readBodyLine() throws IOException {
+        String line = in.readLine();
+        if (line == null) throw new EOFException("Server closed the connection");
+        return line.equals(".") ? null : line;
+    }
+
+    @Override public void close() throws IOException { socket.close(); }
+}
+
+// Drives a running ShopServer with many concurrent shoppers and reports throughput and latency percentiles
+class LoadGenerator {
+    static void run(String host, int port, int clients, int seconds) throws Exception {
+        ExecutorService pool = ShopServer.newSessionExecutor();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch ready = new CountDownLatch(clients);
+        List<Future<long[]>> results = new ArrayList<>();
+        LongAdder errors = new LongAdder();
+        for (int i = 0; i < clients; i++) {
+            int id = i;
+            results.add(pool.submit(() -> shop(host, port, "shopper-" + id, ready, deadline, errors)));
+        }
+        long total = 0;
+        List<long[]> all = new ArrayList<>();
+        for (Future<long[]> f : results) {
+            long[] lat = f.get();
+            all.add(lat);
+            total += lat.length;
+        }
+        pool.shutdown();
+        long[] merged = new long[(int) total];
+        int pos = 0;
+        for (long[] lat : all) {
+            System.arraycopy(lat, 0, merged, pos, lat.length);
+            pos += lat.length;
+        }
+        Arrays.sort(merged);
+        System.out.printf("clients=%d duration=%ds requests=%d errors=%d throughput=%.0f req/s%n",
+            clients, seconds, total, errors.sum(), total / (double) seconds);
+        if (total > 0)
+            System.out.printf("latency p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms%n", merged[(int) (total * 0.50)] / 1e6,
+                merged[(int) Math.min(total - 1, total * 0.99)] / 1e6, merged[(int) Math.min(total - 1, total * 0.999)] / 1e6, merged[(int) total - 1] / 1e6);
+    }
+
+    // Browse, add, quote and pay in a loop; each round trip's latency is recorded in nanoseconds
+    private static long[] shop(String host, int port, String name, CountDownLatch ready, long deadline, LongAdder errors) throws Exception {
+        long[] lat = new long[1024];
+        int n = 0;
+        try (Socket s = new Socket(host, port)) {
+            s.setTcpNoDelay(true);
+            LineClient c = new LineClient(s);
+            c.call("LOGIN " + name);
+            c.call("LIST");
+            List<String> ids = new ArrayList<>();
+            for (String line : c.body) if (line.startsWith("ID: ")) ids.add(line.substring(4, line.indexOf(' ', 4)));
+            if (ids.isEmpty()) throw new IllegalStateException("Server has no products");
+            ready.countDown();
+            ready.await();
+            Random rnd = new Random(name.hashCode());
+            String[] script = new String[4];
+            while (System.nanoTime() < deadline) {
+                script[0] = "ADD " + ids.get(rnd.nextInt(ids.size())) + " 1";
+                script[1] = "CART";
+                script[2] = "QUOTE";
+                for (int step = 0; step < 4; step++) {
+                    if (step == 3) script[3] = "CHECKOUT 1:" + c.body.get(0).substring(1);
+                    long t0 = System.nanoTime();
+                    String status = c.call(script[step]);
+                    long took = System.nanoTime() - t0;
+                    if (n == lat.length) lat = Arrays.copyOf(lat, n * 2);
+                    lat[n++] = took;
+                    if (!status.startsWith("OK")) {
+                        errors.increment();
+                        if (status.contains("Insufficient funds")) c.call("FUND 1 100000");
+                        c.call("REMOVE " + script[0].split(" ")[1]);
+                        break;
+                    }
+                }
+            }
+            c.call("QUIT");
+        }
+        return Arrays.copyOf(lat, n);
+    }
+}
+
+// =================== Sharding ===================
+
+// Places keys on a 64-bit hash ring with vnodes points per node; a key belongs to the first point at or after
+// its hash. Adding a node only moves the keys that land on its new arcs, about 1/n of them, and many points per
+// node keep the shards within a few percent of each other in size.
+final class ConsistentHashRing<N> {
+    private final long[] points;
+    // Owner of each point, parallel to points
+    private final List<N> owners;
+    private final List<N> nodes;
+
+    ConsistentHashRing(List<N> nodes, Function<N, String> name, int vnodes) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("A ring needs at least one node");
+        TreeMap<Long, N> ring = new TreeMap<>();
+        for (N node : nodes) for (int v = 0; v < vnodes; v++) ring.put(hash(name.apply(node) + "#" + v), node);
+        points = new long[ring.size()];
+        owners = new ArrayList<>(ring.size());
+        int i = 0;
+        for (Map.Entry<Long, N> e : ring.entrySet()) {
+            points[i++] = e.getKey();
+            owners.add(e.getValue());
+        }
+        this.nodes = List.copyOf(nodes);
+    }
+
+    N nodeFor(String key) {
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) i = -i - 1;
+        return owners.get(i == points.length ? 0 : i);
+    }
+
+    List<N> nodes() { return nodes; }
+
+    // FNV-1a over the chars, then the murmur3 finalizer so similar ids ("P1", "P2") spread over the whole ring
+    static long hash(CharSequence key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
+
+// One shard of a sharded catalog: its StoreManager served over the line protocol. Fields are tab-separated and
+// backslash-escaped. Commands:
+//   GET id                 one product row, or no body if the id is not here
+//   PUT row                "added", or "exists" if the id is taken
+//   SIZE                   product count
+//   SCAN                   every product row
+//   HAS id                 1 if the id is here, else 0
+//   PREPARE tx (id qty)+   takes every line's stock or none; replies "id stock" per line
+//   COMMIT tx              makes a prepared hold final; ERR if the node does not know it
+//   ABORT tx               puts a prepared hold's stock back, same reply as PREPARE; unknown holds are ignored
+// A row is E or C, id, name, price in cents, stock, then brand or size. A prepared hold has no timeout: once a
+// node has said yes only the coordinator's COMMIT or ABORT ends it, because the coordinator may already have
+// decided to commit. Holds live in memory, so those of a coordinator that died mid-checkout last until the node
+// restarts. The node listens on loopback only.
+class ShardNode implements Closeable {
+    private final ServerSocket listener;
+    private final StoreManager store;
+    private final long committedNanos;
+    private final ConcurrentMap<String, Reservation> holds = new ConcurrentHashMap<>();
+    // Committed hold ids, kept for committedMillis, so a coordinator repeating a COMMIT gets OK again
+    private final ConcurrentMap<String, Long> committed = new ConcurrentHashMap<>();
+    private final AtomicLong nextHold = new AtomicLong();
+    private final ExecutorService sessions = ShopServer.newSessionExecutor();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "shard-commit-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Thread acceptor;
+
+    ShardNode(int port, StoreManager store, long committedMillis) throws IOException {
+        this.listener = new ServerSocket(port, 4096, InetAddress.getLoopbackAddress());
+        this.store = store;
+        this.committedNanos = TimeUnit.MILLISECONDS.toNanos(committedMillis);
+        this.acceptor = new Thread(this::acceptLoop, "shard-acceptor");
+        long period = Math.max(10, committedMillis / 4);
+        sweeper.scheduleAtFixedRate(this::pruneCommitted, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public int getPort() { return listener.getLocalPort(); }
+    public void start() { acceptor.start(); }
+    public int activeHolds() { return holds.size(); }
+
+    private void acceptLoop() {
+        while (!listener.isClosed()) {
+            try {
+                Socket s = listener.accept();
+                s.setTcpNoDelay(true);
+                sessions.execute(() -> serve(s));
+            } catch (IOException e) {
+                if (!listener.isClosed()) System.err.println("Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        StringBuilder body = new StringBuilder(256);
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            out.write("OK Shard node\n.\n");
+            out.flush();
+            for (String line; (line = in.readLine()) != null; ) {
+                if (line.isEmpty()) continue;
+                body.setLength(0);
+                String status;
+                try {
+                    if (line.equals("SCAN")) {
+                        // Streamed a row at a time; a shard can hold more than one reply should buffer
+                        out.write("OK\n");
+                        for (Product p : store.getAllProducts()) {
+                            appendRow(body, p).append('\n');
+                            if (body.length() > 8192) { out.append(body); body.setLength(0); }
+                        }
+                        out.append(body);
+                        out.write(".\n");
+                        out.flush();
+                        continue;
+                    }
+                    handle(fields(line), body);
+                    status = "OK";
+                } catch (ShoppingException | RuntimeException e) {
+                    body.setLength(0);
+                    status = "ERR " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+                }
+                out.write(status);
+                out.write('\n');
+                out.append(body);
+                out.write(".\n");
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Coordinator went away; its prepared holds stay until it reconnects to commit or abort them
+        }
+    }
+
+    void handle(String[] f, StringBuilder out) throws ShoppingException {
+        switch (f[0]) {
+            case "GET": {
+                Product p = store.getProduct(f[1]);
+                if (p != null) appendRow(out, p).append('\n');
+                return;
+            }
+            case "PUT": {
+                Product p = parseRow(f, 1);
+                try {
+                    store.addProduct(p);
+                    out.append("added\n");
+                } catch (ShoppingException e) {
+                    // addProduct only refuses a taken id
+                    out.append("exists\n");
+                }
+                return;
+            }
+            case "HAS":
+                out.append(store.isProductIdUnique(f[1]) ? '0' : '1').append('\n');
+                return;
+            case "SIZE":
+                out.append(store.getAllProducts().size()).append('\n');
+                return;
+            case "PREPARE":
+                prepare(f, out);
+                return;
+            case "COMMIT": {
+                // Idempotent: the coordinator repeats it until it hears OK, and the first one may have landed
+                if (committed.containsKey(f[1])) return;
+                Reservation r = holds.get(f[1]);
+                if (r == null) throw new ShoppingException("Hold " + f[1] + " is unknown.");
+                if (!r.transition(Reservation.COMMITTED) && !r.isCommitted()) throw new ShoppingException("Hold " + f[1] + " was released.");
+                committed.put(f[1], System.nanoTime() + committedNanos);
+                holds.remove(f[1], r);
+                return;
+            }
+            case "ABORT": {
+                Reservation r = holds.remove(f[1]);
+                if (r != null && release(r)) appendStock(out, r.getLines());
+                return;
+            }
+            default:
+                throw new ShoppingException("Unknown shard command " + f[0]);
+        }
     }
-    public String getMethodName() { return method.getClass().getSimpleName(); }
-    public double getAmount() { return amount; }
-}
 
-// =================== Product and Subclasses ===================
+    private void prepare(String[] f, StringBuilder out) throws ShoppingException {
+        String tx = f[1];
+        Reservation existing = holds.get(tx);
+        if (existing != null) {
+            // A coordinator retrying after a lost reply; the hold is already in place
+            appendStock(out, existing.getLines());
+            return;
+        }
+        List<CartItem> lines = new ArrayList<>((f.length - 2) / 2);
+        for (int i = 2; i + 1 < f.length; i += 2) {
+            Product p = store.getProduct(f[i]);
+            if (p == null) throw new ShoppingException("Product not found: " + f[i]);
+            lines.add(new CartItem(p, Integer.parseInt(f[i + 1])));
+        }
+        if (lines.isEmpty()) throw new ShoppingException("Nothing to prepare.");
+        LocalStockReserver.INSTANCE.reserve(0, lines);
+        // The expiry is never checked here; see the class comment
+        Reservation r = new Reservation(nextHold.incrementAndGet(), lines, 0);
+        if (holds.putIfAbsent(tx, r) != null) {
+            LocalStockReserver.INSTANCE.release(0, lines);
+            throw new ShoppingException("Hold " + tx + " is being prepared twice.");
+        }
+        appendStock(out, lines);
+    }
 
-abstract class Product {
-    private String id, name;
-    private double price;
-    private int stock;
+    private boolean release(Reservation r) {
+        if (!r.transition(Reservation.RELEASED)) return false;
+        LocalStockReserver.INSTANCE.release(0, r.getLines());
+        return true;
+    }
 
-    public Product(String id, String name, double price, int stock) throws ShoppingException {
-        if (price < 0 || stock < 0) throw new ShoppingException("Price and stock must be non-negative.");
-        this.id = id; this.name = name; this.price = price; this.stock = stock;
+    void pruneCommitted() {
+        long now = System.nanoTime();
+        committed.values().removeIf(expires -> now - expires > 0);
     }
-    public String getId() { return id; }
-    public String getName() { return name; }
-    public double getPrice() { return price; }
-    public int getStock() { return stock; }
-    public void setStock(int stock) throws ShoppingException {
-        if (stock < 0) throw new ShoppingException("Stock cannot be negative.");
-        this.stock = stock;
+
+    private static void appendStock(StringBuilder out, List<CartItem> lines) {
+        for (CartItem ci : lines) field(out, ci.getProduct().getId()).append('\t').append(ci.getProduct().getStock()).append('\n');
     }
-    public boolean isAvailable() { return stock > 0; }
-    public void decreaseStock(int qty) throws ShoppingException {
-        if (qty > stock) throw new ShoppingException("Insufficient stock for " + name);
-        this.stock -= qty;
+
+    static StringBuilder appendRow(StringBuilder sb, Product p) {
+        sb.append(p instanceof Electronics ? 'E' : 'C').append('\t');
+        field(sb, p.getId()).append('\t');
+        field(sb, p.getName()).append('\t').append(p.getPrice().cents()).append('\t').append(p.getStock()).append('\t');
+        return field(sb, p.getAttribute());
     }
-    public abstract void displayDetails();
-}
 
-class Electronics extends Product {
-    private String brand;
-    public Electronics(String id, String name, double price, int stock, String brand) throws ShoppingException {
-        super(id, name, price, stock); this.brand = brand;
+    static Product parseRow(String[] f, int at) throws ShoppingException {
+        if (f.length < at + 6) throw new ShoppingException("Malformed product row.");
+        Money price = Money.ofCents(Long.parseLong(f[at + 3]));
+        int stock = Integer.parseInt(f[at + 4]);
+        return f[at].equals("E")
+            ? new Electronics(f[at + 1], f[at + 2], price, stock, f[at + 5])
+            : new Clothing(f[at + 1], f[at + 2], price, stock, f[at + 5]);
     }
-    @Override
-    public void displayDetails() {
-        System.out.printf("ID: %s | Electronics: %s (Brand: %s) - $%.2f | Stock: %d%s\n",
-            getId(), getName(), brand, getPrice(), getStock(), getStock() == 0 ? " [SOLD OUT]" : "");
+
+    static StringBuilder field(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb;
     }
-}
 
-class Clothing extends Product {
-    private String size;
-    public Clothing(String id, String name, double price, int stock, String size) throws ShoppingException {
-        super(id, name, price, stock); this.size = size;
+    static String[] fields(String line) {
+        String[] f = line.split("\t", -1);
+        for (int i = 0; i < f.length; i++) {
+            if (f[i].indexOf('\\') < 0) continue;
+            StringBuilder sb = new StringBuilder(f[i].length());
+            for (int j = 0; j < f[i].length(); j++) {
+                char c = f[i].charAt(j);
+                if (c == '\\' && j + 1 < f[i].length()) {
+                    char e = f[i].charAt(++j);
+                    sb.append(e == 't' ? '\t' : e == 'n' ? '\n' : e == 'r' ? '\r' : e);
+                } else {
+                    sb.append(c);
+                }
+            }
+            f[i] = sb.toString();
+        }
+        return f;
     }
+
     @Override
-    public void displayDetails() {
-        System.out.printf("ID: %s | Clothing: %s (Size: %s) - $%.2f | Stock: %d%s\n",
-            getId(), getName(), size, getPrice(), getStock(), getStock() == 0 ? " [SOLD OUT]" : "");
+    public void close() throws IOException {
+        listener.close();
+        sessions.shutdownNow();
+        sweeper.shutdownNow();
     }
 }
 
-// =================== Payment and Cart ===================
+// Pooled connections to one shard node, so concurrent checkouts do not queue behind one socket. A node's ERR
+// surfaces as ShoppingException and an unreachable node as IOException; a connection that saw an I/O error is
+// dropped rather than reused.
+final class ShardClient implements Closeable {
+    private final String host;
+    private final int port;
+    // Most recently used first, so light load keeps reusing the same warm connection and node thread
+    private final Deque<LineClient> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed;
 
-interface PaymentMethod {
-    boolean pay(double amount) throws ShoppingException;
-    String getDetails();
-    String getBalance();
-}
+    ShardClient(String host, int port) { this.host = host; this.port = port; }
 
-class CreditCard implements PaymentMethod {
-    private String cardNumber;
-    private double balance;
-    public CreditCard(String cardNumber, double balance) throws ShoppingException {
-        if (!cardNumber.matches("\\d{16}")) throw new ShoppingException("Invalid credit card number (must be 16 digits).");
-        if (balance < 0) throw new ShoppingException("Credit card balance cannot be negative.");
-        this.cardNumber = cardNumber; this.balance = balance;
+    // "host:port"
+    static ShardClient parse(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Shard address must be host:port, got " + address);
+        return new ShardClient(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
     }
-    @Override
-    public boolean pay(double amount) throws ShoppingException {
-        if (amount > balance) throw new ShoppingException("Insufficient funds on credit card ending in " + cardNumber.substring(12));
-        balance -= amount;
-        System.out.printf("Paid $%.2f using Credit Card ending in %s. New balance: $%.2f\n", amount, cardNumber.substring(12), balance);
-        return true;
+
+    String address() { return host + ":" + port; }
+
+    // A reply still on the wire; await it exactly once
+    final class Pending {
+        private final LineClient conn;
+        Pending(LineClient conn) { this.conn = conn; }
+
+        List<String> await() throws IOException, ShoppingException {
+            String status;
+            List<String> body;
+            try {
+                status = conn.read();
+                body = new ArrayList<>(conn.body);
+            } catch (IOException e) {
+                discard(conn);
+                throw e;
+            }
+            giveBack(conn);
+            if (!status.startsWith("OK")) throw new ShoppingException(status.startsWith("ERR ") ? status.substring(4) : status);
+            return body;
+        }
     }
-    @Override
-    public String getDetails() { return "Credit Card ending in " + cardNumber.substring(12); }
-    @Override
-    public String getBalance() { return String.format("$%.2f", balance); }
-    public void addFunds(double amount) throws ShoppingException {
-        if (amount <= 0) throw new ShoppingException("Amount to add must be positive.");
-        balance += amount;
-        System.out.printf("Added $%.2f to Credit Card ending in %s. New balance: $%.2f\n", amount, cardNumber.substring(12), balance);
+
+    // Sends without waiting, so a coordinator can have a command in flight on every shard at once
+    Pending send(String command) throws IOException {
+        LineClient c = idle.pollFirst();
+        if (c == null) c = LineClient.connect(host, port);
+        try {
+            c.send(command);
+        } catch (IOException e) {
+            discard(c);
+            throw e;
+        }
+        return new Pending(c);
     }
-}
 
-class PayPal implements PaymentMethod {
-    private String email;
-    private double balance;
-    public PayPal(String email, double balance) throws ShoppingException {
-        if (!email.matches(".+@.+\\..+")) throw new ShoppingException("Invalid PayPal email format.");
-        if (balance < 0) throw new ShoppingException("PayPal balance cannot be negative.");
-        this.email = email; this.balance = balance;
+    List<String> call(String command) throws IOException, ShoppingException { return send(command).await(); }
+
+    // A fresh connection that the caller closes; for replies streamed too long to pool the connection meanwhile
+    LineClient open() throws IOException { return LineClient.connect(host, port); }
+
+    private void giveBack(LineClient c) {
+        idle.offerFirst(c);
+        if (closed && idle.remove(c)) discard(c);
     }
-    @Override
-    public boolean pay(double amount) throws ShoppingException {
-        if (amount > balance) throw new ShoppingException("Insufficient funds in PayPal account (Email: " + email + ")");
-        balance -= amount;
-        System.out.printf("Paid $%.2f using PayPal (Email: %s). New balance: $%.2f\n", amount, email, balance);
-        return true;
+
+    private static void discard(LineClient c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Already broken
+        }
     }
+
     @Override
-    public String getDetails() { return "PayPal (Email: " + email + ")"; }
-    @Override
-    public String getBalance() { return String.format("$%.2f", balance); }
-    public void addFunds(double amount) throws ShoppingException {
-        if (amount <= 0) throw new ShoppingException("Amount to add must be positive.");
-        balance += amount;
-        System.out.printf("Added $%.2f to PayPal (Email: %s). New balance: $%.2f\n", amount, email, balance);
+    public void close() {
+        closed = true;
+        for (LineClient c; (c = idle.poll()) != null; ) discard(c);
     }
 }
 
-class CartItem {
-    private Product product;
-    private int quantity;
-    public CartItem(Product product, int quantity) {
-        this.product = product; this.quantity = quantity;
+// Catalog partitioned across shard nodes by consistent hashing of the product id. Lookups and inserts go to the
+// owning node, and StoreManager caches and interns what comes back exactly as for the disk and off-heap storages.
+// Stock belongs to the nodes. Checkouts take it through this class as their StockReserver, in two phases:
+// PREPARE goes to every shard in the cart at once and each takes all of its lines or none. If any shard refuses,
+// the others are aborted and the checkout fails. COMMIT follows once payment went through, ABORT if it did not;
+// once every shard has prepared, the outcome is commit and COMMIT is repeated until each shard acknowledges.
+// Nodes keep a prepared hold until they hear COMMIT or ABORT, so a commit always finds its holds unless the
+// node restarted in between. The stock nodes report back is copied onto the local products, so listings, search and low-stock
+// alerts follow the shards.
+final class ShardedProductStorage implements ProductStorage, StockReserver {
+    static final int VNODES = 160;
+    static final long RESEND_MAX_MILLIS = 5000;
+
+    private final ConsistentHashRing<ShardClient> ring;
+    // Hold ids are only unique within one CheckoutService, so every coordinator prefixes its own
+    private final String coordinator = UUID.randomUUID().toString();
+    private final ScheduledExecutorService resends = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "shard-resend");
+        t.setDaemon(true);
+        return t;
+    });
+
+    ShardedProductStorage(List<ShardClient> shards) { this.ring = new ConsistentHashRing<>(shards, ShardClient::address, VNODES); }
+
+    // "host:port,host:port,..."
+    static ShardedProductStorage connect(String addresses) {
+        List<ShardClient> shards = new ArrayList<>();
+        for (String a : addresses.split(",")) if (!a.isBlank()) shards.add(ShardClient.parse(a.trim()));
+        return new ShardedProductStorage(shards);
     }
-    public Product getProduct() { return product; }
-    public int getQuantity() { return quantity; }
-    public void setQuantity(int quantity) { this.quantity = quantity; }
-}
 
-class Cart {
-    private List<CartItem> items = new ArrayList<>();
-    public void addProduct(Product p, int qty) throws ShoppingException {
-        if (qty <= 0) throw new ShoppingException("Quantity must be positive.");
-        if (qty > p.getStock()) throw new ShoppingException("Requested quantity exceeds stock for " + p.getName());
-        for (CartItem ci : items) {
-            if (ci.getProduct().getId().equals(p.getId())) {
-                ci.setQuantity(ci.getQuantity() + qty);
-                return;
-            }
+    ShardClient ownerOf(String id) { return ring.nodeFor(id); }
+    List<ShardClient> shards() { return ring.nodes(); }
+
+    private static List<String> call(ShardClient shard, String command) {
+        try {
+            return shard.call(command);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Shard " + shard.address() + " unreachable", e);
+        } catch (ShoppingException e) {
+            throw new IllegalStateException("Shard " + shard.address() + ": " + e.getMessage(), e);
         }
-        items.add(new CartItem(p, qty));
     }
-    public void removeProduct(String productId) {
-        items.removeIf(ci -> ci.getProduct().getId().equals(productId));
+
+    private static String command(String verb, String... args) {
+        StringBuilder sb = new StringBuilder(verb);
+        for (String a : args) ShardNode.field(sb.append('\t'), a);
+        return sb.toString();
     }
-    public void displayCart() {
-        if (items.isEmpty()) { System.out.println("Cart is empty."); return; }
-        System.out.println("Your Cart:");
-        for (CartItem ci : items)
-            System.out.printf("%s x%d ($%.2f each)\n", ci.getProduct().getName(), ci.getQuantity(), ci.getProduct().getPrice());
+
+    @Override
+    public Product load(String id) {
+        List<String> body = call(ownerOf(id), command("GET", id));
+        if (body.isEmpty()) return null;
+        try {
+            return ShardNode.parseRow(ShardNode.fields(body.get(0)), 0);
+        } catch (ShoppingException e) {
+            throw new IllegalStateException("Bad row for " + id + ": " + e.getMessage(), e);
+        }
     }
-    public double getTotal() {
-        double total = 0;
-        for (CartItem ci : items) total += ci.getProduct().getPrice() * ci.getQuantity();
-        return total;
+
+    @Override
+    public boolean insert(Product product) {
+        StringBuilder row = ShardNode.appendRow(new StringBuilder("PUT\t"), product);
+        return call(ownerOf(product.getId()), row.toString()).get(0).equals("added");
     }
-    public List<CartItem> getItems() { return Collections.unmodifiableList(items); }
-    public boolean isEmpty() { return items.isEmpty(); }
-    public void clear() { items.clear(); }
-}
 
-// =================== Customer and Order History ===================
+    // Stock only changes on the shards; local copies are refreshed from their replies, never written back
+    @Override public void updateStock(String id, int stock) {}
 
-class Order {
-    private final List<CartItem> items;
-    private final double totalPaid;
-    private final Date date;
-    private final List<PaymentRecord> payments;
-    public Order(List<CartItem> items, double totalPaid, List<PaymentRecord> payments) {
-        this.items = new ArrayList<>(items);
-        this.totalPaid = totalPaid;
-        this.date = new Date();
-        this.payments = new ArrayList<>(payments);
+    // One round trip with a one-byte reply; StoreManager answers for products it already holds without asking
+    @Override public boolean contains(String id) { return call(ownerOf(id), command("HAS", id)).get(0).equals("1"); }
+
+    @Override
+    public int size() {
+        long total = 0;
+        for (ShardClient shard : shards()) total += Long.parseLong(call(shard, "SIZE").get(0));
+        return (int) Math.min(Integer.MAX_VALUE, total);
     }
-    public void displayOrder() {
-        System.out.printf("Order Date: %s | Total Paid: $%.2f\n", date, totalPaid);
-        System.out.println("Items:");
-        for (CartItem ci : items)
-            System.out.printf("  %s x%d ($%.2f each)\n", ci.getProduct().getName(), ci.getQuantity(), ci.getProduct().getPrice());
-        System.out.println("Payments:");
-        for (PaymentRecord pr : payments)
-            System.out.printf("  %s: $%.2f\n", pr.getMethodName(), pr.getAmount());
+
+    // Shard after shard, each streamed over its own connection
+    @Override
+    public Iterator<Product> iterator() {
+        Iterator<ShardClient> remaining = shards().iterator();
+        return new Iterator<Product>() {
+            LineClient scan;
+            String row;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (row == null) {
+                        if (scan == null) {
+                            if (!remaining.hasNext()) return false;
+                            scan = remaining.next().open();
+                            scan.send("SCAN");
+                            String status = scan.readStatus();
+                            if (!status.startsWith("OK")) throw new IllegalStateException("Shard scan failed: " + status);
+                        }
+                        row = scan.readBodyLine();
+                        if (row == null) {
+                            scan.close();
+                            scan = null;
+                        }
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public Product next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                String r = row;
+                row = null;
+                try {
+                    return ShardNode.parseRow(ShardNode.fields(r), 0);
+                } catch (ShoppingException e) {
+                    throw new IllegalStateException("Bad row: " + e.getMessage(), e);
+                }
+            }
+        };
     }
-}
 
-class Customer {
-    private String name;
-    private Cart cart = new Cart();
-    private List<Order> orderHistory = new ArrayList<>();
-    private List<PaymentMethod> paymentMethods = new ArrayList<>();
+    // Decisions still being resent are dropped; their units stay held on the shards until those restart
+    @Override
+    public void close() {
+        resends.shutdownNow();
+        for (ShardClient shard : shards()) shard.close();
+    }
 
-    public Customer(String name) throws ShoppingException {
-        if (name == null || name.trim().isEmpty()) throw new ShoppingException("Customer name cannot be empty.");
-        this.name = name;
+    // ---- two-phase reservation ----
+
+    private Map<ShardClient, List<CartItem>> byShard(List<CartItem> lines) {
+        Map<ShardClient, List<CartItem>> groups = new LinkedHashMap<>();
+        for (CartItem ci : lines) groups.computeIfAbsent(ownerOf(ci.getProduct().getId()), k -> new ArrayList<>(4)).add(ci);
+        return groups;
     }
-    public Cart getCart() { return cart; }
-    public String getName() { return name; }
-    public void addOrder(Order order) { orderHistory.add(order); }
-    public void showOrderHistory() {
-        if (orderHistory.isEmpty()) { System.out.println("No orders yet."); return; }
-        System.out.println("Order History for " + name + ":");
-        for (Order o : orderHistory) o.displayOrder();
+
+    private String tx(long holdId) { return coordinator + "-" + holdId; }
+
+    @Override
+    public void reserve(long holdId, List<CartItem> lines) throws ShoppingException {
+        String tx = tx(holdId);
+        Map<ShardClient, List<CartItem>> groups = byShard(lines);
+        Map<ShardClient, ShardClient.Pending> pending = new LinkedHashMap<>();
+        ShoppingException failure = null;
+        for (Map.Entry<ShardClient, List<CartItem>> g : groups.entrySet()) {
+            StringBuilder cmd = new StringBuilder(64).append("PREPARE\t").append(tx);
+            for (CartItem ci : g.getValue()) ShardNode.field(cmd.append('\t'), ci.getProduct().getId()).append('\t').append(ci.getQuantity());
+            try {
+                pending.put(g.getKey(), g.getKey().send(cmd.toString()));
+            } catch (IOException e) {
+                failure = unreachable(g.getKey(), e);
+                break;
+            }
+        }
+        for (Map.Entry<ShardClient, ShardClient.Pending> p : pending.entrySet()) {
+            try {
+                applyStock(p.getValue().await(), groups.get(p.getKey()));
+            } catch (ShoppingException e) {
+                if (failure == null) failure = e;
+            } catch (IOException e) {
+                if (failure == null) failure = unreachable(p.getKey(), e);
+            }
+        }
+        if (failure == null) return;
+        // Abort everywhere: a shard whose reply was lost may still have prepared, and ABORT of an unknown hold is a no-op
+        abort(tx, groups);
+        throw failure;
     }
-    public void addPaymentMethod(PaymentMethod method) { paymentMethods.add(method); }
-    public void removePaymentMethod(int index) throws ShoppingException {
-        if (index < 0 || index >= paymentMethods.size()) throw new ShoppingException("Invalid payment method index.");
-        paymentMethods.remove(index);
+
+    // Every shard has prepared, so this never fails the checkout. A shard that cannot be reached, or whose reply
+    // is lost, may or may not have committed; COMMIT is idempotent on the nodes, so it is sent again in the
+    // background until the shard answers, and its units stay held meanwhile. Only a shard that restarted since
+    // PREPARE answers that it does not know the hold; that is reported, because the order stands.
+    @Override
+    public void commit(long holdId, List<CartItem> lines) {
+        String tx = tx(holdId);
+        Map<ShardClient, ShardClient.Pending> pending = new LinkedHashMap<>();
+        for (ShardClient shard : byShard(lines).keySet()) {
+            try {
+                pending.put(shard, shard.send(command("COMMIT", tx)));
+            } catch (IOException e) {
+                resend(shard, "COMMIT", tx, 0);
+            }
+        }
+        for (Map.Entry<ShardClient, ShardClient.Pending> p : pending.entrySet()) {
+            try {
+                p.getValue().await();
+            } catch (ShoppingException e) {
+                commitLost(p.getKey(), tx, e);
+            } catch (IOException e) {
+                resend(p.getKey(), "COMMIT", tx, 0);
+            }
+        }
     }
-    public List<PaymentMethod> getPaymentMethods() { return Collections.unmodifiableList(paymentMethods); }
-    public void displayPaymentMethods() {
-        if (paymentMethods.isEmpty()) { System.out.println("No payment methods registered."); return; }
-        System.out.println("Registered Payment Methods:");
-        for (int i = 0; i < paymentMethods.size(); i++)
-            System.out.printf("%d. %s | Balance: %s\n", i + 1, paymentMethods.get(i).getDetails(), paymentMethods.get(i).getBalance());
+
+    // Sends COMMIT or ABORT again until the shard answers, backing off from 50 ms up to RESEND_MAX_MILLIS
+    private void resend(ShardClient shard, String verb, String tx, int attempt) {
+        long delay = Math.min(RESEND_MAX_MILLIS, 50L << Math.min(attempt, 10));
+        try {
+            resends.schedule(() -> {
+                try {
+                    shard.call(command(verb, tx));
+                } catch (ShoppingException e) {
+                    // ABORT never answers ERR
+                    if (verb.equals("COMMIT")) commitLost(shard, tx, e);
+                } catch (IOException e) {
+                    resend(shard, verb, tx, attempt + 1);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed; the units stay held on the shard until it restarts
+        }
     }
-}
 
-// =================== Admin Authentication ===================
+    private static void commitLost(ShardClient shard, String tx, ShoppingException e) {
+        System.err.println("Shard " + shard.address() + " did not commit " + tx + ": " + e.getMessage());
+    }
 
-class AdminSession {
-    private static final Map<String, String> ADMINS = Map.of("admin", "1234");
-    private boolean loggedIn = false;
+    @Override
+    public void release(long holdId, List<CartItem> lines) { abort(tx(holdId), byShard(lines)); }
 
-    public boolean isLoggedIn() { return loggedIn; }
+    // A shard that cannot be told now is sent ABORT again in the background, as for COMMIT, since it holds the
+    // stock until it hears the outcome
+    private void abort(String tx, Map<ShardClient, List<CartItem>> groups) {
+        Map<ShardClient, ShardClient.Pending> pending = new LinkedHashMap<>();
+        for (ShardClient shard : groups.keySet()) {
+            try {
+                pending.put(shard, shard.send(command("ABORT", tx)));
+            } catch (IOException e) {
+                resend(shard, "ABORT", tx, 0);
+            }
+        }
+        for (Map.Entry<ShardClient, ShardClient.Pending> p : pending.entrySet()) {
+            try {
+                applyStock(p.getValue().await(), groups.get(p.getKey()));
+            } catch (ShoppingException e) {
+                // ABORT never answers ERR
+            } catch (IOException e) {
+                resend(p.getKey(), "ABORT", tx, 0);
+            }
+        }
+    }
 
-    public boolean login(String username, String password) {
-        if (ADMINS.containsKey(username) && ADMINS.get(username).equals(password)) {
-            loggedIn = true;
-            System.out.println("Admin login successful.");
-            return true;
+    // Copies "id stock" reply lines onto the cart's products; listeners see the change as on a local store
+    private static void applyStock(List<String> body, List<CartItem> lines) {
+        for (String row : body) {
+            String[] f = ShardNode.fields(row);
+            for (CartItem ci : lines) {
+                if (!ci.getProduct().getId().equals(f[0])) continue;
+                int stock = Integer.parseInt(f[1]);
+                try {
+                    if (ci.getProduct().getStock() != stock) ci.getProduct().setStock(stock);
+                } catch (ShoppingException e) {
+                    // Shards never report negative stock
+                }
+                break;
+            }
         }
-        System.out.println("Invalid admin credentials.");
-        return false;
     }
 
-    public void logout() {
-        loggedIn = false;
-        System.out.println("Admin logged out.");
+    private static ShoppingException unreachable(ShardClient shard, IOException e) {
+        return new ShoppingException("Shard " + shard.address() + " is unavailable: " + e.getMessage());
     }
 }
 
-// =================== Store Management ===================
+// =================== Main Application ===================
 
-class StoreManager {
-    private Map<String, Product> store = new HashMap<>();
+public class OnlineShoppingApp {
+    // Value following a "--name" command-line flag, or null when absent
+    static String option(String[] args, String name) {
+        for (int i = 0; i < args.length - 1; i++) if (args[i].equals(name)) return args[i + 1];
+        return null;
+    }
 
-    public void addProduct(Product product) throws ShoppingException {
-        if (store.containsKey(product.getId())) throw new ShoppingException("Product ID " + product.getId() + " already exists.");
-        store.put(product.getId(), product);
+    // --catalog <file> keeps products in a file, --offheap in off-heap columns and --shards <host:port,...> on
+    // shard nodes, each behind a bounded cache of --cacheMB <n> (default 64); default is all on the heap
+    static StoreManager openStore(String[] args) throws IOException {
+        String catalog = option(args, "--catalog"), mb = option(args, "--cacheMB"), shards = option(args, "--shards");
+        long cacheBytes = (mb == null ? 64 : Long.parseLong(mb)) << 20;
+        if (shards != null) return new StoreManager(ShardedProductStorage.connect(shards), cacheBytes);
+        if (catalog != null) return StoreManager.onDisk(Paths.get(catalog), cacheBytes);
+        if (Arrays.asList(args).contains("--offheap")) return StoreManager.offHeap(cacheBytes);
+        return new StoreManager();
     }
 
-    public Product getProduct(String id) { return store.get(id); }
+    // Restores the journal (if --data is given) and seeds the demo catalog on an empty store
+    static ShopJournal initStore(StoreManager storeManager, String dataDir) throws ShoppingException, IOException {
+        ShopJournal journal = null;
+        if (dataDir != null) {
+            journal = ShopJournal.open(Paths.get(dataDir), 16L << 20);
+            journal.restoreInto(storeManager);
+        }
+        if (storeManager.getAllProducts().isEmpty()) {
+            storeManager.addProduct(new Electronics("E01", "Smartphone", Money.parse("299.99"), 5, "Samsung"));
+            storeManager.addProduct(new Electronics("E02", "Laptop", Money.parse("799.99"), 2, "Dell"));
+            storeManager.addProduct(new Clothing("C01", "T-shirt", Money.parse("19.99"), 10, "M"));
+            storeManager.addProduct(new Clothing("C02", "Jeans", Money.parse("39.99"), 7, "L"));
+        }
+        return journal;
+    }
 
-    public Collection<Product> getAllProducts() { return store.values(); }
+    // Publishes inventory and order events to a ring buffer that low-stock alerting follows on its own thread.
+    // -Dshop.lowStockThreshold (default 3) and -Dshop.feedCapacity (default 16384) tune it.
+    static ShopEventFeed startFeed(StoreManager store, CheckoutService checkout, Consumer<List<String>> alerts) {
+        ShopEventFeed feed = new ShopEventFeed(Integer.getInteger("shop.feedCapacity", 1 << 14));
+        feed.subscribe("low-stock", new LowStockAlerter(Integer.getInteger("shop.lowStockThreshold", 3), alerts));
+        store.addListener(feed);
+        checkout.addOrderListener(feed);
+        return feed;
+    }
 
-    public boolean isProductIdUnique(String id) { return !store.containsKey(id); }
-}
+    // Seeds live sales totals with one parallel scan of every known order history, then keeps them current from
+    // the feed. Call before sessions start, so no order is missed or counted twice.
+    static LiveSalesAnalytics startSales(ShopEventFeed feed, SessionRegistry registry) throws IOException {
+        LiveSalesAnalytics sales = new LiveSalesAnalytics();
+        sales.seed(SalesAnalytics.compute(registry.orderHistories()));
+        feed.subscribe("sales", sales);
+        return sales;
+    }
 
-// =================== Main Application ===================
+    // --server <port> [--data <dir>] [--seed <n>]: serve the shop over TCP until the process is stopped
+    static void runServer(String[] args) throws Exception {
+        StoreManager storeManager = openStore(args);
+        CheckoutService checkoutService = new CheckoutService(TimeUnit.MINUTES.toMillis(5), storeManager.stockReserver());
+        ShopJournal journal = initStore(storeManager, option(args, "--data"));
+        String seed = option(args, "--seed");
+        if (seed != null) {
+            // Extra well-stocked products for load testing
+            for (int i = 0, n = Integer.parseInt(seed); i < n; i++) {
+                if (!storeManager.isProductIdUnique("L" + i)) continue;
+                storeManager.addProduct(new Clothing("L" + i, "Load Tee " + i, Money.ofCents(500 + i % 5000), 100_000_000, "M"));
+            }
+        }
+        ShopEventFeed feed = startFeed(storeManager, checkoutService, alerts -> {
+            for (String a : alerts) System.out.println("ALERT " + a);
+        });
+        SessionRegistry registry = new SessionRegistry(journal);
+        LiveSalesAnalytics sales = startSales(feed, registry);
+        ShopServer server = new ShopServer(Integer.parseInt(option(args, "--server")), storeManager, checkoutService, registry, sales);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                checkoutService.shutdown();
+                feed.close();
+                if (journal != null) journal.close();
+                storeManager.close();
+            } catch (IOException e) {
+                System.err.println("Shutdown failed: " + e.getMessage());
+            }
+        }));
+        // Metrics are readable over JMX as shop:type=Metrics, or as text with the METRICS command
+        ShopMetrics.registerMBean();
+        server.start();
+        System.out.println("Shop server listening on port " + server.getPort());
+        Thread.currentThread().join();
+    }
 
-public class OnlineShoppingApp {
-    public static void main(String[] args) {
+    // --shard <port> [--catalog <file> | --offheap]: serve one shard of a catalog that front ends open with --shards.
+    // The node listens on loopback. Committed hold ids are remembered for repeated COMMITs for
+    // -Dshop.shardCommittedMillis (default 10 minutes).
+    static void runShard(String[] args) throws Exception {
+        StoreManager store = openStore(args);
+        ShardNode node = new ShardNode(Integer.parseInt(option(args, "--shard")), store,
+            Long.getLong("shop.shardCommittedMillis", TimeUnit.MINUTES.toMillis(10)));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                node.close();
+                store.close();
+            } catch (IOException e) {
+                System.err.println("Shutdown failed: " + e.getMessage());
+            }
+        }));
+        node.start();
+        System.out.println("Shard node listening on port " + node.getPort());
+        Thread.currentThread().join();
+    }
+
+    // --list catalog|orders|sales [--format text|json|csv] [--customer <name>] [--data <dir>]: stream a report to stdout
+    static void listReport(String[] args) throws Exception {
+        StoreManager storeManager = openStore(args);
+        ShopJournal journal = initStore(storeManager, option(args, "--data"));
+        String format = option(args, "--format");
+        RenderFormat fmt = format == null ? RenderFormat.TEXT : RenderFormat.valueOf(format.toUpperCase());
+        ReportSink sink = new ReportSink(new FileOutputStream(FileDescriptor.out), 1 << 16);
+        try {
+            if (option(args, "--list").equals("sales")) {
+                List<OrderHistory> histories = journal == null ? Collections.emptyList() : journal.recoveredOrderHistories();
+                StringBuilder out = sink.line();
+                SalesAnalytics.compute(histories).appendTo(out, 20);
+                sink.write(out);
+                out.setLength(0);
+            } else if (option(args, "--list").equals("orders")) {
+                String name = option(args, "--customer");
+                if (name == null) throw new ShoppingException("--list orders needs --customer <name>");
+                Customer c = journal == null ? null : journal.restoreCustomer(name);
+                ShopRenderer.orderHistory(sink, name, c == null ? Stream.empty() : c.getOrderHistory().stream(), fmt);
+            } else {
+                ShopRenderer.catalog(sink, storeManager.getAllProducts(), fmt);
+            }
+            sink.flush();
+        } finally {
+            if (journal != null) journal.close();
+            storeManager.close();
+        }
+    }
+
+    // --import <file> and/or --export <file> [--data <dir>]: bulk catalog load and dump; import runs first
+    static void bulkTransfer(String[] args) throws Exception {
+        StoreManager storeManager = openStore(args);
+        ShopJournal journal = initStore(storeManager, option(args, "--data"));
+        try {
+            String in = option(args, "--import");
+            if (in != null) printImportReport(new CatalogImporter(storeManager).importFile(Paths.get(in)));
+            String out = option(args, "--export");
+            if (out != null) {
+                long t0 = System.nanoTime();
+                long rows = CatalogExporter.export(storeManager.getAllProducts(), Paths.get(out));
+                double secs = (System.nanoTime() - t0) / 1e9;
+                System.out.printf("Exported %d products to %s in %.1f ms (%.0f rows/s)%n", rows, out, secs * 1e3, rows / secs);
+            }
+        } finally {
+            if (journal != null) journal.close();
+            storeManager.close();
+        }
+    }
+
+    static void printImportReport(ImportReport report) {
+        System.out.println(report);
+        int shown = 0;
+        for (ImportError e : report.getErrors()) {
+            if (shown++ == 20) {
+                System.out.printf("... and %d more%n", report.getErrorCount() - 20);
+                break;
+            }
+            System.out.println("  " + e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (option(args, "--server") != null) {
+            runServer(args);
+            return;
+        }
+        if (option(args, "--shard") != null) {
+            runShard(args);
+            return;
+        }
+        if (option(args, "--list") != null) {
+            listReport(args);
+            return;
+        }
+        if (option(args, "--import") != null || option(args, "--export") != null) {
+            bulkTransfer(args);
+            return;
+        }
+        if (args.length >= 4 && args[0].equals("--loadgen")) {
+            // --loadgen <host:port> <clients> <seconds>
+            String[] hostPort = args[1].split(":");
+            LoadGenerator.run(hostPort[0], Integer.parseInt(hostPort[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
         Scanner sc = new Scanner(System.in);
         AdminSession adminSession = new AdminSession();
-        StoreManager storeManager = new StoreManager();
+        StoreManager storeManager = openStore(args);
+        CheckoutService checkoutService = new CheckoutService(TimeUnit.MINUTES.toMillis(5), storeManager.stockReserver());
+        ShopJournal journal;
 
         System.out.println("======================================");
         System.out.println(" Welcome to the Simple Online Shop!");
         System.out.println("======================================");
 
-        // Initialize store
+        // Initialize store; with --data <dir> the store, orders and wallets survive restarts
         try {
-            storeManager.addProduct(new Electronics("E01", "Smartphone", 299.99, 5, "Samsung"));
-            storeManager.addProduct(new Electronics("E02", "Laptop", 799.99, 2, "Dell"));
-            storeManager.addProduct(new Clothing("C01", "T-shirt", 19.99, 10, "M"));
-            storeManager.addProduct(new Clothing("C02", "Jeans", 39.99, 7, "L"));
-        } catch (ShoppingException e) {
+            journal = initStore(storeManager, option(args, "--data"));
+        } catch (ShoppingException | IOException e) {
             System.out.println("Error initializing store: " + e.getMessage());
+            storeManager.close();
             return;
         }
+        ShopMetrics.registerMBean();
+        // Alerts arrive on the feed's thread and are shown to the admin between menu prompts
+        Queue<String> stockAlerts = new ConcurrentLinkedQueue<>();
+        ShopEventFeed feed = startFeed(storeManager, checkoutService, stockAlerts::addAll);
+        SessionRegistry registry = new SessionRegistry(journal);
+        LiveSalesAnalytics sales = startSales(feed, registry);
 
         System.out.print("Enter your name: ");
         Customer customer;
         try {
-            customer = new Customer(sc.nextLine());
-            // Add default payment methods for demo
-            customer.addPaymentMethod(new CreditCard("1234567890123456", 1000.00));
-            customer.addPaymentMethod(new PayPal("user@example.com", 500.00));
+            customer = registry.login(sc.nextLine());
         } catch (ShoppingException e) {
             System.out.println("Error: " + e.getMessage());
+            feed.close();
+            if (journal != null) journal.close();
+            storeManager.close();
             sc.close();
             return;
         }
 
         boolean running = true;
         while (running) {
+            if (adminSession.isLoggedIn())
+                for (String alert; (alert = stockAlerts.poll()) != null; ) System.out.println("[Stock alert] " + alert);
             System.out.println("\nMenu:");
             System.out.println("1. View Products");
             System.out.println("2. Add to Cart");
@@ -317,6 +6406,9 @@ public class OnlineShoppingApp {
             System.out.println("9. Order History");
             System.out.println("10. Manage Payment Methods");
             System.out.println("11. Exit");
+            System.out.println("12. Search Products");
+            System.out.println("13. Import Products from File (Admin Only)");
+            System.out.println("14. Sales Dashboard (Admin Only)");
             System.out.print("Choose an option: ");
             int choice;
             try {
@@ -330,7 +6422,9 @@ public class OnlineShoppingApp {
                 switch (choice) {
                     case 1:
                         System.out.println("Available Products:");
-                        for (Product p : storeManager.getAllProducts()) p.displayDetails();
+                        ReportSink listing = ReportSink.console();
+                        ShopRenderer.catalog(listing, storeManager.getAllProducts(), RenderFormat.TEXT);
+                        listing.flush();
                         break;
                     case 2:
                         System.out.print("Enter Product ID to add: ");
@@ -354,51 +6448,77 @@ public class OnlineShoppingApp {
                         break;
                     case 5:
                         if (customer.getCart().isEmpty()) throw new ShoppingException("Cart is empty. Add items before checkout.");
-                        double total = customer.getCart().getTotal();
-                        double discount = (total > 100) ? total * 0.10 : 0;
-                        double finalTotal = total - discount;
-                        System.out.printf("Subtotal: $%.2f\n", total);
-                        if (discount > 0)
-                            System.out.printf("Discount: -$%.2f\n", discount);
-                        System.out.printf("Total after discount: $%.2f\n", finalTotal);
+                        PriceQuote quote = checkoutService.quote(customer.getCart());
+                        Money finalTotal = quote.getTotal();
+                        ReportSink console = ReportSink.console();
+                        ShopRenderer.quote(console, quote);
+                        console.flush();
 
+                        // Hold all stock before any money moves; cancelled or failed checkouts are refunded and released
+                        Reservation hold = checkoutService.reserve(customer.getCart());
                         List<PaymentRecord> payments = new ArrayList<>();
-                        double remaining = finalTotal;
-                        System.out.println("\nAvailable Payment Methods:");
-                        customer.displayPaymentMethods();
-                        while (remaining > 0) {
-                            System.out.print("Select payment method (index) or 0 to cancel: ");
-                            int payIndex = Integer.parseInt(sc.nextLine());
-                            if (payIndex == 0) throw new ShoppingException("Checkout cancelled.");
-                            if (payIndex < 1 || payIndex > customer.getPaymentMethods().size())
-                                throw new ShoppingException("Invalid payment method index.");
-                            PaymentMethod payment = customer.getPaymentMethods().get(payIndex - 1);
-                            System.out.printf("Selected %s (Balance: %s)\n", payment.getDetails(), payment.getBalance());
-                            System.out.printf("Enter amount to pay (max $%.2f): ", remaining);
-                            double amount = Double.parseDouble(sc.nextLine());
-                            if (amount <= 0 || amount > remaining)
-                                throw new ShoppingException("Invalid payment amount.");
-                            try {
-                                payment.pay(amount);
-                                payments.add(new PaymentRecord(payment, amount));
-                                remaining -= amount;
-                            } catch (ShoppingException e) {
-                                System.out.println("Payment failed: " + e.getMessage());
+                        try {
+                            Money remaining = finalTotal;
+                            System.out.println("\nAvailable Payment Methods:");
+                            customer.displayPaymentMethods();
+                            // Tenders are collected until they cover what is owed, then charged together;
+                            // declined ones are reported and the shortfall is asked for again
+                            for (int attempt = 0; remaining.isPositive(); attempt++) {
+                                List<PaymentRecord> tenders = new ArrayList<>();
+                                Money planned = Money.ZERO;
+                                while (planned.compareTo(remaining) < 0) {
+                                    Money open = remaining.minus(planned);
+                                    System.out.print("Select payment method (index) or 0 to cancel: ");
+                                    int payIndex = Integer.parseInt(sc.nextLine());
+                                    if (payIndex == 0) throw new ShoppingException("Checkout cancelled.");
+                                    if (payIndex < 1 || payIndex > customer.getPaymentMethods().size())
+                                        throw new ShoppingException("Invalid payment method index.");
+                                    PaymentMethod payment = customer.getPaymentMethods().get(payIndex - 1);
+                                    System.out.println("Selected " + payment.getDetails() + " (Balance: " + payment.getBalance() + ")");
+                                    System.out.print("Enter amount to pay (max " + open + "): ");
+                                    Money amount = Money.parse(sc.nextLine());
+                                    if (!amount.isPositive() || amount.greaterThan(open))
+                                        throw new ShoppingException("Invalid payment amount.");
+                                    tenders.add(new PaymentRecord(payment, amount));
+                                    planned = planned.plus(amount);
+                                    if (planned.compareTo(remaining) < 0)
+                                        System.out.println("Remaining balance to assign: " + remaining.minus(planned));
+                                }
+                                for (PaymentResult result : CheckoutService.await(checkoutService.charge(hold, attempt, tenders))) {
+                                    PaymentRecord pr = result.getRecord();
+                                    if (result.isApproved()) {
+                                        ShopRenderer.tender(console, "Paid", "using", pr);
+                                        payments.add(pr);
+                                        remaining = remaining.minus(pr.getAmount());
+                                    } else {
+                                        console.line().append("Payment failed: ").append(result.getDeclineReason());
+                                        console.endLine();
+                                    }
+                                }
+                                if (remaining.isPositive()) {
+                                    remaining.appendTo(console.line().append("Remaining balance to pay: "));
+                                    console.endLine();
+                                }
+                                console.flush();
                             }
-                            if (remaining > 0)
-                                System.out.printf("Remaining balance to pay: $%.2f\n", remaining);
+                            checkoutService.commit(hold);
+                        } catch (ShoppingException | RuntimeException e) {
+                            checkoutService.rollback(hold, payments);
+                            for (PaymentRecord pr : payments) ShopRenderer.tender(console, "Refunded", "to", pr);
+                            console.flush();
+                            throw e;
                         }
                         // Display final balances
                         System.out.println("\nPayment Method Balances After Checkout:");
                         customer.displayPaymentMethods();
-                        // Decrease stock
-                        for (CartItem ci : customer.getCart().getItems()) {
-                            ci.getProduct().decreaseStock(ci.getQuantity());
-                            if (ci.getProduct().getStock() == 0)
-                                System.out.printf("%s is now SOLD OUT!\n", ci.getProduct().getName());
+                        for (CartItem ci : hold.getLines()) {
+                            if (ci.getProduct().getStock() > 0) continue;
+                            console.line().append(ci.getProduct().getName()).append(" is now SOLD OUT!");
+                            console.endLine();
                         }
+                        console.flush();
                         // Save order history
-                        customer.addOrder(new Order(customer.getCart().getItems(), finalTotal, payments));
+                        checkoutService.placeOrder(customer, new Order(hold.getLines(), finalTotal, payments));
                         customer.getCart().clear();
                         System.out.println("Order placed! Thank you, " + customer.getName());
                         break;
@@ -411,7 +6531,7 @@ public class OnlineShoppingApp {
                         String uname = sc.nextLine();
                         System.out.print("Admin password: ");
                         String upass = sc.nextLine();
-                        adminSession.login(uname, upass);
+                        System.out.println(adminSession.login(uname, upass) ? "Admin login successful." : "Invalid admin credentials.");
                         break;
                     case 7: // Add Product (Admin Only)
                         if (!adminSession.isLoggedIn()) throw new ShoppingException("Admin privileges required. Please login as admin first.");
@@ -423,7 +6543,7 @@ public class OnlineShoppingApp {
                         System.out.print("Enter Name: ");
                         String pname = sc.nextLine();
                         System.out.print("Enter Price: ");
-                        double pprice = Double.parseDouble(sc.nextLine());
+                        Money pprice = Money.parse(sc.nextLine());
                         System.out.print("Enter Stock Quantity: ");
                         int pstock = Integer.parseInt(sc.nextLine());
                         if (type == 1) {
@@ -438,11 +6558,24 @@ public class OnlineShoppingApp {
                         System.out.println("Product added.");
                         break;
                     case 8: // Admin Logout
-                        if (adminSession.isLoggedIn()) adminSession.logout();
-                        else System.out.println("Not logged in as admin.");
+                        if (adminSession.isLoggedIn()) {
+                            adminSession.logout();
+                            System.out.println("Admin logged out.");
+                        } else System.out.println("Not logged in as admin.");
                         break;
                     case 9:
-                        customer.showOrderHistory();
+                        if (customer.getOrderHistory().isEmpty()) { System.out.println("No orders yet."); break; }
+                        System.out.println("Order History for " + customer.getName() + ":");
+                        for (long cursor = 0; cursor >= 0; ) {
+                            CursorPage<Order> orders = customer.getOrderHistory().page(cursor, 5);
+                            ReportSink page = ReportSink.console();
+                            for (Order o : orders.getItems()) ShopRenderer.order(page, o);
+                            page.flush();
+                            cursor = orders.getNextCursor();
+                            if (cursor < 0) break;
+                            System.out.print("Enter n for more orders, anything else to stop: ");
+                            if (!sc.nextLine().trim().equalsIgnoreCase("n")) break;
+                        }
                         break;
                     case 10: // Manage Payment Methods
                         System.out.println("\nPayment Method Management:");
@@ -464,14 +6597,14 @@ public class OnlineShoppingApp {
                                     System.out.print("Enter 16-digit card number: ");
                                     String cardNumber = sc.nextLine();
                                     System.out.print("Enter available balance: ");
-                                    double balance = Double.parseDouble(sc.nextLine());
+                                    Money balance = Money.parse(sc.nextLine());
                                     customer.addPaymentMethod(new CreditCard(cardNumber, balance));
                                     System.out.println("Credit Card added.");
                                 } else if (pmType == 2) {
                                     System.out.print("Enter PayPal email: ");
                                     String email = sc.nextLine();
                                     System.out.print("Enter available balance: ");
-                                    double balance = Double.parseDouble(sc.nextLine());
+                                    Money balance = Money.parse(sc.nextLine());
                                     customer.addPaymentMethod(new PayPal(email, balance));
                                     System.out.println("PayPal added.");
                                 } else {
@@ -494,7 +6627,7 @@ public class OnlineShoppingApp {
                                     throw new ShoppingException("Invalid payment method index.");
                                 PaymentMethod pm = customer.getPaymentMethods().get(fundIndex - 1);
                                 System.out.print("Enter amount to add: ");
-                                double addAmount = Double.parseDouble(sc.nextLine());
+                                Money addAmount = Money.parse(sc.nextLine());
                                 if (pm instanceof CreditCard) {
                                     ((CreditCard) pm).addFunds(addAmount);
                                 } else if (pm instanceof PayPal) {
@@ -502,6 +6635,7 @@ public class OnlineShoppingApp {
                                 } else {
                                     throw new ShoppingException("Unsupported payment method for adding funds.");
                                 }
+                                System.out.println("Added " + addAmount + " to " + pm.getDetails() + ". New balance: " + pm.getBalance());
                                 break;
                             case 5:
                                 break;
@@ -512,16 +6646,62 @@ public class OnlineShoppingApp {
                     case 11:
                         running = false;
                         break;
+                    case 12:
+                        CatalogQuery query = new CatalogQuery();
+                        System.out.print("Name starts with (blank for any): ");
+                        query.namePrefix(sc.nextLine());
+                        System.out.print("Min price (blank for none): ");
+                        String minText = sc.nextLine().trim();
+                        System.out.print("Max price (blank for none): ");
+                        String maxText = sc.nextLine().trim();
+                        query.priceBetween(minText.isEmpty() ? null : Money.parse(minText), maxText.isEmpty() ? null : Money.parse(maxText));
+                        System.out.print("Brand (blank for any): ");
+                        query.brand(sc.nextLine());
+                        System.out.print("Size (blank for any): ");
+                        query.size(sc.nextLine());
+                        System.out.print("In stock only? (y/n): ");
+                        query.inStockOnly(sc.nextLine().trim().equalsIgnoreCase("y"));
+                        System.out.print("Sort (1=Price low-high, 2=Price high-low, 3=Name): ");
+                        String sortText = sc.nextLine().trim();
+                        query.sort(sortText.equals("2") ? SortOrder.PRICE_DESC : sortText.equals("3") ? SortOrder.NAME_ASC : SortOrder.PRICE_ASC);
+                        for (int page = 0; ; page++) {
+                            ResultPage<Product> results = storeManager.search(query.page(page, 10));
+                            if (page == 0 && results.getItems().isEmpty()) { System.out.println("No matching products."); break; }
+                            for (Product p : results.getItems()) p.displayDetails();
+                            if (!results.hasMore()) break;
+                            System.out.print("Enter n for next page, anything else to stop: ");
+                            if (!sc.nextLine().trim().equalsIgnoreCase("n")) break;
+                        }
+                        break;
+                    case 13:
+                        if (!adminSession.isLoggedIn()) throw new ShoppingException("Admin privileges required. Please login as admin first.");
+                        System.out.print("Path to .csv or .jsonl file: ");
+                        try {
+                            printImportReport(new CatalogImporter(storeManager).importFile(Paths.get(sc.nextLine().trim())));
+                        } catch (IOException | InvalidPathException e) {
+                            throw new ShoppingException("Could not read file: " + e.getMessage());
+                        }
+                        break;
+                    case 14:
+                        if (!adminSession.isLoggedIn()) throw new ShoppingException("Admin privileges required. Please login as admin first.");
+                        StringBuilder dashboard = new StringBuilder(512);
+                        sales.appendTo(dashboard, 10);
+                        System.out.print(dashboard);
+                        break;
                     default:
                         System.out.println("Invalid choice.");
                 }
-            } catch (ShoppingException | NumberFormatException e) {
+            } catch (ShoppingException | NumberFormatException | ArithmeticException e) {
                 System.out.println("Error: " + e.getMessage());
             }
         }
         System.out.println("======================================");
         System.out.println(" Thank you for shopping with us!");
         System.out.println("======================================");
+        checkoutService.shutdown();
+        feed.close();
+        if (journal != null) journal.close();
+        storeManager.close();
         sc.close();
     }
 }
\ No newline at end of file
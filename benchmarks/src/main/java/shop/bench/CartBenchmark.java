@@ -0,0 +1,34 @@
+package shop.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Fills a fresh cart with distinct lines, reading the total after each add; time is per filled cart
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CartBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int lines;
+
+    private Product[] products;
+
+    @Setup
+    public void setUp() throws ShoppingException {
+        products = ShopBenchmarks.catalogOf(lines).getAllProducts().toArray(new Product[0]);
+    }
+
+    @Benchmark
+    public long addProductAndGetTotal() throws ShoppingException {
+        Cart cart = new Cart();
+        long cents = 0;
+        for (Product p : products) {
+            cart.addProduct(p, 1);
+            cents += cart.getTotal().cents();
+        }
+        return cents;
+    }
+}
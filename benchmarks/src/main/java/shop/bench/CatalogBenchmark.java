@@ -0,0 +1,55 @@
+package shop.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Lookup and full-scan cost by catalog size. The 10M tier holds about 8 GB of products, so the fork gets a 12 GB
+// heap; on a smaller machine leave it out with -p size=10000,100000,1000000
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx12g")
+public class CatalogBenchmark {
+    static final int KEYS = 4096;
+
+    @Param({ "10000", "100000", "1000000", "10000000" })
+    public int size;
+
+    private StoreManager store;
+    private String[] keys;
+
+    @Setup
+    public void setUp() throws ShoppingException {
+        store = ShopBenchmarks.catalogOf(size);
+        Random rnd = new Random(7);
+        keys = new String[KEYS];
+        for (int i = 0; i < keys.length; i++) {
+            int n = rnd.nextInt(size);
+            keys[i] = ((n & 1) == 0 ? "E" : "C") + n;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws java.io.IOException {
+        store.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public long getProduct() {
+        long hits = 0;
+        for (String key : keys) if (store.getProduct(key) != null) hits++;
+        return hits;
+    }
+
+    // Time per full pass over the catalog
+    @Benchmark
+    public long getAllProducts() {
+        long stock = 0;
+        for (Product p : store.getAllProducts()) stock += p.getStock();
+        return stock;
+    }
+}
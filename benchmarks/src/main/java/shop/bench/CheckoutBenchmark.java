@@ -0,0 +1,53 @@
+package shop.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// End to end: a 5-line cart reserved, paid half by card and half by PayPal, and committed as an order
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CheckoutBenchmark {
+    private Product[] products;
+    private CheckoutService service;
+
+    @Setup
+    public void setUp() throws ShoppingException {
+        products = ShopBenchmarks.catalogOf(1000).getAllProducts().toArray(new Product[0]);
+        service = new CheckoutService(TimeUnit.MINUTES.toMillis(5));
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Shopper {
+        CreditCard card;
+        PayPal payPal;
+        int next;
+
+        @Setup
+        public void setUp() throws ShoppingException {
+            card = new CreditCard("1234567890123456", Money.ofCents(Long.MAX_VALUE / 4));
+            payPal = new PayPal("bench@example.com", Money.ofCents(Long.MAX_VALUE / 4));
+        }
+    }
+
+    @Benchmark
+    public Object splitPayment(Shopper s) throws ShoppingException {
+        Customer c = new Customer("bench");
+        int first = s.next++ * 5;
+        for (int l = 0; l < 5; l++) c.getCart().addProduct(products[(first + l) % products.length], 1);
+        Money due = service.totalDue(c.getCart());
+        Money half = Money.ofCents(due.cents() / 2);
+        Object order = service.checkout(c, List.of(new PaymentRecord(s.card, half), new PaymentRecord(s.payPal, due.minus(half))));
+        for (int l = 0; l < 5; l++) products[(first + l) % products.length].restoreStock(1);
+        return order;
+    }
+}
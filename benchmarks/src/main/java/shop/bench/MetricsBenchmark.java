@@ -0,0 +1,53 @@
+package shop.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Probe cost with metrics on (MetricsOnBenchmark) and off (MetricsOffBenchmark, -Dshop.metrics=false), so
+// "off" can be checked against the bare call it wraps
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public abstract class MetricsBenchmark {
+    static final int HOT = 1000;
+
+    private final LatencyHistogram timed = ShopMetrics.histogram("bench.timed", 1);
+    private StoreManager store;
+    private String[] ids;
+    private int next;
+
+    @Setup
+    public void setUp() throws ShoppingException {
+        store = ShopBenchmarks.catalogOf(100_000);
+        ids = store.getAllProducts().stream().limit(HOT).map(Product::getId).toArray(String[]::new);
+    }
+
+    @TearDown
+    public void tearDown() throws java.io.IOException {
+        store.close();
+    }
+
+    @Benchmark
+    public void counterIncrement() {
+        ShopMetrics.STOCK_INSUFFICIENT.increment();
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        timed.recordSince(timed.start());
+    }
+
+    // A cache-resident working set, so the probe's own cost is not hidden behind memory stalls
+    @Benchmark
+    public int getProductHot() {
+        return store.getProduct(ids[next++ % HOT]).getStock();
+    }
+
+    @Fork(1)
+    public static class MetricsOnBenchmark extends MetricsBenchmark {}
+
+    @Fork(value = 1, jvmArgsAppend = "-Dshop.metrics=false")
+    public static class MetricsOffBenchmark extends MetricsBenchmark {}
+}
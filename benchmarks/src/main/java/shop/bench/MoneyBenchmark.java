@@ -0,0 +1,61 @@
+package shop.bench;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A 1,000-line basket less 10%, in Money and in the equivalent BigDecimal code; compare gc.alloc.rate.norm
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoneyBenchmark {
+    static final int LINES = 1000;
+    static final BigDecimal PERCENT = BigDecimal.valueOf(10), HUNDRED = BigDecimal.valueOf(100);
+
+    private final Money[] prices = new Money[LINES];
+    private final BigDecimal[] decimals = new BigDecimal[LINES];
+    private final int[] qty = new int[LINES];
+
+    @Setup
+    public void setUp() {
+        Random rnd = new Random(42);
+        for (int i = 0; i < LINES; i++) {
+            long cents = 100 + rnd.nextInt(100_000);
+            prices[i] = Money.ofCents(cents);
+            decimals[i] = BigDecimal.valueOf(cents, 2);
+            qty[i] = 1 + rnd.nextInt(5);
+        }
+    }
+
+    // How Cart keeps its running subtotal: raw cents with exact arithmetic, one Money at the end
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long moneyBasketTotal() {
+        long total = 0;
+        for (int i = 0; i < LINES; i++) total = Math.addExact(total, Math.multiplyExact(prices[i].cents(), qty[i]));
+        Money t = Money.ofCents(total);
+        return t.minus(t.percent(10)).cents();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long moneyChainedObjects() {
+        Money total = Money.ZERO;
+        for (int i = 0; i < LINES; i++) total = total.plus(prices[i].times(qty[i]));
+        return total.minus(total.percent(10)).cents();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long bigDecimalBasketTotal() {
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < LINES; i++) total = total.add(decimals[i].multiply(BigDecimal.valueOf(qty[i])));
+        BigDecimal discount = total.multiply(PERCENT).divide(HUNDRED, 2, RoundingMode.HALF_EVEN);
+        return total.subtract(discount).unscaledValue().longValue();
+    }
+}
@@ -0,0 +1,48 @@
+package shop.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A 500-line cart priced against thousands of promotions: the compiled plan against evaluating every rule
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PricingBenchmark {
+    @Param({ "500" })
+    public int lines;
+
+    @Param({ "1000", "5000" })
+    public int promotions;
+
+    private PricingEngine engine;
+    private Cart cart;
+    private long now;
+
+    @Setup
+    public void setUp() throws ShoppingException {
+        Product[] products = ShopBenchmarks.catalogOf(Math.max(lines, 10_000)).getAllProducts().toArray(new Product[0]);
+        now = System.currentTimeMillis();
+        engine = ShopBenchmarks.promotions(products, promotions, now);
+        cart = ShopBenchmarks.pricingCart(products, lines);
+        if (engine.quote(cart).getTotal().cents() != engine.quoteInterpreted(cart, now).getTotal().cents())
+            throw new IllegalStateException("Compiled plan disagrees with the rules");
+    }
+
+    @Benchmark
+    public long compile() {
+        return new PricingPlan(engine.getRules(), now, 0).validUntilMillis;
+    }
+
+    @Benchmark
+    public long quoteCompiled() {
+        return engine.quote(cart).getTotal().cents();
+    }
+
+    @Benchmark
+    public long quoteInterpreted() {
+        return engine.quoteInterpreted(cart, now).getTotal().cents();
+    }
+}
@@ -0,0 +1,1054 @@
+package shop.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.*;
+import java.util.stream.*;
+
+// Minimal in-process harness: warmup, timed rounds, and per-op allocation from the thread allocation counter.
+// It predates the JMH benchmarks beside it and covers what they do not: multi-JVM shards, footprints, the
+// metrics-off rerun and the wallet invariant checks. JMH's helpers (catalogOf, promotions, ...) live here too.
+//
+//   java -cp benchmarks/target/benchmarks.jar shop.bench.ShopBenchmarks [suite...]
+public class ShopBenchmarks {
+    interface Op { long run(int iterations) throws Exception; }
+
+    static volatile long sink;
+    // Results go to the real console even if a suite redirects System.out
+    private static final java.io.PrintStream OUT = System.out;
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+
+    static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.warmupMs", 500));
+    static final int ROUNDS = Integer.getInteger("bench.rounds", 10);
+
+    static void measure(String name, int iterations, Op op) throws Exception {
+        for (long end = System.nanoTime() + WARMUP_NANOS; System.nanoTime() < end; ) sink += op.run(iterations);
+        long totalNanos = 0, bytes = 0;
+        long[] gc0 = gcTotals();
+        for (int i = 0; i < ROUNDS; i++) {
+            long a0 = THREADS.getCurrentThreadAllocatedBytes();
+            long t0 = System.nanoTime();
+            sink += op.run(iterations);
+            totalNanos += System.nanoTime() - t0;
+            bytes += THREADS.getCurrentThreadAllocatedBytes() - a0;
+        }
+        report(name, (long) ROUNDS * iterations, totalNanos, bytes, gc0);
+    }
+
+    // Runs op on every thread at once; ns/op is wall time over all threads' operations, so lower means more throughput
+    static void measureThreads(String name, int threads, int iterations, Op op) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (long end = System.nanoTime() + WARMUP_NANOS; System.nanoTime() < end; ) runOnAll(pool, threads, iterations, op, null);
+            long totalNanos = 0;
+            LongAdder bytes = new LongAdder();
+            long[] gc0 = gcTotals();
+            for (int i = 0; i < ROUNDS; i++) totalNanos += runOnAll(pool, threads, iterations, op, bytes);
+            report(name + " [" + threads + "t]", (long) ROUNDS * iterations * threads, totalNanos, bytes.sum(), gc0);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static long runOnAll(ExecutorService pool, int threads, int iterations, Op op, LongAdder bytes) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) done.add(pool.submit(() -> {
+            start.await();
+            long a0 = THREADS.getCurrentThreadAllocatedBytes();
+            long r = op.run(iterations);
+            if (bytes != null) bytes.add(THREADS.getCurrentThreadAllocatedBytes() - a0);
+            return r;
+        }));
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Future<Long> f : done) sink += f.get();
+        return System.nanoTime() - t0;
+    }
+
+    private static long[] gcTotals() {
+        long count = 0, millis = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] { count, millis };
+    }
+
+    private static void report(String name, long ops, long nanos, long bytes, long[] gc0) {
+        long[] gc1 = gcTotals();
+        OUT.printf("%-44s %12.2f ns/op %12.2f B/op %6d gc %6d ms-gc%n", name,
+            (double) nanos / ops, (double) bytes / ops, gc1[0] - gc0[0], gc1[1] - gc0[1]);
+    }
+
+    // Runs every suite, or only those named on the command line (money, catalog, cart, stock, checkout, payments, wallet, orderheap, render, import, pricing, cache, metrics, feed, offheap, analytics, shards);
+    // walletstress runs only the wallet invariant checks, untimed, and fails the run if one is broken; shardnode is
+    // the node process the shards suite starts
+    public static void main(String[] args) throws Exception {
+        Set<String> only = new HashSet<>(Arrays.asList(args));
+        if (only.isEmpty() || only.contains("money")) money();
+        if (only.isEmpty() || only.contains("catalog")) catalog();
+        if (only.isEmpty() || only.contains("cart")) cart();
+        if (only.isEmpty() || only.contains("stock")) stock();
+        if (only.isEmpty() || only.contains("checkout")) checkout();
+        if (only.isEmpty() || only.contains("payments")) payments();
+        if (only.isEmpty() || only.contains("wallet")) wallet();
+        if (only.contains("walletstress")) walletChecks();
+        if (only.isEmpty() || only.contains("orderheap")) orderHeap();
+        if (only.isEmpty() || only.contains("render")) render();
+        if (only.isEmpty() || only.contains("import")) bulkImport();
+        if (only.isEmpty() || only.contains("pricing")) pricing();
+        if (only.isEmpty() || only.contains("cache")) cache();
+        if (only.isEmpty() || only.contains("metrics")) metrics();
+        if (only.isEmpty() || only.contains("feed")) feed();
+        if (only.isEmpty() || only.contains("offheap")) offHeap();
+        if (only.isEmpty() || only.contains("analytics")) analytics();
+        if (only.isEmpty() || only.contains("shards")) shards();
+        if (only.contains("shardnode")) shardNode();
+    }
+
+    static int[] intList(String property, String defaults) {
+        return Arrays.stream(System.getProperty(property, defaults).split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    static int[] threadCounts() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int t = 1; t < cores; t *= 2) counts.add(t);
+        counts.add(cores);
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    static StoreManager catalogOf(int size) throws ShoppingException {
+        StoreManager store = new StoreManager();
+        for (int i = 0; i < size; i++) {
+            Money price = Money.ofCents(100 + (i * 7919L) % 100_000);
+            store.addProduct((i & 1) == 0
+                ? new Electronics("E" + i, "Gadget " + i, price, 1_000_000, "Brand" + (i % 50))
+                : new Clothing("C" + i, "Shirt " + i, price, 1_000_000, (i % 3 == 0) ? "S" : "M"));
+        }
+        return store;
+    }
+
+    // Lookup cost by catalog size; pass -Dbench.catalogSizes=10000,...,10000000 for the largest tiers
+    static void catalog() throws Exception {
+        for (int size : intList("bench.catalogSizes", "10000,100000,1000000")) {
+            StoreManager store = catalogOf(size);
+            Random rnd = new Random(7);
+            String[] keys = new String[4096];
+            for (int i = 0; i < keys.length; i++) {
+                int n = rnd.nextInt(size);
+                keys[i] = ((n & 1) == 0 ? "E" : "C") + n;
+            }
+            measure("catalog.getProduct n=" + size, keys.length, n -> {
+                long hits = 0;
+                for (int i = 0; i < n; i++) if (store.getProduct(keys[i]) != null) hits++;
+                return hits;
+            });
+            measure("catalog.getAllProducts.scan n=" + size, size, n -> {
+                long stock = 0;
+                for (Product p : store.getAllProducts()) stock += p.getStock();
+                return stock;
+            });
+        }
+    }
+
+    // Fills a fresh cart with distinct lines, reads the total after each add
+    static void cart() throws Exception {
+        for (int lines : intList("bench.cartSizes", "10,100,1000")) {
+            Product[] products = catalogOf(lines).getAllProducts().toArray(new Product[0]);
+            measure("cart.addProduct+getTotal lines=" + lines, lines, n -> {
+                Cart cart = new Cart();
+                long cents = 0;
+                for (int i = 0; i < n; i++) {
+                    cart.addProduct(products[i], 1);
+                    cents += cart.getTotal().cents();
+                }
+                return cents;
+            });
+        }
+    }
+
+    // All threads take single units from one hot SKU
+    static void stock() throws Exception {
+        for (int threads : threadCounts()) {
+            Product hot = new Electronics("E01", "Smartphone", Money.parse("299.99"), Integer.MAX_VALUE, "Samsung");
+            measureThreads("stock.decreaseStock hot-sku", threads, 100_000, n -> {
+                long ok = 0;
+                for (int i = 0; i < n; i++) if (hot.tryDecreaseStock(1)) ok++;
+                return ok;
+            });
+        }
+    }
+
+    static long usedHeapAfterGc() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // Full catalog and order-history listings into a discarding stream: one printf per row through a PrintStream,
+    // as the console used to, against the ReportSink renderers. ns/op and B/op are per listed row.
+    static void render() throws Exception {
+        int size = Integer.getInteger("bench.renderProducts", 100_000);
+        List<Product> products = new ArrayList<>(catalogOf(size).getAllProducts());
+        PrintStream legacy = new PrintStream(OutputStream.nullOutputStream());
+        ReportSink sink = new ReportSink(OutputStream.nullOutputStream(), 1 << 16);
+        measure("render.catalog printf n=" + size, size, n -> {
+            for (Product p : products) {
+                String line = p instanceof Electronics ? "ID: %s | Electronics: %s (Brand: %s) - %s | Stock: %d%s\n"
+                    : "ID: %s | Clothing: %s (Size: %s) - %s | Stock: %d%s\n";
+                legacy.printf(line, p.getId(), p.getName(), p.getAttribute(), p.getPrice(), p.getStock(), p.getStock() == 0 ? " [SOLD OUT]" : "");
+            }
+            return products.size();
+        });
+        for (RenderFormat format : RenderFormat.values()) {
+            measure("render.catalog sink " + format.name().toLowerCase() + " n=" + size, size, n -> {
+                ShopRenderer.catalog(sink, products, format);
+                sink.flush();
+                return products.size();
+            });
+        }
+
+        int orders = Integer.getInteger("bench.renderOrders", 10_000);
+        CreditCard card = new CreditCard("1234567890123456", Money.ZERO);
+        List<PaymentRecord> paid = List.of(new PaymentRecord(card, Money.ofCents(1999)));
+        OrderHistory history = new OrderHistory();
+        for (int i = 0; i < orders; i++) {
+            List<CartItem> items = new ArrayList<>(3);
+            for (int l = 0; l < 3; l++) items.add(new CartItem(products.get((i * 3 + l) % products.size()), 1 + l));
+            history.append(new Order(items, Money.ofCents(1999), paid));
+        }
+        measure("render.orders printf n=" + orders, orders, n -> {
+            history.stream().forEach(o -> {
+                legacy.printf("Order Date: %s | Total Paid: %s\n", o.getDate(), o.getTotalPaid());
+                legacy.println("Items:");
+                for (int i = 0; i < o.lineCount(); i++)
+                    legacy.printf("  %s x%d (%s each)\n", o.getProductAt(i).getName(), o.getQuantityAt(i), o.getProductAt(i).getUnitPrice());
+                legacy.println("Payments:");
+                for (int i = 0; i < o.paymentCount(); i++)
+                    legacy.printf("  %s: %s\n", o.getPaymentMethodAt(i), Money.ofCents(o.getPaymentCentsAt(i)));
+            });
+            return orders;
+        });
+        for (RenderFormat format : RenderFormat.values()) {
+            measure("render.orders sink " + format.name().toLowerCase() + " n=" + orders, orders, n -> {
+                ShopRenderer.orderHistory(sink, "bench", history.stream(), format);
+                sink.flush();
+                return orders;
+            });
+        }
+    }
+
+    // Prices a 500-line cart against a few thousand active promotions (brand, product, category, buy-N-get-M,
+    // tiers, some outside their window), compiled plan vs. walking the rule list per line. Both must agree.
+    static void pricing() throws Exception {
+        int lines = Integer.getInteger("bench.pricingLines", 500);
+        int promos = Integer.getInteger("bench.promotions", 5000);
+        Product[] products = catalogOf(Math.max(lines, 10_000)).getAllProducts().toArray(new Product[0]);
+        long now = System.currentTimeMillis();
+        PricingEngine engine = promotions(products, promos, now);
+        Cart cart = pricingCart(products, lines);
+        PriceQuote compiled = engine.quote(cart), interpreted = engine.quoteInterpreted(cart, now);
+        if (!compiled.getTotal().equals(interpreted.getTotal()) || !compiled.getDiscount().equals(interpreted.getDiscount()))
+            throw new IllegalStateException("Compiled plan " + compiled.getTotal() + " disagrees with rules " + interpreted.getTotal());
+        measure("pricing.compile promotions=" + promos, 1, n -> new PricingPlan(engine.getRules(), now, 0).validUntilMillis);
+        measure("pricing.quote compiled lines=" + lines + " promotions=" + promos, 1, n -> engine.quote(cart).getTotal().cents());
+        measure("pricing.quote interpreted lines=" + lines + " promotions=" + promos, 1, n -> engine.quoteInterpreted(cart, now).getTotal().cents());
+    }
+
+    // The default rules plus a seeded mix of brand, product, buy-N-get-M, category and tiered promotions
+    static PricingEngine promotions(Product[] products, int promos, long now) {
+        PricingEngine engine = PricingEngine.withDefaults();
+        Random rnd = new Random(5);
+        long day = TimeUnit.DAYS.toMillis(1);
+        for (int i = 0; i < promos; i++) {
+            PromotionRule r;
+            switch (i % 5) {
+                case 0: r = PromotionRule.brandPercent("brand" + i, "Brand" + rnd.nextInt(50), 1 + rnd.nextInt(30)); break;
+                case 1: r = PromotionRule.productPercent("product" + i, products[rnd.nextInt(products.length)].getId(), 1 + rnd.nextInt(40)); break;
+                case 2: r = PromotionRule.buyNGetM("bogo" + i, products[rnd.nextInt(products.length)].getId(), 1 + rnd.nextInt(3), 1); break;
+                case 3: r = PromotionRule.categoryPercent("category" + i, (i & 1) == 0 ? "Clothing" : "Electronics", rnd.nextInt(5)); break;
+                default: r = PromotionRule.tiered("tier" + i, new long[] { 50_000 + rnd.nextInt(500_000) }, new int[] { 1 + rnd.nextInt(15) });
+            }
+            // A tenth are expired or not started yet
+            if (i % 10 == 9) r = r.activeBetween(new Date(now + (i % 20 == 19 ? day : -2 * day)), new Date(now + (i % 20 == 19 ? 2 * day : -day)));
+            engine.addRule(r);
+        }
+        return engine;
+    }
+
+    static Cart pricingCart(Product[] products, int lines) throws ShoppingException {
+        Random rnd = new Random(6);
+        Cart cart = new Cart();
+        for (int i = 0; i < lines; i++) cart.addProduct(products[i * (products.length / lines)], 1 + rnd.nextInt(4));
+        return cart;
+    }
+
+    // A disk-backed catalog read through a cache holding ~5% of it, under Zipf-skewed lookups: cached reads vs.
+    // going to the file every time, then hit rates against a plain LRU of the same budget, including while a
+    // sweep over cold products is interleaved with the traffic, which an LRU lets flush the hot set
+    static void cache() throws Exception {
+        int size = Integer.getInteger("bench.cacheProducts", 200_000);
+        int draws = 1 << 20;
+        Path file = Files.createTempFile("shop-catalog", ".dat");
+        try {
+            long total = 0;
+            List<String> ids = new ArrayList<>(size);
+            try (StoreManager seeded = StoreManager.onDisk(file, 0)) {
+                List<Product> batch = new ArrayList<>(1024);
+                for (Product p : catalogOf(size).getAllProducts()) {
+                    total += StoreManager.PRODUCT_WEIGHER.applyAsInt(p);
+                    ids.add(p.getId());
+                    batch.add(p);
+                    if (batch.size() == 1024) { seeded.addProducts(batch); batch.clear(); }
+                }
+                seeded.addProducts(batch);
+            }
+            long budget = total / 20;
+            // Zipf(0.99) by inverse CDF over a shuffled id order, so popularity is unrelated to file position
+            Collections.shuffle(ids, new Random(3));
+            double[] cdf = new double[size];
+            double sum = 0;
+            for (int i = 0; i < size; i++) cdf[i] = sum += 1 / Math.pow(i + 1, 0.99);
+            Random rnd = new Random(7);
+            String[] trace = new String[draws];
+            for (int i = 0; i < draws; i++) trace[i] = ids.get(Math.min(size - 1, Math.abs(Arrays.binarySearch(cdf, rnd.nextDouble() * sum) + 1)));
+
+            try (StoreManager store = StoreManager.onDisk(file, budget); DiskProductStorage direct = DiskProductStorage.open(file)) {
+                int[] cursor = new int[1];
+                measure("cache.get zipf n=" + size + " budget=" + (budget >> 10) + "KiB", 10_000, n -> {
+                    long s = 0;
+                    for (int i = 0; i < n; i++) s += store.getProduct(trace[cursor[0]++ & (draws - 1)]).getStock();
+                    return s;
+                });
+                measure("cache.disk load zipf n=" + size, 10_000, n -> {
+                    long s = 0;
+                    for (int i = 0; i < n; i++) s += direct.load(trace[cursor[0]++ & (draws - 1)]).getStock();
+                    return s;
+                });
+                OUT.println("  " + store.getCacheStats());
+            }
+
+            try (StoreManager store = StoreManager.onDisk(file, budget)) {
+                int lruEntries = (int) (budget / (total / size));
+                Map<String, Boolean> lru = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                    @Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) { return size() > lruEntries; }
+                };
+                int third = draws / 3, sweep = size / 2;
+                for (String phase : new String[] { "warm", "with cold sweep", "after sweep" }) {
+                    CacheStats before = store.getCacheStats();
+                    long lruHits = 0, lookups = 0;
+                    int offset = phase.equals("warm") ? 0 : phase.equals("after sweep") ? 2 * third : third;
+                    for (int i = 0; i < third; i++) {
+                        // The sweep walks the least popular half of the catalog, one cold id after every hot lookup
+                        for (String id : phase.equals("with cold sweep") && i < sweep ? new String[] { trace[offset + i], ids.get(size - 1 - i) } : new String[] { trace[offset + i] }) {
+                            store.getProduct(id);
+                            if (lru.get(id) != null) lruHits++; else lru.put(id, Boolean.TRUE);
+                            lookups++;
+                        }
+                    }
+                    CacheStats after = store.getCacheStats();
+                    long hits = after.hits - before.hits, requests = hits + after.misses - before.misses;
+                    OUT.printf("%-44s %11.1f%% w-tinylfu %8.1f%% lru%n", "cache.hitRate " + phase, 100.0 * hits / requests, 100.0 * lruHits / lookups);
+                }
+                OUT.println("  " + store.getCacheStats());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Instrumented hot paths with metrics on, then the same suite in a child JVM started with -Dshop.metrics=false,
+    // where the probes compile away; the difference between the two runs is the instrumentation overhead
+    static void metrics() throws Exception {
+        String mode = ShopMetrics.ENABLED ? " [metrics on]" : " [metrics off]";
+        measure("metrics.counter.increment" + mode, 1_000_000, n -> {
+            for (int i = 0; i < n; i++) ShopMetrics.STOCK_INSUFFICIENT.increment();
+            return n;
+        });
+        LatencyHistogram timed = ShopMetrics.histogram("bench.timed", 1), sampled = ShopMetrics.histogram("bench.sampled", 32);
+        measure("metrics.histogram.record" + mode, 1_000_000, n -> {
+            for (int i = 0; i < n; i++) timed.recordSince(timed.start());
+            return n;
+        });
+        measure("metrics.histogram.record 1/32" + mode, 1_000_000, n -> {
+            for (int i = 0; i < n; i++) sampled.recordSince(sampled.start());
+            return n;
+        });
+        StoreManager store = catalogOf(100_000);
+        String[] ids = store.getAllProducts().stream().map(Product::getId).toArray(String[]::new);
+        // A cache-resident working set shows the probe's own cost; striding the whole catalog is bound by memory
+        // parallelism, where any extra instructions per lookup leave fewer misses in flight
+        measure("metrics.store.getProduct hot=1000" + mode, 100_000, n -> {
+            long s = 0;
+            for (int i = 0; i < n; i++) s += store.getProduct(ids[i % 1000]).getStock();
+            return s;
+        });
+        measure("metrics.store.getProduct n=100000" + mode, ids.length, n -> {
+            long s = 0;
+            for (int i = 0; i < n; i++) s += store.getProduct(ids[(i * 7919) % ids.length]).getStock();
+            return s;
+        });
+        Product[] products = store.getAllProducts().toArray(new Product[0]);
+        Cart cart = new Cart();
+        measure("metrics.cart.addProduct lines=10" + mode, 100_000, n -> {
+            for (int i = 0; i < n; i++) {
+                cart.addProduct(products[i % products.length], 1);
+                if (i % 10 == 9) cart.clear();
+            }
+            return cart.getItems().size();
+        });
+        AdminSession admin = new AdminSession();
+        measure("metrics.admin.login" + mode, 100_000, n -> {
+            long ok = 0;
+            for (int i = 0; i < n; i++) if (admin.login("admin", (i & 1) == 0 ? "1234" : "wrong")) ok++;
+            return ok;
+        });
+        CheckoutService service = new CheckoutService(TimeUnit.MINUTES.toMillis(5));
+        try {
+            CreditCard card = new CreditCard("1234567890123456", Money.ofCents(Long.MAX_VALUE / 4));
+            measure("metrics.checkout lines=5" + mode, 1000, n -> {
+                for (int i = 0; i < n; i++) {
+                    Customer c = new Customer("bench");
+                    for (int l = 0; l < 5; l++) c.getCart().addProduct(products[(i * 5 + l) % products.length], 1);
+                    service.checkout(c, List.of(new PaymentRecord(card, service.totalDue(c.getCart()))));
+                    for (int l = 0; l < 5; l++) products[(i * 5 + l) % products.length].restoreStock(1);
+                }
+                return n;
+            });
+        } finally {
+            service.shutdown();
+        }
+        if (!ShopMetrics.ENABLED) return;
+        OUT.print(ShopMetrics.dump());
+        List<String> command = new ArrayList<>(List.of(Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-Dshop.metrics=false"));
+        for (String key : System.getProperties().stringPropertyNames())
+            if (key.startsWith("bench.")) command.add("-D" + key + "=" + System.getProperty(key));
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), ShopBenchmarks.class.getName(), "metrics"));
+        OUT.flush();
+        int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (exit != 0) throw new IllegalStateException("Metrics-off run exited with " + exit);
+    }
+
+    // Publishing cost into the event ring with a batching subscriber, checkout with and without the feed and a
+    // low-stock alerter attached, and backpressure: a small ring in front of a slow subscriber throttles writers
+    static void feed() throws Exception {
+        StoreManager store = catalogOf(1000);
+        Product[] products = store.getAllProducts().toArray(new Product[0]);
+        try (ShopEventFeed feed = new ShopEventFeed(1 << 14)) {
+            long[] batches = new long[1];
+            feed.subscribe("count", (e, seq, endOfBatch) -> { if (endOfBatch) batches[0]++; });
+            measure("feed.publish stockChanged", 100_000, n -> {
+                for (int i = 0; i < n; i++) feed.stockChanged(products[i % products.length], 10, 9);
+                return n;
+            });
+            for (int threads : threadCounts()) measureThreads("feed.publish stockChanged", threads, 100_000, n -> {
+                for (int i = 0; i < n; i++) feed.stockChanged(products[i % products.length], 10, 9);
+                return n;
+            });
+            while (feed.lag("count") > 0) Thread.sleep(1);
+            OUT.printf("  %d events in %d batches%n", feed.publishedCount(), batches[0]);
+        }
+
+        for (boolean withFeed : new boolean[] { false, true }) {
+            StoreManager shop = catalogOf(1000);
+            Product[] stocked = shop.getAllProducts().toArray(new Product[0]);
+            CheckoutService service = new CheckoutService(TimeUnit.MINUTES.toMillis(5));
+            ShopEventFeed feed = withFeed ? OnlineShoppingApp.startFeed(shop, service, alerts -> sink += alerts.size()) : null;
+            try {
+                CreditCard card = new CreditCard("1234567890123456", Money.ofCents(Long.MAX_VALUE / 4));
+                measure("feed.checkout lines=5" + (withFeed ? " with feed" : " no feed"), 1000, n -> {
+                    for (int i = 0; i < n; i++) {
+                        Customer c = new Customer("bench");
+                        for (int l = 0; l < 5; l++) c.getCart().addProduct(stocked[(i * 5 + l) % stocked.length], 1);
+                        service.checkout(c, List.of(new PaymentRecord(card, service.totalDue(c.getCart()))));
+                        for (int l = 0; l < 5; l++) stocked[(i * 5 + l) % stocked.length].restoreStock(1);
+                    }
+                    return n;
+                });
+            } finally {
+                service.shutdown();
+                if (feed != null) feed.close();
+            }
+        }
+
+        int events = 20_000;
+        try (ShopEventFeed small = new ShopEventFeed(1024)) {
+            small.subscribe("slow", (e, seq, endOfBatch) -> {
+                for (long end = System.nanoTime() + 5_000; System.nanoTime() < end; ) Thread.onSpinWait();
+            });
+            long stalls0 = ShopMetrics.ENABLED ? ((MetricCounter) ShopMetrics.all().get("feed.publisherStalls")).sum() : 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < events; i++) small.stockChanged(products[i % products.length], 10, 9);
+            long nanos = System.nanoTime() - t0;
+            long stalls = ShopMetrics.ENABLED ? ((MetricCounter) ShopMetrics.all().get("feed.publisherStalls")).sum() - stalls0 : -1;
+            OUT.printf("%-44s %12.0f ns/event %8d stalls %6d lag at end%n", "feed.backpressure ring=1024 consumer=5us", (double) nanos / events, stalls, small.lag("slow"));
+        }
+    }
+
+    // The same generated catalog in a heap StoreManager and in StoreManager.offHeap, as the shop would run them:
+    // retained heap (the heap store includes its search index), off-heap bytes and full-GC pause with the catalog
+    // live, then point loads through getProduct and a stock-summing scan
+    static void offHeap() throws Exception {
+        int size = Integer.getInteger("bench.offheapProducts", 2_000_000);
+        long cacheBytes = Long.getLong("bench.offheapCacheBytes", 64L << 20);
+        for (boolean offHeap : new boolean[] { false, true }) {
+            String label = offHeap ? "offheap cache=" + (cacheBytes >> 20) + "MiB" : "heap";
+            long base = usedHeapAfterGc();
+            StoreManager store = offHeap ? StoreManager.offHeap(cacheBytes) : new StoreManager();
+            List<Product> batch = new ArrayList<>(1024);
+            for (int i = 0; i < size; i++) {
+                Money price = Money.ofCents(100 + (i * 7919L) % 100_000);
+                batch.add((i & 1) == 0
+                    ? new Electronics("E" + i, "Gadget " + i, price, 1_000_000, "Brand" + (i % 50))
+                    : new Clothing("C" + i, "Shirt " + i, price, 1_000_000, (i % 3 == 0) ? "S" : "M"));
+                if (batch.size() == 1024) { store.addProducts(batch); batch.clear(); }
+            }
+            store.addProducts(batch);
+            batch = null;
+            long heap = usedHeapAfterGc() - base;
+            long[] gc0 = gcTotals();
+            long t0 = System.nanoTime();
+            for (int i = 0; i < 5; i++) System.gc();
+            double pauseMs = (System.nanoTime() - t0) / 5e6;
+            long[] gc1 = gcTotals();
+            long direct = offHeap ? ((OffHeapProductStorage) store.getStorage()).offHeapBytes() : 0;
+            OUT.printf("%-44s %12.1f B/product heap %8.1f B/product off-heap %8.1f ms full gc (%d collections)%n",
+                "offheap.footprint " + label + " n=" + size, (double) heap / size, (double) direct / size, pauseMs, gc1[0] - gc0[0]);
+
+            String[] ids = new String[1 << 16];
+            Random rnd = new Random(1);
+            for (int i = 0; i < ids.length; i++) {
+                int k = rnd.nextInt(size);
+                ids[i] = ((k & 1) == 0 ? "E" : "C") + k;
+            }
+            measure("offheap.getProduct " + label + " n=" + size, ids.length, n -> {
+                long s = 0;
+                for (int i = 0; i < n; i++) s += store.getProduct(ids[i]).getStock();
+                return s;
+            });
+            measure("offheap.scan getAllProducts " + label + " n=" + size, size, n -> {
+                long s = 0;
+                for (Product p : store.getAllProducts()) s += p.getStock();
+                return s;
+            });
+            if (offHeap) {
+                OffHeapProductStorage columns = (OffHeapProductStorage) store.getStorage();
+                measure("offheap.scan flyweight stock sum n=" + size, size, n -> {
+                    long[] s = new long[1];
+                    columns.scan(v -> s[0] += v.getStock());
+                    return s[0];
+                });
+            }
+            store.close();
+            sink += size;
+        }
+    }
+
+    // Best sellers and payment mix over bench.orders orders (default 1M) spread across bench.customers histories:
+    // rescanning by decoding every Order, columnar scans single-threaded and on the fork-join pool (per order),
+    // then the cost of keeping live totals current and of a dashboard read from them
+    static void analytics() throws Exception {
+        int orders = Integer.getInteger("bench.orders", 1_000_000);
+        int customers = Integer.getInteger("bench.customers", 10_000);
+        Product[] products = catalogOf(10_000).getAllProducts().toArray(new Product[0]);
+        CreditCard card = new CreditCard("1234567890123456", Money.ZERO);
+        PayPal payPal = new PayPal("bench@example.com", Money.ZERO);
+        List<OrderHistory> histories = new ArrayList<>(customers);
+        for (int c = 0; c < customers; c++) histories.add(new OrderHistory());
+        Order[] sample = new Order[4096];
+        Random rnd = new Random(23);
+        for (int i = 0; i < orders; i++) {
+            List<CartItem> items = new ArrayList<>(3);
+            // Skewed picks, so a few products dominate the ranking as in a real shop
+            for (int l = 0; l < 3; l++) items.add(new CartItem(products[(int) (products.length * Math.pow(rnd.nextDouble(), 3))], 1 + rnd.nextInt(3)));
+            long total = 0;
+            for (CartItem it : items) total += it.getProduct().getPrice().cents() * it.getQuantity();
+            List<PaymentRecord> paid = rnd.nextInt(4) == 0
+                ? List.of(new PaymentRecord(card, Money.ofCents(total / 2)), new PaymentRecord(payPal, Money.ofCents(total - total / 2)))
+                : List.of(new PaymentRecord(rnd.nextBoolean() ? card : payPal, Money.ofCents(total)));
+            Order o = new Order(items, Money.ofCents(total), paid);
+            histories.get(rnd.nextInt(customers)).append(o);
+            if (i < sample.length) sample[i] = o;
+        }
+
+        SalesReport parallel = SalesAnalytics.compute(histories);
+        if (!parallel.revenue().equals(SalesAnalytics.computeSequential(histories).revenue()) || parallel.orderCount() != orders)
+            throw new IllegalStateException("Parallel and sequential scans disagree");
+        String label = " n=" + orders;
+        measure("analytics.rescan decoded Orders" + label, orders, n -> {
+            SalesAggregate agg = new SalesAggregate();
+            for (OrderHistory h : histories) h.stream().forEach(agg::add);
+            return agg.toReport().orderCount();
+        });
+        measure("analytics.scan columnar sequential" + label, orders, n -> SalesAnalytics.computeSequential(histories).orderCount());
+        measure("analytics.scan columnar parallel p=" + ForkJoinPool.getCommonPoolParallelism() + label, orders,
+            n -> SalesAnalytics.compute(histories).orderCount());
+
+        LiveSalesAnalytics live = new LiveSalesAnalytics();
+        live.seed(parallel);
+        measure("analytics.live record order lines=3", 100_000, n -> {
+            for (int i = 0; i < n; i++) live.record(sample[i & (sample.length - 1)]);
+            return n;
+        });
+        StringBuilder out = new StringBuilder(2048);
+        measure("analytics.live dashboard top10+mix", 10_000, n -> {
+            long r = 0;
+            for (int i = 0; i < n; i++) {
+                out.setLength(0);
+                live.appendTo(out, 10);
+                r += out.length();
+            }
+            return r;
+        });
+        String top = live.bestSellers(1).get(0).getId();
+        measure("analytics.live productSales", 1_000_000, n -> {
+            long r = 0;
+            for (int i = 0; i < n; i++) r += live.productSales(top).getUnits();
+            return r;
+        });
+    }
+
+    // Ring balance and key movement, then two-phase reserve and commit of three-line carts against 1, 2 and 4
+    // shard nodes (bench.shards), each its own JVM on this machine. bench.shardClients threads (default 16) drive
+    // each layout over a catalog of bench.shardProducts products (default 10K); most carts span several shards.
+    // A second pass gives every node a fixed service time per 2PC call (bench.shardServiceMicros, default 500)
+    // so it also runs one-line carts, which touch a single shard and should scale with the node count.
+    static void shards() throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) ids.add("P" + i);
+        List<String> four = List.of("n0", "n1", "n2", "n3"), five = List.of("n0", "n1", "n2", "n3", "n4");
+        ConsistentHashRing<String> before = new ConsistentHashRing<>(four, n -> n, ShardedProductStorage.VNODES);
+        ConsistentHashRing<String> after = new ConsistentHashRing<>(five, n -> n, ShardedProductStorage.VNODES);
+        Map<String, Integer> owned = new HashMap<>();
+        int moved = 0;
+        for (String id : ids) {
+            owned.merge(before.nodeFor(id), 1, Integer::sum);
+            if (!before.nodeFor(id).equals(after.nodeFor(id))) moved++;
+        }
+        OUT.printf("%-44s %12.1f%% to %.1f%% of keys per node%n", "shards.ring balance nodes=4",
+            100.0 * Collections.min(owned.values()) / ids.size(), 100.0 * Collections.max(owned.values()) / ids.size());
+        OUT.printf("%-44s %12.1f%% of keys moved%n", "shards.ring add 5th node", 100.0 * moved / ids.size());
+
+        // Each setting of bench.shardServiceMicros runs every node count. At 0 the nodes are bound by CPU, which only
+        // scales with nodes on a host with a core per node; above 0 each node also has a fixed capacity of its own
+        // (TimedShardNode), which shows scale-out on any host
+        for (String service : System.getProperty("bench.shardServiceMicros", "0,500").split(","))
+            for (String count : System.getProperty("bench.shards", "1,2,4").split(","))
+                shardRun(Integer.parseInt(count.trim()), Long.parseLong(service.trim()));
+    }
+
+    // One coordinator in this JVM in front of nodes child JVMs, each running the shardnode suite
+    static void shardRun(int nodes, long serviceMicros) throws Exception {
+        int products = Integer.getInteger("bench.shardProducts", 10_000), clients = Integer.getInteger("bench.shardClients", 16);
+        String label = " nodes=" + nodes + (serviceMicros > 0 ? " service=" + serviceMicros + "us" : "");
+        List<Process> procs = new ArrayList<>();
+        try {
+            StringBuilder addresses = new StringBuilder();
+            for (int i = 0; i < nodes; i++) {
+                Process p = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-Xmx256m",
+                    "-Dbench.nodeServiceMicros=" + serviceMicros,
+                    "-cp", System.getProperty("java.class.path"), ShopBenchmarks.class.getName(), "shardnode")
+                    .redirectErrorStream(true).start();
+                procs.add(p);
+                String banner = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                if (banner == null || !banner.startsWith("Shard node listening on port "))
+                    throw new IllegalStateException("Shard node failed to start: " + banner);
+                addresses.append(i == 0 ? "" : ",").append("localhost:").append(banner.substring(banner.lastIndexOf(' ') + 1));
+            }
+            try (StoreManager store = new StoreManager(ShardedProductStorage.connect(addresses.toString()), 64L << 20)) {
+                List<Product> catalog = new ArrayList<>(products);
+                for (int i = 0; i < products; i++) catalog.add(new Clothing("S" + i, "Shard Tee " + i, Money.ofCents(500 + i % 5000), 1_000_000_000, "M"));
+                store.addProducts(catalog);
+                Product[] stocked = new Product[products];
+                for (int i = 0; i < products; i++) stocked[i] = store.getProduct("S" + i);
+                StockReserver stock = store.stockReserver();
+                AtomicLong holdIds = new AtomicLong();
+                Op three = cartOf(3, stocked, stock, holdIds), one = cartOf(1, stocked, stock, holdIds);
+                // The node JVMs compile on the same cores as everything else, for seconds after the load starts;
+                // let their compile queues drain before timing
+                ExecutorService warm = Executors.newFixedThreadPool(clients);
+                try {
+                    runOnAll(warm, clients, serviceMicros > 0 ? 100 : 2000, three, null);
+                } finally {
+                    warm.shutdown();
+                }
+                long settle = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.shardWarmupMs", 5000));
+                while (System.nanoTime() < settle) sink += three.run(serviceMicros > 0 ? 1 : 100);
+                int iterations = serviceMicros > 0 ? 50 : 200;
+                measureThreads("shards.2pc lines=3" + label, clients, iterations, three);
+                if (serviceMicros > 0) measureThreads("shards.2pc lines=1" + label, clients, iterations, one);
+                else measure("shards.2pc lines=3" + label, iterations, three);
+            }
+        } finally {
+            for (Process p : procs) p.destroy();
+            for (Process p : procs) p.waitFor();
+        }
+    }
+
+    // A shard node child of shardRun: an empty catalog behind a TimedShardNode, until the parent destroys it
+    static void shardNode() throws Exception {
+        try (ShardNode node = new TimedShardNode(new StoreManager(), Long.getLong("bench.nodeServiceMicros", 0))) {
+            node.start();
+            System.out.println("Shard node listening on port " + node.getPort());
+            Thread.currentThread().join();
+        }
+    }
+
+    // Stands in for a node's own bottleneck, such as its disk or cores, when every node shares one host: stock
+    // commands take turns on a single lane for serviceMicros each. Each node then has a fixed capacity, so adding
+    // nodes adds capacity the way separate machines would.
+    static final class TimedShardNode extends ShardNode {
+        private final long serviceNanos;
+        private final ReentrantLock lane = new ReentrantLock();
+
+        TimedShardNode(StoreManager store, long serviceMicros) throws IOException {
+            super(0, store, TimeUnit.MINUTES.toMillis(10));
+            this.serviceNanos = TimeUnit.MICROSECONDS.toNanos(serviceMicros);
+        }
+
+        @Override
+        void handle(String[] f, StringBuilder out) throws ShoppingException {
+            if (serviceNanos > 0 && (f[0].equals("PREPARE") || f[0].equals("COMMIT") || f[0].equals("ABORT"))) {
+                lane.lock();
+                try {
+                    long end = System.nanoTime() + serviceNanos;
+                    for (long left; (left = end - System.nanoTime()) > 0; ) LockSupport.parkNanos(left);
+                } finally {
+                    lane.unlock();
+                }
+            }
+            super.handle(f, out);
+        }
+    }
+
+    // Reserve and commit of a cart of consecutive products, which the ring spreads over the shards
+    private static Op cartOf(int size, Product[] stocked, StockReserver stock, AtomicLong holdIds) {
+        return n -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            for (int i = 0; i < n; i++) {
+                int first = rnd.nextInt(stocked.length);
+                List<CartItem> lines = new ArrayList<>(size);
+                for (int l = 0; l < size; l++) lines.add(new CartItem(stocked[(first + l) % stocked.length], 1));
+                long id = holdIds.incrementAndGet();
+                stock.reserve(id, lines);
+                stock.commit(id, lines);
+            }
+            return n;
+        };
+    }
+
+    // Exports a generated catalog as CSV and JSONL, then imports each file into empty stores: single-threaded
+    // and with the common fork-join pool. Every 100th row is malformed to exercise the error path.
+    static void bulkImport() throws Exception {
+        int rows = Integer.getInteger("bench.importRows", 1_000_000);
+        Path dir = Files.createTempDirectory("shop-import");
+        try {
+            for (String ext : new String[] { "csv", "jsonl" }) {
+                Path file = dir.resolve("feed." + ext);
+                try (BufferedWriter w = Files.newBufferedWriter(file)) {
+                    if (ext.equals("csv")) w.write("id,category,name,attribute,price,stock\n");
+                    for (int i = 0; i < rows; i++) {
+                        String price = (i % 100 == 99) ? "oops" : (i % 5000) + "." + (i % 100 < 10 ? "0" : "") + (i % 100);
+                        if (ext.equals("csv")) w.write("S" + i + "," + ((i & 1) == 0 ? "Electronics" : "Clothing") + ",Item " + i + ",Acme," + price + "," + (i % 50) + "\n");
+                        else w.write("{\"id\":\"S" + i + "\",\"category\":\"" + ((i & 1) == 0 ? "Electronics" : "Clothing") + "\",\"name\":\"Item " + i
+                            + "\",\"brand\":\"Acme\",\"price\":" + (price.equals("oops") ? "\"oops\"" : price) + ",\"stock\":" + (i % 50) + "}\n");
+                    }
+                }
+                for (int parallelism : IntStream.of(1, ForkJoinPool.getCommonPoolParallelism()).distinct().toArray()) {
+                    ForkJoinPool pool = parallelism == 1 ? new ForkJoinPool(1) : ForkJoinPool.commonPool();
+                    for (int round = 0; round < 3; round++) {
+                        ImportReport r = new CatalogImporter(new StoreManager(), CatalogImporter.DEFAULT_CHUNK_BYTES, pool).importFile(file);
+                        if (round == 2) OUT.printf("%-44s %12.0f rows/s %10d rejected%n", "import." + ext + " n=" + rows + " [" + parallelism + "p]", r.rowsPerSecond(), r.getErrorCount());
+                    }
+                    if (pool != ForkJoinPool.commonPool()) pool.shutdown();
+                }
+                StoreManager loaded = new StoreManager();
+                new CatalogImporter(loaded).importFile(file);
+                Path out = dir.resolve("export." + ext);
+                long t0 = System.nanoTime();
+                long written = CatalogExporter.export(loaded.getAllProducts(), out);
+                OUT.printf("%-44s %12.0f rows/s%n", "export." + ext + " n=" + written, written * 1e9 / (System.nanoTime() - t0));
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path f : (Iterable<Path>) files::iterator) Files.deleteIfExists(f);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // Retained heap per order for the old CartItem-list layout, OrderLine snapshots, and the encoded OrderHistory
+    static void orderHeap() throws Exception {
+        int orders = Integer.getInteger("bench.orders", 500_000);
+        Product[] products = catalogOf(10_000).getAllProducts().toArray(new Product[0]);
+        CreditCard card = new CreditCard("1234567890123456", Money.ZERO);
+        List<PaymentRecord> paid = List.of(new PaymentRecord(card, Money.ofCents(1999)));
+        Random rnd = new Random(11);
+        int[] picks = new int[orders * 3];
+        for (int i = 0; i < picks.length; i++) picks[i] = rnd.nextInt(products.length);
+
+        long base = usedHeapAfterGc();
+        // What Order used to retain: a copied CartItem list pointing at live products, plus a copied payment list
+        List<Object[]> legacy = new ArrayList<>(orders);
+        for (int i = 0; i < orders; i++) {
+            List<CartItem> items = new ArrayList<>(3);
+            for (int l = 0; l < 3; l++) items.add(new CartItem(products[picks[i * 3 + l]], 1 + l));
+            legacy.add(new Object[] { new ArrayList<>(items), Money.ofCents(1999), new Date(), new ArrayList<>(paid) });
+        }
+        long legacyBytes = usedHeapAfterGc() - base;
+        sink += legacy.size();
+        legacy = null;
+
+        base = usedHeapAfterGc();
+        List<Order> snapshots = new ArrayList<>(orders);
+        for (int i = 0; i < orders; i++) {
+            List<CartItem> items = new ArrayList<>(3);
+            for (int l = 0; l < 3; l++) items.add(new CartItem(products[picks[i * 3 + l]], 1 + l));
+            snapshots.add(new Order(items, Money.ofCents(1999), paid));
+        }
+        long snapshotBytes = usedHeapAfterGc() - base;
+
+        // Heap only: every full page of the history sits in OrderPageFile
+        base = usedHeapAfterGc();
+        OrderHistory history = new OrderHistory();
+        for (Order o : snapshots) history.append(o);
+        long encodedBytes = usedHeapAfterGc() - base;
+        // Keep the inputs reachable so their collection does not offset the measurements
+        sink += history.size() + snapshots.size() + picks.length + products.length;
+
+        OUT.printf("%-44s %12.1f B/order%n", "orderheap.legacy CartItem lists", (double) legacyBytes / orders);
+        OUT.printf("%-44s %12.1f B/order%n", "orderheap.OrderLine snapshots", (double) snapshotBytes / orders);
+        OUT.printf("%-44s %12.1f B/order%n", "orderheap.OrderHistory paged", (double) encodedBytes / orders);
+    }
+
+    // Reserve, two-way split payment, commit and order record for a five-line cart
+    static void checkout() throws Exception {
+        StoreManager store = catalogOf(1000);
+        Product[] products = store.getAllProducts().toArray(new Product[0]);
+        CheckoutService service = new CheckoutService(TimeUnit.MINUTES.toMillis(5));
+        try {
+            Op op = n -> {
+                long orders = 0;
+                for (int i = 0; i < n; i++) {
+                    Customer c = new Customer("bench");
+                    CreditCard card = new CreditCard("1234567890123456", Money.ofCents(Long.MAX_VALUE / 4));
+                    PayPal payPal = new PayPal("bench@example.com", Money.ofCents(Long.MAX_VALUE / 4));
+                    for (int l = 0; l < 5; l++) c.getCart().addProduct(products[(i * 5 + l) % products.length], 1);
+                    Money due = service.totalDue(c.getCart());
+                    Money half = Money.ofCents(due.cents() / 2);
+                    service.checkout(c, List.of(new PaymentRecord(card, half), new PaymentRecord(payPal, due.minus(half))));
+                    for (int l = 0; l < 5; l++) products[(i * 5 + l) % products.length].restoreStock(1);
+                    orders++;
+                }
+                return orders;
+            };
+            measure("checkout.split-payment lines=5", 1000, op);
+            for (int threads : threadCounts()) measureThreads("checkout.split-payment lines=5", threads, 1000, op);
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    // Split tender against slow gateways (card 20ms, PayPal 30ms by default): charging one tender after the
+    // other costs the sum of the round trips, dispatching both at once costs the slower one. The threaded run
+    // shows micro-batching keeping throughput up when many checkouts wait on the same gateways.
+    static void payments() throws Exception {
+        StubGateway cards = new StubGateway("card", Long.getLong("bench.cardLatencyMicros", 20_000), 0, 64, 200);
+        StubGateway payPal = new StubGateway("paypal", Long.getLong("bench.paypalLatencyMicros", 30_000), 0, 64, 200);
+        PaymentRouter router = new PaymentRouter(cards, payPal);
+        StoreManager store = catalogOf(1000);
+        Product[] products = store.getAllProducts().toArray(new Product[0]);
+        CheckoutService service = new CheckoutService(TimeUnit.MINUTES.toMillis(5), router);
+        AtomicLong keys = new AtomicLong();
+        try {
+            CreditCard card = new CreditCard("1234567890123456", Money.ofCents(Long.MAX_VALUE / 4));
+            PayPal wallet = new PayPal("bench@example.com", Money.ofCents(Long.MAX_VALUE / 4));
+            measure("payments.split-tender sequential", 4, n -> {
+                for (int i = 0; i < n; i++) {
+                    long key = keys.incrementAndGet();
+                    CheckoutService.await(cards.charge("seq-" + key, card, Money.ofCents(1000)));
+                    CheckoutService.await(payPal.charge("seq-" + key, wallet, Money.ofCents(1000)));
+                }
+                return n;
+            });
+            Op parallel = n -> {
+                Customer c = new Customer("bench");
+                for (int i = 0; i < n; i++) {
+                    Product p = products[(int) (keys.incrementAndGet() % products.length)];
+                    c.getCart().addProduct(p, 1);
+                    Money due = service.totalDue(c.getCart());
+                    Money half = Money.ofCents(due.cents() / 2);
+                    service.checkout(c, List.of(new PaymentRecord(card, half), new PaymentRecord(wallet, due.minus(half))));
+                    p.restoreStock(1);
+                }
+                return n;
+            };
+            measure("payments.split-tender parallel", 4, parallel);
+            long batches0 = cards.batchesSent(), charges0 = cards.chargesSent();
+            measureThreads("payments.split-tender parallel", 64, 4, parallel);
+            OUT.printf("%-44s %12.2f charges/batch%n", "payments.card batching [64t]",
+                (double) (cards.chargesSent() - charges0) / Math.max(1, cards.batchesSent() - batches0));
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    // One shared card hammered by every thread: debits alone, top-ups alone, then a mix. The stress round
+    // afterwards checks that the card is never overdrawn and that no cent is lost or invented.
+    static void wallet() throws Exception {
+        Money cent = Money.ofCents(1);
+        for (int threads : threadCounts()) {
+            CreditCard card = new CreditCard("1234567890123456", Money.ofCents(Long.MAX_VALUE / 4));
+            measureThreads("wallet.pay shared-card", threads, 100_000, n -> {
+                for (int i = 0; i < n; i++) card.pay(cent);
+                return n;
+            });
+            measureThreads("wallet.addFunds shared-card", threads, 100_000, n -> {
+                for (int i = 0; i < n; i++) card.addFunds(cent);
+                return n;
+            });
+            measureThreads("wallet.pay+addFunds shared-card", threads, 100_000, n -> {
+                for (int i = 0; i < n; i++) {
+                    if ((i & 3) == 0) card.addFunds(cent);
+                    else card.pay(cent);
+                }
+                return n;
+            });
+        }
+        walletChecks();
+    }
+
+    static void walletChecks() throws Exception {
+        walletStress(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        walletCoveredDebits(Integer.getInteger("bench.walletRounds", 20_000));
+    }
+
+    // Half the threads spend more than the card can cover, half top it up; every balance read must be >= 0
+    // and the final balance must equal opening + credits - successful debits
+    static void walletStress(int threads) throws Exception {
+        long opening = 10_000;
+        CreditCard card = new CreditCard("1234567890123456", Money.ofCents(opening));
+        LongAdder debited = new LongAdder(), credited = new LongAdder(), declined = new LongAdder();
+        AtomicLong lowest = new AtomicLong(Long.MAX_VALUE);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            boolean spender = (t & 1) == 0;
+            done.add(pool.submit(() -> {
+                start.await();
+                Random rnd = new Random();
+                for (int i = 0; i < 200_000; i++) {
+                    long cents = 1 + rnd.nextInt(spender ? 50 : 20);
+                    if (spender) {
+                        try {
+                            card.pay(Money.ofCents(cents));
+                            debited.add(cents);
+                        } catch (ShoppingException e) {
+                            declined.increment();
+                        }
+                    } else {
+                        card.addFunds(Money.ofCents(cents));
+                        credited.add(cents);
+                    }
+                    long seen = card.getBalanceCents();
+                    lowest.accumulateAndGet(seen, Math::min);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : done) f.get();
+        pool.shutdown();
+        long expected = opening + credited.sum() - debited.sum();
+        boolean ok = lowest.get() >= 0 && card.getBalanceCents() == expected;
+        OUT.printf("%-44s %s (threads=%d debited=%d credited=%d declined=%d lowest=%d final=%d expected=%d)%n",
+            "wallet.stress never-overdrawn", ok ? "PASS" : "FAIL", threads, debited.sum(), credited.sum(),
+            declined.sum(), lowest.get(), card.getBalanceCents(), expected);
+        if (!ok) throw new IllegalStateException("Wallet invariant violated");
+    }
+
+    // Two debits of 50 race on a card topped up twice by 100, so both start with the money still in the
+    // credit adder and one of them has to wait for the other's fold; neither may be declined
+    static void walletCoveredDebits(int rounds) throws Exception {
+        CreditCard[] cards = new CreditCard[rounds];
+        for (int r = 0; r < rounds; r++) {
+            cards[r] = new CreditCard("1234567890123456", Money.ZERO);
+            cards[r].addFunds(Money.ofCents(100));
+            cards[r].addFunds(Money.ofCents(100));
+        }
+        Money charge = Money.ofCents(50);
+        CyclicBarrier together = new CyclicBarrier(2);
+        LongAdder declined = new LongAdder();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 2; t++) done.add(pool.submit(() -> {
+                for (CreditCard card : cards) {
+                    together.await();
+                    try {
+                        card.pay(charge);
+                    } catch (ShoppingException e) {
+                        declined.increment();
+                    }
+                }
+                return null;
+            }));
+            for (Future<?> f : done) f.get();
+        } finally {
+            pool.shutdown();
+        }
+        long wrong = Arrays.stream(cards).filter(c -> c.getBalanceCents() != 100).count();
+        boolean ok = declined.sum() == 0 && wrong == 0;
+        OUT.printf("%-44s %s (rounds=%d declined=%d wrong-balance=%d)%n",
+            "wallet.stress covered-debits", ok ? "PASS" : "FAIL", rounds, declined.sum(), wrong);
+        if (!ok) throw new IllegalStateException("Wallet declined a debit its balance covered");
+    }
+
+    // Prices a 1,000-line basket with a 10% discount using Money and the equivalent BigDecimal code
+    static void money() throws Exception {
+        int lines = 1000;
+        Random rnd = new Random(42);
+        Money[] prices = new Money[lines];
+        java.math.BigDecimal[] decimals = new java.math.BigDecimal[lines];
+        int[] qty = new int[lines];
+        for (int i = 0; i < lines; i++) {
+            long cents = 100 + rnd.nextInt(100_000);
+            prices[i] = Money.ofCents(cents);
+            decimals[i] = java.math.BigDecimal.valueOf(cents, 2);
+            qty[i] = 1 + rnd.nextInt(5);
+        }
+        java.math.BigDecimal pct = java.math.BigDecimal.valueOf(10);
+        java.math.BigDecimal hundred = java.math.BigDecimal.valueOf(100);
+        // Cart keeps its running subtotal this way: raw cents with exact arithmetic, one Money at the end
+        measure("money.Money.basketTotal", lines, n -> {
+            long total = 0;
+            for (int i = 0; i < n; i++) total = Math.addExact(total, Math.multiplyExact(prices[i].cents(), qty[i]));
+            Money t = Money.ofCents(total);
+            return t.minus(t.percent(10)).cents();
+        });
+        measure("money.Money.chainedObjects", lines, n -> {
+            Money total = Money.ZERO;
+            for (int i = 0; i < n; i++) total = total.plus(prices[i].times(qty[i]));
+            return total.minus(total.percent(10)).cents();
+        });
+        measure("money.BigDecimal.basketTotal", lines, n -> {
+            java.math.BigDecimal total = java.math.BigDecimal.ZERO;
+            for (int i = 0; i < n; i++) total = total.add(decimals[i].multiply(java.math.BigDecimal.valueOf(qty[i])));
+            java.math.BigDecimal discount = total.multiply(pct).divide(hundred, 2, java.math.RoundingMode.HALF_EVEN);
+            return total.subtract(discount).unscaledValue().longValue();
+        });
+    }
+}
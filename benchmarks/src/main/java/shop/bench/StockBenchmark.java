@@ -0,0 +1,28 @@
+package shop.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Every benchmark thread takes single units from one hot SKU; run with -t 1,2,4,... to see contention
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class StockBenchmark {
+    private Product hot;
+
+    // Refilled each iteration so a long run never drains it
+    @Setup(Level.Iteration)
+    public void refill() throws ShoppingException {
+        if (hot == null) hot = new Electronics("E01", "Smartphone", Money.parse("299.99"), Integer.MAX_VALUE, "Samsung");
+        else hot.setStock(Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public boolean decreaseStock() {
+        return hot.tryDecreaseStock(1);
+    }
+}
@@ -0,0 +1,33 @@
+package shop.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One shared card charged and topped up by every benchmark thread; run with -t 1,2,4,... for core scaling
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class WalletBenchmark {
+    static final Money CENT = Money.ofCents(1);
+
+    private CreditCard card;
+
+    @Setup
+    public void setUp() throws ShoppingException {
+        card = new CreditCard("1234567890123456", Money.ofCents(Long.MAX_VALUE / 4));
+    }
+
+    @Benchmark
+    public boolean pay() throws ShoppingException {
+        return card.pay(CENT);
+    }
+
+    @Benchmark
+    public void addFunds() throws ShoppingException {
+        card.addFunds(CENT);
+    }
+}